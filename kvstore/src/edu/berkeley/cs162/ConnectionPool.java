@@ -0,0 +1,306 @@
+/**
+ * Pool of connections to a Key-Value server.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of KVConnections to one server. Each borrower has a
+ * connection to itself until it gives it back, and at most maxConnections
+ * are out at once; borrowers past that wait for one to come back.
+ *
+ * Connections are checked before they are lent out: one that has failed,
+ * or that has sat in the pool for longer than idleTimeoutMs, is closed and
+ * replaced with a fresh one. The most recently returned connection is lent
+ * out first, so the pool shrinks back down once load drops.
+ *
+ * The pool keeps counts of how long borrowers waited, how many connections
+ * are out and idle, and how often the server could not be reached.
+ */
+public class ConnectionPool {
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = KVConnection.MAX_IDLE_MS;
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private final int maxConnections;
+    private final long idleTimeoutMs;
+
+    // One permit per connection that may be lent out
+    private final Semaphore permits;
+    // Guards idle
+    private final Object lock = new Object();
+    // Most recently returned first
+    private final Deque<Idle> idle = new ArrayDeque<Idle>();
+    private boolean closed = false;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong borrowWaitNanos = new AtomicLong();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+
+    private static final class Idle {
+        final KVConnection connection;
+        final long since = System.currentTimeMillis();
+
+        Idle(KVConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    public ConnectionPool(String host, int port, boolean binary) {
+        this(host, port, binary, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param binary whether connections use binary frames or XML
+     * @param maxConnections most connections lent out at once
+     * @param idleTimeoutMs how long a connection can sit unused in the
+     *                      pool before it is closed
+     */
+    public ConnectionPool(String host, int port, boolean binary, int maxConnections, long idleTimeoutMs) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Lends out a connection, which must be given back with giveBack().
+     *
+     * @param timeoutMs how long to wait for one if all are lent out, 0 to
+     *                  wait forever
+     * @throws KVException if none came free in time, or a new connection
+     *         could not be opened.
+     */
+    public KVConnection borrow(long timeoutMs) throws KVException {
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            if (timeoutMs > 0) {
+                acquired = permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+            } else {
+                permits.acquire();
+                acquired = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        recordWait(System.nanoTime() - start);
+        if (!acquired) {
+            throw new KVException(new KVMessage("resp", "Network Error: No connection available"));
+        }
+
+        try {
+            KVConnection connection = takeIdle();
+            if (connection == null) {
+                connection = new KVConnection(host, port, binary);
+                connection.open();
+            }
+            return connection;
+        } catch (KVException e) {
+            permits.release();
+            countIfConnectFailure(e);
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the most recently returned connection that is still healthy,
+     *         or null. Closes the others it comes across, and any that have
+     *         been idle too long.
+     */
+    private KVConnection takeIdle() throws KVException {
+        synchronized (lock) {
+            if (closed) {
+                throw new KVException(new KVMessage("resp", "Network Error: Connection pool is closed"));
+            }
+            evictIdle();
+            while (!idle.isEmpty()) {
+                KVConnection connection = idle.pollFirst().connection;
+                if (connection.isOpen()) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Closes the connections that have sat in the pool for longer than
+     * idleTimeoutMs. Only called with lock held.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        // Oldest are at the back
+        while (!idle.isEmpty() && now - idle.peekLast().since > idleTimeoutMs) {
+            idle.pollLast().connection.close();
+        }
+    }
+
+    /**
+     * Returns a connection lent out by borrow(). One that has failed is
+     * closed rather than kept.
+     */
+    public void giveBack(KVConnection connection) {
+        try {
+            synchronized (lock) {
+                if (!closed && connection.isOpen()) {
+                    idle.addFirst(new Idle(connection));
+                    evictIdle();
+                    return;
+                }
+            }
+            connection.close();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sends request on a pooled connection and waits for its reply.
+     *
+     * @param timeoutMs how long to wait for a connection, and then for the
+     *                  reply; 0 to wait forever
+     */
+    public KVMessage call(KVMessage request, int timeoutMs) throws KVException {
+        KVConnection connection = borrow(timeoutMs);
+        try {
+            return connection.call(request, timeoutMs);
+        } catch (KVException e) {
+            countIfConnectFailure(e);
+            throw e;
+        } finally {
+            giveBack(connection);
+        }
+    }
+
+    /**
+     * Closes every idle connection, and every lent out one as it comes back.
+     * Borrowing from a closed pool fails.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            while (!idle.isEmpty()) {
+                idle.pollFirst().connection.close();
+            }
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrows.incrementAndGet();
+        borrowWaitNanos.addAndGet(nanos);
+        long max = maxBorrowWaitNanos.get();
+        while (nanos > max && !maxBorrowWaitNanos.compareAndSet(max, nanos)) {
+            max = maxBorrowWaitNanos.get();
+        }
+    }
+
+    private void countIfConnectFailure(KVException e) {
+        String message = e.getMsg().getMessage();
+        if ("Network Error: Could not connect".equals(message)
+                || "Network Error: Could not create socket".equals(message)) {
+            connectFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return how many times a connection was asked for.
+     */
+    public long getBorrowCount() {
+        return borrows.get();
+    }
+
+    /**
+     * @return the total time borrowers spent waiting for a connection to
+     *         come free, in nanoseconds.
+     */
+    public long getBorrowWaitNanos() {
+        return borrowWaitNanos.get();
+    }
+
+    /**
+     * @return the longest any borrower waited, in nanoseconds.
+     */
+    public long getMaxBorrowWaitNanos() {
+        return maxBorrowWaitNanos.get();
+    }
+
+    /**
+     * @return how many connections are lent out right now.
+     */
+    public int getActiveCount() {
+        // Permits are taken for the whole of borrow(), so this can briefly
+        // count a borrower that is still opening its connection
+        int active = maxConnections - permits.availablePermits();
+        return Math.max(active, 0);
+    }
+
+    /**
+     * @return how many connections are sitting in the pool.
+     */
+    public int getIdleCount() {
+        synchronized (lock) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * @return how many times the server could not be reached.
+     */
+    public long getConnectFailures() {
+        return connectFailures.get();
+    }
+}
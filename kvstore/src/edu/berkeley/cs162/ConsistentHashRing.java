@@ -0,0 +1,181 @@
+/**
+ * Consistent hashing ring used by TPCMaster to place keys on slaves.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable ring of 64-bit points, each owned by a node. A key belongs to
+ * the first point at or after its hash, going round to the first point
+ * past the top, and its replicas to the nodes of the points after that.
+ * Points are compared as unsigned, as in TPCMaster.isLessThanUnsigned.
+ *
+ * Every node has virtualNodes points. The first is the node's own ID, so
+ * with one point each a node owns exactly the keys it always did; the
+ * rest are spread over the ring by hashing the ID, which evens out how
+ * many keys each node gets. Lookups are a binary search over a sorted
+ * array, however many nodes there are.
+ *
+ * Rings are never changed once built. To add or replace a node, build a new
+ * ring and publish it, so lookups never need a lock.
+ */
+public final class ConsistentHashRing<T> {
+
+    // Points with their sign bit flipped, so that sorting and searching them
+    // as signed longs orders them as unsigned ones
+    private final long[] points;
+    // Owner of each point
+    private final T[] owners;
+    private final int nodeCount;
+
+    @SuppressWarnings("unchecked")
+    private ConsistentHashRing(long[] points, Object[] owners, int nodeCount) {
+        this.points = points;
+        this.owners = (T[]) owners;
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * @param nodes each node by its ID
+     * @param virtualNodes points on the ring for each node
+     */
+    public static <T> ConsistentHashRing<T> build(Map<Long, T> nodes, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        }
+        int count = nodes.size() * virtualNodes;
+        final long[] keys = new long[count];
+        Object[] nodeOf = new Object[count];
+        int i = 0;
+        for (Map.Entry<Long, T> node : nodes.entrySet()) {
+            for (int v = 0; v < virtualNodes; v++) {
+                keys[i] = flip(point(node.getKey(), v));
+                nodeOf[i++] = node.getValue();
+            }
+        }
+
+        Integer[] order = new Integer[count];
+        for (int j = 0; j < count; j++) {
+            order[j] = j;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long x = keys[a];
+                long y = keys[b];
+                return (x < y) ? -1 : ((x == y) ? 0 : 1);
+            }
+        });
+        long[] points = new long[count];
+        Object[] owners = new Object[count];
+        for (int j = 0; j < count; j++) {
+            points[j] = keys[order[j]];
+            owners[j] = nodeOf[order[j]];
+        }
+        return new ConsistentHashRing<T>(points, owners, nodes.size());
+    }
+
+    /**
+     * @return where virtual node v of node id sits on the ring
+     */
+    static long point(long id, int v) {
+        if (v == 0) {
+            return id;
+        }
+        // SplitMix64's finalizer over the ID and the virtual node's number
+        long z = id + v * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long flip(long n) {
+        return n ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * @return index of the first point at or after hash, going round
+     */
+    private int indexFor(long hash) {
+        int at = Arrays.binarySearch(points, flip(hash));
+        if (at < 0) {
+            at = -at - 1;
+        }
+        return (at == points.length) ? 0 : at;
+    }
+
+    /**
+     * @return the node that owns hash
+     * @throws IllegalStateException if the ring is empty
+     */
+    public T get(long hash) {
+        if (points.length == 0) {
+            throw new IllegalStateException("No nodes on the ring");
+        }
+        return owners[indexFor(hash)];
+    }
+
+    /**
+     * @return the owner of hash followed by the next distinct nodes round the
+     *         ring, n in all, or every node if there are fewer than n
+     * @throws IllegalStateException if the ring is empty
+     */
+    public List<T> get(long hash, int n) {
+        if (points.length == 0) {
+            throw new IllegalStateException("No nodes on the ring");
+        }
+        int want = Math.min(n, nodeCount);
+        List<T> replicas = new ArrayList<T>(want);
+        int at = indexFor(hash);
+        for (int seen = 0; seen < points.length && replicas.size() < want; seen++) {
+            T owner = owners[(at + seen) % points.length];
+            if (!replicas.contains(owner)) {
+                replicas.add(owner);
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * @return how many nodes are on the ring
+     */
+    public int size() {
+        return nodeCount;
+    }
+
+    public boolean isEmpty() {
+        return nodeCount == 0;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Approximate access frequencies for cache admission.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch of 4-bit counters used as a TinyLFU admission filter.
+ * Each long in the table packs 16 counters; each of the four hash rows owns
+ * one group of four of them, so one lookup touches at most four longs.
+ *
+ * After sampleSize increments every counter is halved, so popularity
+ * fades over time and the filter follows a shifting working set.
+ *
+ * Counters are updated with CAS so the sketch can be fed from the cache's
+ * lock-free read path. Estimates may be slightly off under contention,
+ * which is fine for an admission heuristic.
+ */
+public class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger(0);
+
+    /**
+     * @param expectedEntries    roughly how many distinct entries the
+     *                           protected cache holds.
+     */
+    public FrequencySketch(int expectedEntries) {
+        int length = 16;
+        while(length < expectedEntries) {
+            length <<= 1;
+        }
+        table = new AtomicLongArray(length);
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+    }
+
+    /**
+     * Records one occurrence of the given hash.
+     */
+    public void increment(int hash) {
+        boolean added = false;
+        for(int row = 0; row < 4; row++) {
+            added |= incrementAt(indexOf(hash, row), offsetOf(hash, row));
+        }
+        if(added && additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return the estimated number of occurrences of hash, at most 15.
+     */
+    public int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for(int row = 0; row < 4; row++) {
+            long word = table.get(indexOf(hash, row));
+            int count = (int) ((word >>> (offsetOf(hash, row) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int index, int offset) {
+        int shift = offset << 2;
+        while(true) {
+            long word = table.get(index);
+            if(((word >>> shift) & 0xfL) == MAX_COUNT) {
+                return false;
+            }
+            if(table.compareAndSet(index, word, word + (1L << shift))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halves every counter. Only the thread that crossed sampleSize does
+     * this, the others keep counting into the table meanwhile.
+     */
+    private void reset() {
+        int current = additions.get();
+        if(current < sampleSize || !additions.compareAndSet(current, current / 2)) {
+            return;
+        }
+        for(int i = 0; i < table.length(); i++) {
+            while(true) {
+                long word = table.get(i);
+                if(table.compareAndSet(i, word, (word >>> 1) & RESET_MASK)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    /**
+     * @return which counter of the row's group of four to use, as a counter
+     *         index from 0 to 15 within the long.
+     */
+    private int offsetOf(int hash, int row) {
+        int spread = hash * 0x9e3779b9;
+        return (row << 2) + ((spread >>> (row << 3)) & 3);
+    }
+}
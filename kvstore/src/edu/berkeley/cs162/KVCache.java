@@ -31,56 +31,137 @@
 package edu.berkeley.cs162;
 
 import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.FactoryConfigurationError;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /**
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on the eviction policy.
+ *
+ * Each set is a fixed block of parallel arrays swept by a CLOCK hand, so
+ * lookups compare cached hash codes before keys and nothing is allocated
+ * once the cache is warm.
+ *
+ * get() takes no lock: it reads the set optimistically and retries under a
+ * shared lock only if a writer changed the set in the meantime. put() and
+ * del() still expect the caller to hold the set's write lock.
+ *
+ * The cache can optionally be bounded by bytes as well, both in total and
+ * per set. Entries are then charged by the size of their key and value.
+ * While bytes are short the largest unreferenced entries go first, so one
+ * big value displaces as few small ones as possible; the clock only picks
+ * victims when a set is merely full. Nothing is evicted for an entry that
+ * can't fit anyway because other sets hold the global budget.
+ *
+ * An optional TinyLFU admission filter keeps one-off keys from flushing the
+ * working set: a new key that would displace an entry is only admitted if
+ * it has been requested more often than that entry.
+ *
+ * Given a ValueArena, the cache keeps values off-heap and holds only their
+ * handles.
  */
 public class KVCache implements KeyValueInterface {
+    // Rough per-entry heap cost on top of the characters themselves
+    // (two String headers plus their backing arrays).
+    public static final int ENTRY_OVERHEAD_BYTES = 64;
+
     private int numSets = 100;
     private int maxElemsPerSet = 10;
+    private long maxBytes = Long.MAX_VALUE;
+    private long maxBytesPerSet = Long.MAX_VALUE;
 
-    private final ArrayList<LinkedList<CacheNode>> caches;
+    private final CacheSet[] sets;
     private final WriteLock[] locks;
+    private final AtomicLong totalBytes = new AtomicLong(0);
+    private final FrequencySketch sketch;
+    private final ValueArena arena;
 
     /**
      * Creates a new LRU cache.
      * @param cacheSize    the maximum number of entries that will be kept in this cache.
      */
     public KVCache(int numSets, int maxElemsPerSet) {
+        this(numSets, maxElemsPerSet, Long.MAX_VALUE, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * @param admissionFilter    whether to guard the cache with a TinyLFU
+     *                           admission filter.
+     */
+    public KVCache(int numSets, int maxElemsPerSet, boolean admissionFilter) {
+        this(numSets, maxElemsPerSet, Long.MAX_VALUE, Long.MAX_VALUE, admissionFilter);
+    }
+
+    /**
+     * @param arena    where to keep cached values, off the heap.
+     */
+    public KVCache(int numSets, int maxElemsPerSet, ValueArena arena) {
+        this(numSets, maxElemsPerSet, Long.MAX_VALUE, Long.MAX_VALUE, false, arena);
+    }
+
+    /**
+     * Creates a cache bounded by bytes as well as entries, splitting the byte
+     * budget evenly between sets.
+     * @param maxBytes    upper bound on the summed cost of all entries.
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long maxBytes) {
+        this(numSets, maxElemsPerSet, maxBytes, maxBytes / numSets);
+    }
+
+    /**
+     * Creates a cache bounded by bytes as well as entries. maxBytesPerSet may
+     * add up to more than maxBytes so that hot sets can borrow room, in which
+     * case maxBytes is what bounds the whole cache.
+     * @param maxBytes    upper bound on the summed cost of all entries.
+     * @param maxBytesPerSet    upper bound on the summed cost of one set.
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long maxBytes, long maxBytesPerSet) {
+        this(numSets, maxElemsPerSet, maxBytes, maxBytesPerSet, false);
+    }
+
+    /**
+     * @param admissionFilter    whether to guard the cache with a TinyLFU
+     *                           admission filter.
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long maxBytes, long maxBytesPerSet,
+                   boolean admissionFilter) {
+        this(numSets, maxElemsPerSet, maxBytes, maxBytesPerSet, admissionFilter, null);
+    }
+
+    /**
+     * @param admissionFilter    whether to guard the cache with a TinyLFU
+     *                           admission filter.
+     * @param arena    where to keep cached values off the heap, or null to
+     *                 keep them as Strings.
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long maxBytes, long maxBytesPerSet,
+                   boolean admissionFilter, ValueArena arena) {
         this.numSets = numSets;
         this.maxElemsPerSet = maxElemsPerSet;
-        caches = new ArrayList<LinkedList<CacheNode>>(numSets);
+        this.maxBytes = maxBytes;
+        this.maxBytesPerSet = maxBytesPerSet;
+        this.arena = arena;
+        sets = new CacheSet[numSets];
         locks = new WriteLock[numSets];
         for(int i = 0; i < numSets; i++) {
-            caches.add(new LinkedList<CacheNode>());
+            sets[i] = new CacheSet(maxElemsPerSet, totalBytes, arena);
             // We can use a regular java object but for some reason they
             // want to use WriteLocks
             locks[i] = new ReentrantReadWriteLock().writeLock();
         }
+        sketch = admissionFilter ? new FrequencySketch(numSets * maxElemsPerSet) : null;
     }
 
     /**
      * Retrieves an entry from the cache.
-     * Assumes the corresponding set has already been locked for writing.
+     * Safe to call without holding the set's write lock.
      * @param key the key whose associated value is to be returned.
      * @return the value associated to this key, or null if no value with this key exists in the cache.
      */
@@ -90,21 +171,43 @@ public class KVCache implements KeyValueInterface {
         AutoGrader.agCacheGetStarted(key);
         AutoGrader.agCacheGetDelay();
 
-        int setId = getSetId(key);
-        for(CacheNode node : caches.get(setId)) {
-            if(node.key.equals(key)) {
-                node.referenced = true;
-
-                // Must be called before returning
-                AutoGrader.agCacheGetFinished(key);
+        CacheSet set = sets[getSetId(key)];
+        int hash = key.hashCode();
+        String value = null;
+        if(sketch != null) {
+            // Misses count too, they are usually followed by a put
+            sketch.increment(hash);
+        }
 
-                return node.value;
+        // Optimistic read, only valid if no writer touched the set meanwhile
+        long stamp = set.stamp.tryOptimisticRead();
+        int slot = set.find(key, hash);
+        String heapValue = (slot >= 0 && arena == null) ? set.values[slot] : null;
+        long handle = (slot >= 0 && arena != null) ? set.handles[slot] : 0;
+        boolean valid = set.stamp.validate(stamp);
+        if(valid && slot >= 0) {
+            value = (arena == null) ? heapValue : arena.load(handle);
+            // An off-heap value may have been freed since we validated
+            valid = (value != null);
+        }
+        if(!valid) {
+            stamp = set.stamp.readLock();
+            try {
+                slot = set.find(key, hash);
+                value = (slot >= 0) ? set.read(slot) : null;
+            } finally {
+                set.stamp.unlockRead(stamp);
             }
         }
+        if(slot >= 0) {
+            // Racing with an eviction here at worst gives the new
+            // occupant of the slot a second chance it didn't earn.
+            set.referenced[slot] = true;
+        }
 
         // Must be called before returning
         AutoGrader.agCacheGetFinished(key);
-        return null;
+        return value;
     }
 
     /**
@@ -122,31 +225,35 @@ public class KVCache implements KeyValueInterface {
         AutoGrader.agCachePutStarted(key, value);
         AutoGrader.agCachePutDelay();
 
-        int setId = getSetId(key);
-        // Make sure our element isn't already there and update if it is
-        for(CacheNode node : caches.get(setId)) {
-            if(node.key.equals(key)) {
-                node.value = value;
-                node.referenced = true;
-
-                // Must be called before returning
-                AutoGrader.agCachePutFinished(key, value);
-                return;
-            }
-        }
-
-        if(caches.get(setId).size() == maxElemsPerSet) {
-            // We must proceed with second chance.
-            CacheNode oldest = caches.get(setId).poll();
-            while(oldest.referenced) {
-                oldest.referenced = false; // Second chance
-                caches.get(setId).offer(oldest);
-                oldest = caches.get(setId).poll();
+        CacheSet set = sets[getSetId(key)];
+        int hash = key.hashCode();
+        int cost = cost(key, value);
+        long stamp = set.stamp.writeLock();
+        try {
+            int slot = set.find(key, hash);
+            if(slot >= 0 && set.bytes - set.sizes[slot] + cost <= maxBytesPerSet
+                    && reserveBytes(cost - set.sizes[slot])) {
+                // Already cached and the new value still fits, update in place
+                set.bytes += cost - set.sizes[slot];
+                set.sizes[slot] = cost;
+                set.write(slot, value);
+                set.referenced[slot] = true;
+            } else {
+                boolean wasCached = (slot >= 0);
+                if(wasCached) {
+                    // Never leave the old value behind if the new one won't fit
+                    set.clear(slot);
+                }
+                // Either take a free slot or run the clock for victims
+                slot = makeRoom(set, hash, cost, !wasCached);
+                if(slot >= 0) {
+                    set.fill(slot, key, hash, value, cost);
+                    set.referenced[slot] = wasCached;
+                }
             }
+        } finally {
+            set.stamp.unlockWrite(stamp);
         }
-        // We've just dropped the oldest from the cache
-        // Or there was still room
-        caches.get(setId).offer(new CacheNode(key, value, false));
 
         // Must be called before returning
         AutoGrader.agCachePutFinished(key, value);
@@ -163,18 +270,153 @@ public class KVCache implements KeyValueInterface {
         AutoGrader.agCacheDelStarted(key);
         AutoGrader.agCacheDelDelay();
 
-        int setId = getSetId(key);
-        for(int i = 0; i < caches.get(setId).size(); i++) {
-            CacheNode node = caches.get(setId).get(i);
-            if(node.key.equals(key)) {
-                caches.get(setId).remove(i);
+        CacheSet set = sets[getSetId(key)];
+        long stamp = set.stamp.writeLock();
+        try {
+            int slot = set.find(key, key.hashCode());
+            if(slot >= 0) {
+                set.clear(slot);
             }
+        } finally {
+            set.stamp.unlockWrite(stamp);
         }
 
         // Must be called before returning
         AutoGrader.agCacheDelFinished(key);
     }
 
+    /**
+     * Evicts from set until an entry of the given cost fits, then reserves
+     * that cost against the global budget. Victims are taken by cost while
+     * bytes are short, by the clock otherwise.
+     * Assumes the set is locked for writing.
+     * @param checkAdmission    whether the entry has to beat each victim in
+     *                          the admission filter before displacing it.
+     * @return the slot to fill, or -1 if the entry should not be cached
+     */
+    private int makeRoom(CacheSet set, int hash, int cost, boolean checkAdmission) {
+        if(cost > maxBytesPerSet || cost > maxBytes) {
+            // Caching it would only flush everything else
+            return -1;
+        }
+        if(!fitsAfterEmptying(set, cost)) {
+            // Other sets are holding the global budget
+            return -1;
+        }
+        if(checkAdmission && sketch != null && !admits(set, hash, cost)) {
+            // Not popular enough to displace what's already here
+            return -1;
+        }
+        while(set.size == maxElemsPerSet || set.bytes + cost > maxBytesPerSet
+                || !reserveBytes(cost)) {
+            if(set.size == 0 || !fitsAfterEmptying(set, cost)) {
+                // Another set took the budget while we were evicting
+                return -1;
+            }
+            set.clear(bytesShort(set, cost, 0) ? set.largestVictim() : set.nextVictim());
+        }
+        return set.freeSlot();
+    }
+
+    /**
+     * @return whether an entry of the given cost would fit the global budget
+     *         with everything in set evicted
+     */
+    private boolean fitsAfterEmptying(CacheSet set, int cost) {
+        return totalBytes.get() - set.bytes + cost <= maxBytes;
+    }
+
+    /**
+     * @param freed    bytes already set aside to be evicted from set
+     * @return whether an entry of the given cost is short of bytes, in its
+     *         set or globally, rather than just of a slot
+     */
+    private boolean bytesShort(CacheSet set, int cost, long freed) {
+        return set.bytes - freed + cost > maxBytesPerSet
+                || totalBytes.get() - freed + cost > maxBytes;
+    }
+
+    /**
+     * Decides admission before anything is evicted, against every victim
+     * makeRoom() would take to make room for the entry.
+     * Assumes the set is locked for writing.
+     * @return whether the entry is requested more often than each of them
+     */
+    private boolean admits(CacheSet set, int hash, int cost) {
+        int frequency = sketch.frequency(hash);
+        int[] clockOrder = set.victimOrder();
+        int[] costOrder = set.victimsByCost();
+        boolean[] taken = new boolean[maxElemsPerSet];
+        int size = set.size;
+        long freed = 0;
+        int nextByClock = 0;
+        int nextByCost = 0;
+        while(size > 0 && (size == maxElemsPerSet || bytesShort(set, cost, freed))) {
+            int slot;
+            if(bytesShort(set, cost, freed)) {
+                while(taken[costOrder[nextByCost]]) {
+                    nextByCost++;
+                }
+                slot = costOrder[nextByCost];
+            } else {
+                while(taken[clockOrder[nextByClock]]) {
+                    nextByClock++;
+                }
+                slot = clockOrder[nextByClock];
+            }
+            if(frequency <= sketch.frequency(set.hashes[slot])) {
+                return false;
+            }
+            taken[slot] = true;
+            size--;
+            freed += set.sizes[slot];
+        }
+        return true;
+    }
+
+    /**
+     * Atomically charges delta bytes against the global budget.
+     * @return false, without charging anything, if that would exceed it
+     */
+    private boolean reserveBytes(long delta) {
+        while(true) {
+            long current = totalBytes.get();
+            if(delta > 0 && current + delta > maxBytes) {
+                return false;
+            }
+            if(totalBytes.compareAndSet(current, current + delta)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return    what caching key and value costs this cache: the heap cost,
+     *            or with an arena, the key's heap cost and the value's block
+     *            off the heap.
+     */
+    private int cost(String key, String value) {
+        if(arena == null) {
+            return entryCost(key, value);
+        }
+        return ENTRY_OVERHEAD_BYTES + 2 * key.length() + arena.footprint(value);
+    }
+
+    /**
+     * @return    the approximate heap cost of caching key and value.
+     */
+    public static int entryCost(String key, String value) {
+        // Strings are UTF-16 on the heap
+        return ENTRY_OVERHEAD_BYTES + 2 * (key.length() + value.length());
+    }
+
+    /**
+     * @return    the summed cost of every entry currently in the cache.
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
     /**
      * @param key
      * @return    the write lock of the set that contains key.
@@ -194,80 +436,274 @@ public class KVCache implements KeyValueInterface {
 
     public String toXML() {
         try {
-            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-            Element rootElem = doc.createElement("KVCache");
-            doc.appendChild(rootElem);
-
-            for (int i = 0; i < caches.size(); i++) {
-                LinkedList<CacheNode> cache = caches.get(i);
-                Element setElem = doc.createElement("Set");
-                setElem.setAttribute("Id", Integer.toString(i));
-                for(CacheNode node : cache) {
-                    Element cElem = doc.createElement("CacheEntry");
-                    cElem.setAttribute("isReferenced", Boolean.toString(node.referenced));
-                    cElem.setAttribute("isValid", "true");
-
-                    Element kElem = doc.createElement("Key");
-                    kElem.appendChild(doc.createTextNode(node.key));
-                    Element vElem = doc.createElement("Value");
-                    vElem.appendChild(doc.createTextNode(node.value));
-
-                    cElem.appendChild(kElem);
-                    cElem.appendChild(vElem);
-                    setElem.appendChild(cElem);
+            StringWriter strWriter = new StringWriter();
+            XMLStreamWriter out = XMLStreams.newWriter(strWriter);
+            out.writeStartElement("KVCache");
+
+            for (int i = 0; i < numSets; i++) {
+                CacheSet set = sets[i];
+                out.writeStartElement("Set");
+                out.writeAttribute("Id", Integer.toString(i));
+                // Walk from the hand so entries come out oldest first
+                for(int k = 0; k < maxElemsPerSet; k++) {
+                    int slot = (set.hand + k) % maxElemsPerSet;
+                    if(set.keys[slot] == null) {
+                        continue;
+                    }
+                    writeEntry(out, Boolean.toString(set.referenced[slot]), "true",
+                            set.keys[slot], set.read(slot));
                 }
-                rootElem.appendChild(setElem);
 
-                if(cache.size() < maxElemsPerSet) {
+                if(set.size < maxElemsPerSet) {
                     // Fill it with invalid entries
-                    for(int k = 0; k < (maxElemsPerSet - cache.size()); k++) {
-                        Element cElem = doc.createElement("CacheEntry");
-                        cElem.setAttribute("isReferenced", "false");
-                        cElem.setAttribute("isValid", "false");
-
-                        Element kElem = doc.createElement("Key");
-                        kElem.appendChild(doc.createTextNode("null"));
-                        Element vElem = doc.createElement("Value");
-                        vElem.appendChild(doc.createTextNode("null"));
-
-                        cElem.appendChild(kElem);
-                        cElem.appendChild(vElem);
-                        setElem.appendChild(cElem);
+                    for(int k = 0; k < (maxElemsPerSet - set.size); k++) {
+                        writeEntry(out, "false", "false", "null", "null");
                     }
                 }
+                out.writeEndElement();
             }
-            Transformer laBeouf = TransformerFactory.newInstance().newTransformer();
-            StringWriter strWriter = new StringWriter();
-            StreamResult streamResult = new StreamResult(strWriter);
-            laBeouf.transform(new DOMSource(doc), streamResult);
+            out.writeEndElement();
+            out.writeEndDocument();
+            out.close();
             return strWriter.toString();
-        } catch (ParserConfigurationException e) { // Potentially thrown by the
-                                                   // newDocumentBuilder() call
-            e.printStackTrace(System.out);
-            return null;
-        } catch (FactoryConfigurationError f) { // Caused by the
-                                                // DocumentBuilderFactory.newInstance()
-                                                // call
-            f.printStackTrace(System.out);
-            return null;
-        } catch (TransformerException e) {
-            e.printStackTrace(System.out);
-            return null;
         } catch (Exception e) {
             e.printStackTrace(System.out);
             return null;
         }
     }
 
-    private class CacheNode {
-        public String key;
-        public String value;
-        public boolean referenced;
+    private static void writeEntry(XMLStreamWriter out, String isReferenced, String isValid,
+            String key, String value) throws XMLStreamException {
+        out.writeStartElement("CacheEntry");
+        out.writeAttribute("isReferenced", isReferenced);
+        out.writeAttribute("isValid", isValid);
+        XMLStreams.writeTextElement(out, "Key", key);
+        XMLStreams.writeTextElement(out, "Value", value);
+        out.writeEndElement();
+    }
+
+    /**
+     * One set of the cache. Slot i is valid iff keys[i] != null. The hand
+     * points at the next slot the clock will consider for eviction. The
+     * valid slots are the size slots from the hand on, oldest first, so the
+     * clock sees entries in the order they went in, as a FIFO queue would.
+     * Mutations hold stamp for writing so lock-free readers can tell when
+     * they raced with one.
+     */
+    private static final class CacheSet {
+        final StampedLock stamp = new StampedLock();
+        final int[] hashes;
+        final String[] keys;
+        final String[] values;
+        final boolean[] referenced;
+        final int[] sizes;
+        // Used instead of values when they are kept off-heap
+        final long[] handles;
+        final AtomicLong totalBytes;
+        final ValueArena arena;
+        int hand = 0;
+        int size = 0;
+        long bytes = 0;
+
+        CacheSet(int capacity, AtomicLong totalBytes, ValueArena arena) {
+            hashes = new int[capacity];
+            keys = new String[capacity];
+            values = (arena == null) ? new String[capacity] : null;
+            referenced = new boolean[capacity];
+            sizes = new int[capacity];
+            handles = (arena == null) ? null : new long[capacity];
+            this.totalBytes = totalBytes;
+            this.arena = arena;
+        }
+
+        /**
+         * Assumes the set is locked, at least for reading.
+         */
+        String read(int slot) {
+            return (arena == null) ? values[slot] : arena.load(handles[slot]);
+        }
+
+        /**
+         * Replaces the value in a valid slot.
+         */
+        void write(int slot, String value) {
+            if(arena == null) {
+                values[slot] = value;
+            } else {
+                arena.free(handles[slot]);
+                handles[slot] = arena.store(value);
+            }
+        }
+
+        /**
+         * @return the slot holding key, or -1 if it isn't cached
+         */
+        int find(String key, int hash) {
+            for(int i = 0; i < keys.length; i++) {
+                // Compare the cheap hash before touching the key itself.
+                // Read the key once; an optimistic reader may race a writer.
+                if(hashes[i] == hash) {
+                    String k = keys[i];
+                    if(k != null && k.equals(key)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Assumes the set is not full.
+         * @return the slot after the newest entry, so new entries line up
+         *         behind older ones in clock order
+         */
+        int freeSlot() {
+            if(size == keys.length) {
+                throw new IllegalStateException("No free slot in a full set");
+            }
+            return (hand + size) % keys.length;
+        }
+
+        /**
+         * Second chance: sweep the hand, clearing reference bits and sending
+         * each referenced entry to the back, until it reaches an
+         * unreferenced entry, and return that entry's slot without dropping
+         * it. Assumes the set is not empty, and terminates within two
+         * revolutions.
+         */
+        int nextVictim() {
+            while(referenced[hand]) {
+                referenced[hand] = false;
+                int back = (hand + size) % keys.length;
+                if(back != hand) {
+                    // Not full, so the back is past the free slots
+                    move(hand, back);
+                }
+                hand = (hand + 1) % keys.length;
+            }
+            return hand;
+        }
+
+        /**
+         * @return the valid slots in the order nextVictim() would take them:
+         *         unreferenced entries oldest first, then referenced ones,
+         *         which only go once the clock has come round to them again
+         */
+        int[] victimOrder() {
+            int[] order = new int[size];
+            int n = 0;
+            for(int k = 0; k < size; k++) {
+                int slot = (hand + k) % keys.length;
+                if(!referenced[slot]) {
+                    order[n++] = slot;
+                }
+            }
+            for(int k = 0; k < size; k++) {
+                int slot = (hand + k) % keys.length;
+                if(referenced[slot]) {
+                    order[n++] = slot;
+                }
+            }
+            return order;
+        }
+
+        /**
+         * Assumes the set is not empty.
+         * @return the slot of the costliest unreferenced entry, or of the
+         *         costliest entry if all are referenced; the oldest of equals
+         */
+        int largestVictim() {
+            int victim = hand;
+            for(int k = 1; k < size; k++) {
+                int slot = (hand + k) % keys.length;
+                if(referenced[slot] == referenced[victim] ? sizes[slot] > sizes[victim]
+                        : referenced[victim]) {
+                    victim = slot;
+                }
+            }
+            return victim;
+        }
+
+        /**
+         * @return the valid slots in the order largestVictim() would take
+         *         them: unreferenced entries costliest first, then
+         *         referenced ones, each oldest first among equal costs
+         */
+        int[] victimsByCost() {
+            int[] order = victimOrder();
+            // Insertion sort keeps it stable, and sets are small
+            for(int i = 1; i < order.length; i++) {
+                int slot = order[i];
+                int j = i;
+                while(j > 0 && referenced[order[j - 1]] == referenced[slot]
+                        && sizes[order[j - 1]] < sizes[slot]) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = slot;
+            }
+            return order;
+        }
+
+        /**
+         * Moves a valid slot's entry to an unused one.
+         */
+        private void move(int from, int to) {
+            hashes[to] = hashes[from];
+            keys[to] = keys[from];
+            if(arena == null) {
+                values[to] = values[from];
+                values[from] = null;
+            } else {
+                handles[to] = handles[from];
+            }
+            referenced[to] = referenced[from];
+            sizes[to] = sizes[from];
+            hashes[from] = 0;
+            keys[from] = null;
+            referenced[from] = false;
+            sizes[from] = 0;
+        }
 
-        public CacheNode(String key, String value, boolean referenced) {
-            this.key = key;
-            this.value = value;
-            this.referenced = referenced;
+        /**
+         * The cost must already have been reserved against totalBytes.
+         */
+        void fill(int slot, String key, int hash, String value, int cost) {
+            hashes[slot] = hash;
+            keys[slot] = key;
+            if(arena == null) {
+                values[slot] = value;
+            } else {
+                handles[slot] = arena.store(value);
+            }
+            referenced[slot] = false;
+            sizes[slot] = cost;
+            bytes += cost;
+            size++;
+        }
+
+        void clear(int slot) {
+            bytes -= sizes[slot];
+            totalBytes.addAndGet(-sizes[slot]);
+            hashes[slot] = 0;
+            keys[slot] = null;
+            if(arena == null) {
+                values[slot] = null;
+            } else {
+                arena.free(handles[slot]);
+            }
+            referenced[slot] = false;
+            sizes[slot] = 0;
+            int position = (slot - hand + keys.length) % keys.length;
+            if(position == 0) {
+                hand = (hand + 1) % keys.length;
+            } else {
+                // Close the gap, so newer entries stay behind older ones
+                for(int k = position + 1; k < size; k++) {
+                    move((hand + k) % keys.length, (hand + k - 1) % keys.length);
+                }
+            }
+            size--;
         }
     }
 }
@@ -33,25 +33,104 @@ package edu.berkeley.cs162;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 
 /**
  * This class is used to communicate with (appropriately marshalling and unmarshalling)
  * objects implementing the {@link KeyValueInterface}.
  *
+ * Every request can also be made asynchronously, with getAsync(), putAsync()
+ * and delAsync(). In binary mode these are spread over a few persistent
+ * connections, each carrying many requests at once, so one thread can keep
+ * any number outstanding, up to maxInFlight; past that they fail at once
+ * rather than wait. The blocking methods wait on the same futures, and for
+ * room under maxInFlight.
+ *
+ * XML, the default, has no framing, so there each request has a socket of
+ * its own and the async methods only return once the reply is in. Use
+ * binary mode for requests that really are asynchronous.
  */
 public class KVClient implements KeyValueInterface {
 
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
     public String server = null;
     public int port = 0;
+    // Whether requests go out as binary frames rather than XML
+    public boolean binary = false;
+    // Binary requests take turns over these, each shared by many requests
+    private final KVConnection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    // Bounds how many requests are outstanding at once
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    // How long to wait for each reply, 0 to wait forever
+    private final int timeoutMs;
 
     /**
+     * Talks XML, in which the async methods wait for their replies.
+     *
      * @param server is the DNS reference to the Key-Value server
      * @param port is the port on which the Key-Value server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, false);
+    }
+
+    /**
+     * @param server is the DNS reference to the Key-Value server
+     * @param port is the port on which the Key-Value server is listening
+     * @param binary whether to talk to the server in binary frames, which are
+     *               much cheaper to build and parse than XML, over a single
+     *               persistent connection
+     */
+    public KVClient(String server, int port, boolean binary) {
+        this(server, port, binary, 1, DEFAULT_MAX_IN_FLIGHT, 0);
+    }
+
+    /**
+     * @param server is the DNS reference to the Key-Value server
+     * @param port is the port on which the Key-Value server is listening
+     * @param binary whether to talk to the server in binary frames over
+     *               persistent connections, or XML over one per request
+     * @param connections how many persistent connections to spread binary
+     *                    requests over
+     * @param maxInFlight most requests outstanding at once; blocking ones
+     *                    past that wait until one finishes, async ones fail
+     * @param timeoutMs how long to wait for each reply, 0 to wait forever
+     */
+    public KVClient(String server, int port, boolean binary, int connections,
+                    int maxInFlight, int timeoutMs) {
+        if (connections < 1 || maxInFlight < 1 || timeoutMs < 0) {
+            throw new IllegalArgumentException("connections and maxInFlight must be positive, timeoutMs not negative");
+        }
         this.server = server;
         this.port = port;
+        this.binary = binary;
+        this.connections = new KVConnection[binary ? connections : 1];
+        for (int i = 0; i < this.connections.length; i++) {
+            this.connections[i] = new KVConnection(server, port, binary);
+        }
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Closes the connections to the server, failing any requests still
+     * outstanding. The client can still be used; the next request opens a
+     * new connection.
+     */
+    public void close() {
+        for (KVConnection connection : connections) {
+            connection.close();
+        }
     }
 
     public Socket connectHost() throws KVException {
@@ -70,45 +149,152 @@ public class KVClient implements KeyValueInterface {
     	}
     }
 
-    public void put(String key, String value) throws KVException {
-    	KVMessage message = new KVMessage("putreq");
+    /**
+     * Sends message on the next connection once fewer than maxInFlight
+     * requests are outstanding.
+     *
+     * @param wait whether to wait until then, rather than fail at once if
+     *             there are already maxInFlight. Only blocking callers
+     *             wait, so a reply's callback can't be stuck behind it.
+     */
+    private CompletableFuture<KVMessage> send(KVMessage message, boolean wait) {
+        if (wait) {
+            inFlight.acquireUninterruptibly();
+        } else if (!inFlight.tryAcquire()) {
+            try {
+                return failed(new KVException(new KVMessage("resp", "Too Many Requests: " + maxInFlight + " already in flight")));
+            } catch (KVException e) {
+                return failed(e);
+            }
+        }
+        int next = nextConnection.getAndIncrement() & Integer.MAX_VALUE;
+        CompletableFuture<KVMessage> reply = connections[next % connections.length].callAsync(message, timeoutMs);
+        // Completes after the release, so callbacks on it can send again
+        return reply.whenComplete(new BiConsumer<KVMessage, Throwable>() {
+            @Override
+            public void accept(KVMessage response, Throwable error) {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * @return a future that fails with KVException(response) unless
+     *         response's message is Success
+     */
+    private static CompletableFuture<Void> expectSuccess(CompletableFuture<KVMessage> reply) {
+        return reply.thenApply(new Function<KVMessage, Void>() {
+            @Override
+            public Void apply(KVMessage response) {
+                if(!"Success".equals(response.getMessage()))
+                    throw new CompletionException(new KVException(response));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits for future, rethrowing the KVException it failed with if any.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws KVException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof KVException) {
+                throw (KVException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return completes once the server has stored value, or fails with a
+     *         KVException saying why not, at once if maxInFlight requests
+     *         are already outstanding
+     */
+    public CompletableFuture<Void> putAsync(String key, String value) {
+        return putAsync(key, value, false);
+    }
+
+    private CompletableFuture<Void> putAsync(String key, String value, boolean wait) {
+    	KVMessage message;
+        try {
+            message = new KVMessage("putreq");
+        } catch (KVException e) {
+            return failed(e);
+        }
         message.setKey(key);
         message.setValue(value);
-        Socket connection = connectHost();
-        message.sendMessage(connection);
-        KVMessage response = new KVMessage(connection);
-        if(!"Success".equals(response.getMessage()))
-            throw new KVException(response);
+        return expectSuccess(send(message, wait));
     }
 
-    public String get(String key) throws KVException {
-    	KVMessage message = new KVMessage("getreq");
+    /**
+     * @return completes with the value of key, or fails with a KVException
+     *         saying why there is none, at once if maxInFlight requests are
+     *         already outstanding
+     */
+    public CompletableFuture<String> getAsync(String key) {
+        return getAsync(key, false);
+    }
+
+    private CompletableFuture<String> getAsync(final String key, boolean wait) {
+    	KVMessage message;
+        try {
+            message = new KVMessage("getreq");
+        } catch (KVException e) {
+            return failed(e);
+        }
         message.setKey(key);
-        Socket connection = connectHost();
-        message.sendMessage(connection);
-        KVMessage response = new KVMessage(connection);
-        if(!key.equals(response.getKey()))
-            throw new KVException(response);
-        return response.getValue();
+        return send(message, wait).thenApply(new Function<KVMessage, String>() {
+            @Override
+            public String apply(KVMessage response) {
+                if(!key.equals(response.getKey()))
+                    throw new CompletionException(new KVException(response));
+                return response.getValue();
+            }
+        });
     }
 
-    public void del(String key) throws KVException {
-    	KVMessage message = new KVMessage("delreq");
+    /**
+     * @return completes once the server has deleted key, or fails with a
+     *         KVException saying why not, at once if maxInFlight requests
+     *         are already outstanding
+     */
+    public CompletableFuture<Void> delAsync(String key) {
+        return delAsync(key, false);
+    }
+
+    private CompletableFuture<Void> delAsync(String key, boolean wait) {
+    	KVMessage message;
+        try {
+            message = new KVMessage("delreq");
+        } catch (KVException e) {
+            return failed(e);
+        }
         message.setKey(key);
-        Socket connection = connectHost();
-        message.sendMessage(connection);
-        KVMessage response = new KVMessage(connection);
-        if(!"Success".equals(response.getMessage()))
-            throw new KVException(response);
+        return expectSuccess(send(message, wait));
+    }
+
+    private static <T> CompletableFuture<T> failed(KVException e) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    public void put(String key, String value) throws KVException {
+        await(putAsync(key, value, true));
+    }
+
+    public String get(String key) throws KVException {
+        return await(getAsync(key, true));
+    }
+
+    public void del(String key) throws KVException {
+        await(delAsync(key, true));
     }
 
     public void ignoreNext() throws KVException {
     	KVMessage message = new KVMessage("ignoreNext");
-        Socket connection = connectHost();
-        message.sendMessage(connection);
-        KVMessage response = new KVMessage(connection);
-        if(!"Success".equals(response.getMessage())) {
-            throw new KVException(response);
-        }
+        await(expectSuccess(send(message, true)));
     }
 }
@@ -38,7 +38,7 @@ import java.net.Socket;
  * It uses a threadpool to ensure that none of it's methods are blocking.
  *
  */
-public class KVClientHandler implements NetworkHandler {
+public class KVClientHandler implements MessageHandler {
 
     public ThreadPool threadpool = null;
     public TPCMaster tpcMaster = null;
@@ -51,20 +51,42 @@ public class KVClientHandler implements NetworkHandler {
         initialize(connections, tpcMaster);
     }
 
+    /**
+     * @param threadpool where requests are run, eg. ThreadPool.perTask(n)
+     *                   for a thread per request
+     */
+    public KVClientHandler(ThreadPool threadpool, TPCMaster tpcMaster) {
+        this.threadpool = threadpool;
+        this.tpcMaster = tpcMaster;
+    }
+
     public void initialize(int connections, TPCMaster tpcMaster) {
         threadpool = new ThreadPool(connections);
         this.tpcMaster = tpcMaster;
     }
 
 
-    public class ClientHandler implements Runnable {
+    public class ClientHandler implements ThreadPool.RejectableJob {
 
         public Socket client = null;
+        // Already read off a keep-alive connection, null to read from client
+        private KVMessage request = null;
+        // Where replies go when a SocketServer in selector mode read request
+        private Replier replier = null;
 
         @Override
         public void run() {
+            // Replies go out in the format the request came in, tagged with
+            // its request id
+            boolean binary = false;
+            long requestId = -1;
+            boolean keepAlive = false;
+            boolean first = (request == null);
         	try {
-	        	KVMessage msg = new KVMessage(client);
+	        	KVMessage msg = first ? new KVMessage(client) : request;
+	        	binary = msg.isBinary();
+	        	requestId = msg.getRequestId();
+	        	keepAlive = msg.isKeepAlive();
 	            String type = msg.getMsgType();
 	            if("getreq".equals(type)) {
 	                String key = msg.getKey();
@@ -72,27 +94,82 @@ public class KVClientHandler implements NetworkHandler {
 	                KVMessage resp = new KVMessage("resp");
 	                resp.setKey(key);
 	                resp.setValue(value);
-	                resp.sendMessage(client);
+	                reply(resp, binary, requestId);
 	            } else if("putreq".equals(type) || "delreq".equals(type)) {
 	                tpcMaster.performTPCOperation(msg, "putreq".equals(type));
 	                KVMessage resp = new KVMessage("resp");
 	                resp.setMessage("Success");
-	                resp.sendMessage(client);
+	                reply(resp, binary, requestId);
 	            } else {
 	            	throw new KVException(new KVMessage("Unknown error: Could not handle message of type: " + type));
 	            }
         	} catch (KVException e) {
         		try {
-                    e.getMsg().sendMessage(client);
+                    reply(e.getMsg(), binary, requestId);
                 } catch (KVException e1) {
                     // We can fall through here.
                 }
         	}
+        	if (first && keepAlive) {
+        	    // More requests to come on this connection
+        	    KeepAliveReader.start(client, new KeepAliveReader.Dispatcher() {
+        	        @Override
+        	        public void dispatch(Socket c, KVMessage r) throws InterruptedException {
+        	            threadpool.addToQueue(new ClientHandler(c, r));
+        	        }
+        	    });
+        	}
+        }
+
+        private void reply(KVMessage resp, boolean binary, long requestId) throws KVException {
+            resp.setRequestId(requestId);
+            if (replier != null) {
+                replier.reply(resp);
+                return;
+            }
+            // Replies to pipelined requests share the connection
+            synchronized (client) {
+                resp.sendMessage(client, binary);
+            }
+        }
+
+        /**
+         * Sends reason back in place of a reply. A request still on the
+         * socket is never read, so that answer goes out as XML, which any
+         * client can read.
+         */
+        @Override
+        public void reject(KVMessage reason) {
+            try {
+                if (request != null) {
+                    reply(reason, request.isBinary(), request.getRequestId());
+                } else {
+                    reply(reason, false, -1);
+                }
+            } catch (KVException e) {
+                // Nothing more we can tell the client
+            }
         }
 
         public ClientHandler(Socket client) {
             this.client = client;
         }
+
+        /**
+         * @param request the next request on client's keep-alive connection.
+         */
+        public ClientHandler(Socket client, KVMessage request) {
+            this.client = client;
+            this.request = request;
+        }
+
+        /**
+         * @param replier where the reply to request goes.
+         */
+        public ClientHandler(KVMessage request, Replier replier) {
+            this.request = request;
+            this.replier = replier;
+        }
     }
 
     /*
@@ -109,4 +186,19 @@ public class KVClientHandler implements NetworkHandler {
             return; // ignore this error
         }
     }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see edu.berkeley.cs162.MessageHandler#handle(edu.berkeley.cs162.KVMessage, edu.berkeley.cs162.MessageHandler.Replier)
+     */
+    @Override
+    public void handle(KVMessage request, Replier replier) throws IOException {
+        Runnable r = new ClientHandler(request, replier);
+        try {
+            threadpool.addToQueue(r);
+        } catch (InterruptedException e) {
+            replier.close();
+        }
+    }
 }
@@ -0,0 +1,573 @@
+/**
+ * Client side of a connection to a Key-Value server.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends requests to one server and collects the replies.
+ *
+ * In binary mode every request goes over the same TCP connection, marked
+ * keep-alive and tagged with a request id, and the server echoes the id on
+ * its reply. Requests can be pipelined: send() returns as soon as the
+ * request is written, and receive() picks out the reply for an id no matter
+ * what order replies come back in. Several threads can share a connection.
+ *
+ * Each connection has a reader thread of its own that reads replies off it
+ * as they come in and hands each to the request it answers, so a thread
+ * waiting in receive() for a slow reply never holds up another's.
+ * callAsync() sends a request without any thread waiting on its reply; the
+ * reader completes its future instead.
+ *
+ * If the connection fails, requests outstanding on it fail and the next
+ * send() opens a new one. So does a send() after the connection has been
+ * idle for MAX_IDLE_MS, since the server may have dropped it by then.
+ *
+ * In XML mode, which has no framing, each request gets a socket of its own
+ * as before.
+ */
+public class KVConnection {
+    /** Idle time after which a connection is replaced rather than reused. */
+    public static final int MAX_IDLE_MS = KeepAliveReader.IDLE_TIMEOUT_MS / 2;
+
+    // Longest a reader thread waits for a reply before checking for
+    // requests that have timed out
+    private static final int READER_POLL_MS = 50;
+    // Longest the rest of a reply may take once its first byte is in
+    private static final int FRAME_TIMEOUT_MS = 10 * 1000;
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+    // Guards replacing current, and writes to it
+    private final Object writeLock = new Object();
+    private volatile Channel current = null;
+    // Outstanding binary requests
+    private final ConcurrentHashMap<Long, Waiter> waiters = new ConcurrentHashMap<Long, Waiter>();
+    // Sockets of outstanding XML requests
+    private final ConcurrentHashMap<Long, Socket> xmlSockets = new ConcurrentHashMap<Long, Socket>();
+
+    /**
+     * One TCP connection carrying binary frames.
+     */
+    private static final class Channel {
+        final Socket socket;
+        final OutputStream out;
+        // Only read by the channel's reader thread
+        final InputStream in;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile boolean broken = false;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Channel(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.out = socket.getOutputStream();
+            this.in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        void fail() {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do with it either way
+            }
+        }
+    }
+
+    /**
+     * An outstanding binary request, and where its reply goes.
+     */
+    private static final class Waiter {
+        final CompletableFuture<KVMessage> future = new CompletableFuture<KVMessage>();
+        // Sent with callAsync(), so nobody will receive() it
+        final boolean async;
+        // When to give up on the reply, or Long.MAX_VALUE to wait forever
+        final long deadline;
+        Channel channel = null;
+
+        Waiter(boolean async, int timeoutMs) {
+            this.async = async;
+            this.deadline = (timeoutMs > 0) ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @param binary whether to use binary frames over one persistent
+     *               connection, or XML over a connection per request
+     */
+    public KVConnection(String host, int port, boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    private Socket connect() throws KVException {
+        try {
+            return new Socket(host, port);
+        } catch (UnknownHostException e) {
+            throw new KVException(new KVMessage("resp", "Network Error: Could not connect"));
+        } catch (IOException e) {
+            throw new KVException(new KVMessage("resp", "Network Error: Could not create socket"));
+        }
+    }
+
+    /**
+     * @return a usable channel, opening a new one if need be. Only called
+     *         with writeLock held.
+     */
+    private Channel channel() throws KVException {
+        Channel channel = current;
+        if (channel != null && !channel.broken && channel.inFlight.get() == 0
+                && System.currentTimeMillis() - channel.lastUsed > MAX_IDLE_MS) {
+            channel.fail();
+        }
+        if (channel == null || channel.broken) {
+            try {
+                channel = new Channel(connect());
+            } catch (IOException e) {
+                throw new KVException(new KVMessage("resp", "Network Error: Could not create socket"));
+            }
+            startReader(channel);
+            current = channel;
+        }
+        return channel;
+    }
+
+    /**
+     * Connects now rather than on the next send(), to find out whether the
+     * server can be reached. Does nothing in XML mode, which connects for
+     * each request.
+     *
+     * @throws KVException if the server can't be reached.
+     */
+    public void open() throws KVException {
+        if (binary) {
+            synchronized (writeLock) {
+                channel();
+            }
+        }
+    }
+
+    /**
+     * @return false if the connection has failed or been closed, so the
+     *         next send() would have to open a new one. Always true in XML
+     *         mode.
+     */
+    public boolean isOpen() {
+        if (!binary) {
+            return true;
+        }
+        Channel channel = current;
+        return channel != null && !channel.broken;
+    }
+
+    /**
+     * Sends request without waiting for the reply. request itself is not
+     * changed.
+     *
+     * @return id to pass to receive() for the reply.
+     * @throws KVException if the request could not be sent.
+     */
+    public long send(KVMessage request) throws KVException {
+        if (binary) {
+            return send(request, new Waiter(false, 0));
+        }
+        long id = nextRequestId.incrementAndGet();
+        Socket socket = connect();
+        try {
+            request.sendMessage(socket);
+        } catch (KVException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        xmlSockets.put(id, socket);
+        return id;
+    }
+
+    /**
+     * Sends request over the binary connection, to be answered through
+     * waiter.
+     */
+    private long send(KVMessage request, Waiter waiter) throws KVException {
+        long id = nextRequestId.incrementAndGet();
+        KVMessage tagged = new KVMessage(request);
+        tagged.setRequestId(id);
+        tagged.setKeepAlive(true);
+        byte[] frame = tagged.toBinary();
+        Channel channel;
+        synchronized (writeLock) {
+            channel = channel();
+            // Before the request goes out, so its reply finds it
+            waiter.channel = channel;
+            waiters.put(id, waiter);
+            channel.inFlight.incrementAndGet();
+            try {
+                channel.out.write(frame);
+                channel.out.flush();
+            } catch (IOException e) {
+                channel.fail();
+                takeWaiter(id);
+                throw new KVException(new KVMessage("resp", "Network Error: Could not send data"));
+            }
+            channel.lastUsed = System.currentTimeMillis();
+        }
+        // The reader may have given up on the channel before it saw waiter
+        if (channel.broken) {
+            fail(id, "Network Error: Could not receive data");
+        }
+        return id;
+    }
+
+    /**
+     * Waits for the reply to a request sent with send(). Each id can only be
+     * received once, whether or not it succeeds.
+     *
+     * @param timeoutMs how long to wait for the reply, 0 to wait forever
+     * @throws KVException if there is no reply in time, or the connection
+     *         failed.
+     */
+    public KVMessage receive(long requestId, int timeoutMs) throws KVException {
+        if (!binary) {
+            Socket socket = xmlSockets.remove(requestId);
+            if (socket == null) {
+                throw new KVException(new KVMessage("resp", "Unknown Error: no request " + requestId));
+            }
+            try {
+                return new KVMessage(socket, timeoutMs);
+            } finally {
+                closeQuietly(socket);
+            }
+        }
+
+        Waiter waiter = waiters.get(requestId);
+        if (waiter == null || waiter.async) {
+            throw new KVException(new KVMessage("resp", "Unknown Error: no request " + requestId));
+        }
+        long deadline = (timeoutMs > 0) ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (deadline == Long.MAX_VALUE) {
+                        return waiter.future.get();
+                    }
+                    return waiter.future.get(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Waited out like a blocking socket read would
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    throw new KVException(new KVMessage("resp", "Network Error: Could not receive data"));
+                } catch (ExecutionException e) {
+                    throw (KVException) e.getCause();
+                }
+            }
+        } finally {
+            takeWaiter(requestId);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends request and waits for its reply.
+     *
+     * @param timeoutMs how long to wait for the reply, 0 to wait forever
+     */
+    public KVMessage call(KVMessage request, int timeoutMs) throws KVException {
+        return receive(send(request), timeoutMs);
+    }
+
+    /**
+     * Sends request without waiting for its reply, which completes the
+     * future instead. In XML mode, which has no framing, the reply is waited
+     * for before returning.
+     *
+     * @param timeoutMs how long to wait for the reply, 0 to wait forever
+     * @return the reply, or a KVException if there is no reply in time, or
+     *         the request could not be sent or the connection failed.
+     */
+    public CompletableFuture<KVMessage> callAsync(KVMessage request, int timeoutMs) {
+        if (!binary) {
+            CompletableFuture<KVMessage> future = new CompletableFuture<KVMessage>();
+            try {
+                future.complete(call(request, timeoutMs));
+            } catch (KVException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        Waiter waiter = new Waiter(true, timeoutMs);
+        try {
+            send(request, waiter);
+        } catch (KVException e) {
+            waiter.future.completeExceptionally(e);
+        }
+        return waiter.future;
+    }
+
+    /**
+     * @return the waiter for requestId, no longer outstanding, or null if
+     *         it has already been taken.
+     */
+    private Waiter takeWaiter(long requestId) {
+        Waiter waiter = waiters.remove(requestId);
+        if (waiter != null) {
+            waiter.channel.inFlight.decrementAndGet();
+            waiter.channel.lastUsed = System.currentTimeMillis();
+        }
+        return waiter;
+    }
+
+    /**
+     * @return the waiter to hand the outcome of requestId to, or null if
+     *         nobody waits for it any more. An async request is done with
+     *         once it has an outcome; any other stays outstanding until it
+     *         is received.
+     */
+    private Waiter claim(long requestId) {
+        Waiter waiter = waiters.get(requestId);
+        if (waiter != null && waiter.async) {
+            return (takeWaiter(requestId) != null) ? waiter : null;
+        }
+        return waiter;
+    }
+
+    /**
+     * Starts channel's reader thread.
+     */
+    private void startReader(final Channel channel) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies(channel);
+            }
+        }, "KVConnection-" + channel.socket.getLocalSocketAddress());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Hands the replies that come in on channel to their requests, and
+     * fails async requests that go unanswered for too long, until the
+     * channel fails or is closed.
+     */
+    private void readReplies(Channel channel) {
+        long nextExpiry = System.currentTimeMillis() + READER_POLL_MS;
+        while (true) {
+            KVMessage next = null;
+            boolean failed = false;
+            try {
+                if (awaitFrame(channel)) {
+                    next = KVMessage.readFrame(channel.in);
+                    failed = (next == null);
+                }
+            } catch (IOException e) {
+                failed = true;
+            } catch (KVException e) {
+                failed = true;
+            }
+
+            if (failed) {
+                channel.fail();
+                failWaiters(channel, "Network Error: Could not receive data");
+                return;
+            }
+            if (next != null) {
+                // Replies to requests nobody waits for any more are dropped
+                Waiter waiter = claim(next.getRequestId());
+                if (waiter != null) {
+                    waiter.future.complete(next);
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now >= nextExpiry) {
+                expireWaiters(channel, now);
+                nextExpiry = now + READER_POLL_MS;
+            }
+        }
+    }
+
+    /**
+     * Waits up to READER_POLL_MS for the next reply to start, without
+     * taking any of it.
+     *
+     * @return whether something, if only the end of the stream, is there
+     *         to read.
+     */
+    private static boolean awaitFrame(Channel channel) throws IOException {
+        channel.socket.setSoTimeout(READER_POLL_MS);
+        channel.in.mark(1);
+        try {
+            channel.in.read();
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+        channel.in.reset();
+        // Only the wait for the next reply is short; a reply split across
+        // packets gets longer to arrive in full
+        channel.socket.setSoTimeout(FRAME_TIMEOUT_MS);
+        return true;
+    }
+
+    /**
+     * Fails channel's async requests whose replies are overdue.
+     */
+    private void expireWaiters(Channel channel, long now) {
+        for (Map.Entry<Long, Waiter> entry : waiters.entrySet()) {
+            Waiter waiter = entry.getValue();
+            if (waiter.channel == channel && waiter.deadline <= now) {
+                fail(entry.getKey(), "Network Error: Could not receive data");
+            }
+        }
+    }
+
+    private void failWaiters(Channel channel, String message) {
+        for (Map.Entry<Long, Waiter> entry : waiters.entrySet()) {
+            if (entry.getValue().channel == channel) {
+                fail(entry.getKey(), message);
+            }
+        }
+    }
+
+    private void fail(long requestId, String message) {
+        Waiter waiter = claim(requestId);
+        if (waiter != null) {
+            try {
+                waiter.future.completeExceptionally(new KVException(new KVMessage("resp", message)));
+            } catch (KVException e) {
+                // This won't happen.
+                waiter.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Sends all of requests before waiting for any reply. If one can't be
+     * sent or received, those after it are given up on.
+     *
+     * @param timeoutMs how long to wait for each reply, 0 to wait forever
+     * @return the replies, in the order of requests.
+     */
+    public List<KVMessage> pipeline(List<KVMessage> requests, int timeoutMs) throws KVException {
+        long[] ids = new long[requests.size()];
+        int sent = 0;
+        int received = 0;
+        try {
+            for (; sent < ids.length; sent++) {
+                ids[sent] = send(requests.get(sent));
+            }
+            List<KVMessage> replies = new ArrayList<KVMessage>(ids.length);
+            while (received < sent) {
+                replies.add(receive(ids[received++], timeoutMs));
+            }
+            return replies;
+        } finally {
+            for (int i = received; i < sent; i++) {
+                abandon(ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Forgets a request sent with send() that will never be received.
+     */
+    private void abandon(long requestId) {
+        if (binary) {
+            takeWaiter(requestId);
+            return;
+        }
+        Socket socket = xmlSockets.remove(requestId);
+        if (socket != null) {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return how many requests have been sent and are still waiting to be
+     *         received or to fail.
+     */
+    public int getOutstanding() {
+        return waiters.size() + xmlSockets.size();
+    }
+
+    /**
+     * Closes the connection. Outstanding requests fail; later ones open a new
+     * connection.
+     */
+    public void close() {
+        synchronized (writeLock) {
+            if (current != null) {
+                current.fail();
+                current = null;
+            }
+        }
+        for (Long id : xmlSockets.keySet()) {
+            Socket socket = xmlSockets.remove(id);
+            if (socket != null) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more to do with it either way
+        }
+    }
+}
@@ -30,16 +30,26 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -59,16 +69,66 @@ import org.xml.sax.SAXException;
 /**
  * This is the object that is used to generate messages the XML based messages
  * for communication between clients and servers.
+ *
+ * Messages can also go over the wire as compact binary frames:
+ *
+ *   BINARY_MAGIC (1) | length of the rest (4) | type (1) | fields present (1)
+ *   | request id (8) | op id (8, if numeric) | op id, key, value, message
+ *
+ * where every string field that is present is an int length followed by
+ * UTF-8. The sender picks the format; receivers tell the two apart by the
+ * first byte, which can't start an XML document, and answer in the format
+ * they were asked in. XML remains the default.
+ *
+ * Since frames carry their own length, a binary connection can carry many
+ * messages. A request marked keep-alive asks the server to keep reading
+ * requests off the connection, and replies carry the request id of the
+ * request they answer so that requests can be pipelined. See KVConnection.
+ *
+ * A batchreq carries several putreqs and delreqs under one op id, so that
+ * TPCMaster can prepare and decide them in a single 2PC round. In a frame
+ * they follow the other fields as a count and then one nested frame each.
  */
 public class KVMessage implements Serializable {
 
     public static final long serialVersionUID = 6473128480951955693L;
 
+    /** First byte of every binary frame. */
+    public static final int BINARY_MAGIC = 0xB1;
+
+    // Type codes on the wire are indexes into this array
+    private static final String[] BINARY_TYPES = { "getreq", "putreq", "delreq", "resp",
+            "register", "ready", "commit", "abort", "ack", "ignoreNext", "batchreq" };
+    private static final int HAS_KEY = 1;
+    private static final int HAS_VALUE = 2;
+    private static final int HAS_MESSAGE = 4;
+    private static final int HAS_NUMERIC_OP_ID = 8;
+    private static final int HAS_OP_ID = 16;
+    private static final int HAS_REQUEST_ID = 32;
+    private static final int KEEP_ALIVE = 64;
+    private static final int HAS_BATCH = 128;
+    // Bigger than any valid message can be
+    static final int MAX_FRAME_BYTES = 4 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public String msgType = null;
     public String key = null;
     public String value = null;
     public String message = null;
     public String tpcOpId = null;
+    // Operations of a batchreq
+    public ArrayList<KVMessage> batch = null;
+
+    // Whether this message was received as a binary frame
+    private transient boolean binary = false;
+    // Pairs a request with its reply on a persistent connection, -1 if none
+    private transient long requestId = -1;
+    // Whether the sender will keep sending requests on the same connection
+    private transient boolean keepAlive = false;
+
+    // For readFrame
+    private KVMessage() {
+    }
 
     /*
      * HINT: You may need to use this for constructors dealing with sockets:
@@ -98,6 +158,12 @@ public class KVMessage implements Serializable {
         value = kvm.value;
         message = kvm.message;
         tpcOpId = kvm.tpcOpId;
+        if (kvm.batch != null) {
+            batch = new ArrayList<KVMessage>(kvm.batch);
+        }
+        binary = kvm.binary;
+        requestId = kvm.requestId;
+        keepAlive = kvm.keepAlive;
     }
 
     boolean validMsgType(String msgType) {
@@ -105,7 +171,8 @@ public class KVMessage implements Serializable {
                 || "abort".equals(msgType) || "ack".equals(msgType)
                 || "getreq".equals(msgType) || "putreq".equals(msgType)
                 || "delreq".equals(msgType) || "resp".equals(msgType)
-                || "register".equals(msgType) || "commit".equals(msgType)) {
+                || "register".equals(msgType) || "commit".equals(msgType)
+                || "batchreq".equals(msgType)) {
     	    return true;
     	}
     	return false;
@@ -155,10 +222,102 @@ public class KVMessage implements Serializable {
      * @throws KVException if there is an error in parsing the message.
      */
     public KVMessage(Socket sock, int timeout) throws KVException {
-		try {
-			sock.setSoTimeout(timeout);
+        try {
+            sock.setSoTimeout(timeout);
+            PushbackInputStream in =
+                    new PushbackInputStream(new NoCloseInputStream(sock.getInputStream()));
+            int first = in.read();
+            if (first == BINARY_MAGIC) {
+                binary = true;
+                readBinary(new DataInputStream(in));
+            } else {
+                if (first >= 0) {
+                    in.unread(first);
+                }
+                readXML(in);
+            }
+            checkSizes();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new KVException(new KVMessage("resp", "Network Error: Could not receive data"));
+        }
+    }
+
+    /**
+     * Reads the next message off a connection that carries binary frames,
+     * such as the requests after the first on a keep-alive connection.
+     *
+     * @return the message, or null if the peer closed the connection.
+     * @throws SocketTimeoutException if nothing arrived within the socket's
+     *         timeout. The connection can still be used.
+     * @throws IOException if the connection failed, or timed out partway
+     *         through a frame.
+     * @throws KVException if the frame is not valid. The connection can't be
+     *         trusted to be at the start of a frame afterwards.
+     */
+    static KVMessage readFrame(InputStream in) throws IOException, KVException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        if (first != BINARY_MAGIC) {
+            throw new KVException(new KVMessage("resp", "Unknown Error: Received malformed binary message"));
+        }
+        KVMessage msg = new KVMessage();
+        msg.binary = true;
+        try {
+            msg.readBinary(new DataInputStream(in));
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Timed out partway through a frame", e);
+        }
+        msg.checkSizes();
+        return msg;
+    }
+
+    /**
+     * Decodes a whole message, binary frame or XML document, that has already
+     * been read off a connection.
+     *
+     * @throws KVException if it is not a valid message.
+     */
+    static KVMessage decode(byte[] bytes) throws KVException {
+        try {
+            InputStream in = new ByteArrayInputStream(bytes);
+            if (bytes.length > 0 && (bytes[0] & 0xff) == BINARY_MAGIC) {
+                KVMessage msg = readFrame(in);
+                if (in.available() != 0) {
+                    throw new KVException(new KVMessage("resp", "Unknown Error: Received malformed binary message"));
+                }
+                return msg;
+            }
+            KVMessage msg = new KVMessage();
+            msg.readXML(in);
+            msg.checkSizes();
+            return msg;
+        } catch (IOException e) {
+            // Only a frame that stops short gets here
+            throw new KVException(new KVMessage("resp", "Unknown Error: Received malformed binary message"));
+        }
+    }
+
+    private void checkSizes() throws KVException {
+        if (this.key != null && this.key.length() > 256) {
+            throw new KVException(new KVMessage("resp", "Oversized key"));
+        }
+        if (this.value != null && this.value.length() > (256 * 1024)) {
+            throw new KVException(new KVMessage("resp", "Oversized value"));
+        }
+        if (this.batch != null) {
+            for (KVMessage op : batch) {
+                op.checkSizes();
+            }
+        }
+    }
+
+    private void readXML(InputStream in) throws KVException, IOException {
+        try {
             Document parsedSoc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
-                    .parse(new NoCloseInputStream(sock.getInputStream()));
+                    .parse(in);
             parsedSoc.getDocumentElement().normalize();
             NodeList nList = parsedSoc.getElementsByTagName("KVMessage");
             Element nNode = (Element) nList.item(0);
@@ -185,6 +344,22 @@ public class KVMessage implements Serializable {
                 }
             } else if ("ready".equals(msgType) || "commit".equals(msgType) || "ack".equals(msgType)) {
                 this.tpcOpId = getFieldFromKVMessage(nNode, "TPCOpId");
+            } else if ("batchreq".equals(msgType)) {
+                this.tpcOpId = getFieldFromKVMessage(nNode, "TPCOpId");
+                NodeList ops = nNode.getElementsByTagName("Op");
+                this.batch = new ArrayList<KVMessage>(ops.getLength());
+                for (int i = 0; i < ops.getLength(); i++) {
+                    Element opNode = (Element) ops.item(i);
+                    KVMessage op = new KVMessage(opNode.getAttribute("type"));
+                    if (!op.isBatchable()) {
+                        throw new KVException(new KVMessage("resp", "Unknwon Error: msgType is unknown"));
+                    }
+                    op.key = getFieldFromKVMessage(opNode, "Key");
+                    if ("putreq".equals(op.msgType)) {
+                        op.value = getFieldFromKVMessage(opNode, "Value");
+                    }
+                    this.batch.add(op);
+                }
             } else if ("abort".equals(msgType)) {
                 this.tpcOpId = getFieldFromKVMessage(nNode, "TPCOpId");
                 if(nNode.getElementsByTagName("Message").getLength() == 1) {
@@ -193,20 +368,125 @@ public class KVMessage implements Serializable {
             } else {
                 throw new KVException(new KVMessage("resp", "Unknwon Error: msgType is unknown"));
             }
-            if (this.key != null && this.key.length() > 256) {
-                throw new KVException(new KVMessage("resp", "Oversized key"));
-            }
-            if (this.value != null && this.value.length() > (256 * 1024)) {
-                throw new KVException(new KVMessage("resp", "Oversized value"));
-            }
         } catch (SAXException e) {
             throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new KVException(new KVMessage("resp", "Network Error: Could not receive data"));
         } catch (ParserConfigurationException e) {
             throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
-		}
+        }
+    }
+
+    /**
+     * Reads the rest of a binary frame, after its BINARY_MAGIC.
+     */
+    private void readBinary(DataInputStream in) throws KVException, IOException {
+        int length = in.readInt();
+        if (length < 2 || length > MAX_FRAME_BYTES) {
+            throw new KVException(new KVMessage("resp", "Unknown Error: Received malformed binary message"));
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(frame));
+        try {
+            int type = body.readUnsignedByte();
+            if (type >= BINARY_TYPES.length) {
+                throw new KVException(new KVMessage("resp", "Unknwon Error: msgType is unknown"));
+            }
+            msgType = BINARY_TYPES[type];
+            int fields = body.readUnsignedByte();
+            keepAlive = (fields & KEEP_ALIVE) != 0;
+            if ((fields & HAS_REQUEST_ID) != 0) {
+                requestId = body.readLong();
+            }
+            if ((fields & HAS_NUMERIC_OP_ID) != 0) {
+                tpcOpId = Long.toString(body.readLong());
+            }
+            if ((fields & HAS_OP_ID) != 0) {
+                tpcOpId = readString(body);
+            }
+            if ((fields & HAS_KEY) != 0) {
+                key = readString(body);
+            }
+            if ((fields & HAS_VALUE) != 0) {
+                value = readString(body);
+            }
+            if ((fields & HAS_MESSAGE) != 0) {
+                message = readString(body);
+            }
+            if ((fields & HAS_BATCH) != 0) {
+                readBatch(body);
+            }
+            if (body.available() != 0) {
+                throw new EOFException();
+            }
+        } catch (EOFException e) {
+            // Fields that run past the end of the frame, or stop short of it
+            throw new KVException(new KVMessage("resp", "Unknown Error: Received malformed binary message"));
+        }
+    }
+
+    private void readBatch(DataInputStream in) throws KVException, IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new EOFException();
+        }
+        batch = new ArrayList<KVMessage>(count);
+        for (int i = 0; i < count; i++) {
+            KVMessage op = readFrame(in);
+            if (op == null) {
+                throw new EOFException();
+            }
+            if (!op.isBatchable()) {
+                throw new KVException(new KVMessage("resp", "Unknwon Error: msgType is unknown"));
+            }
+            batch.add(op);
+        }
+    }
+
+    private boolean isBatchable() {
+        return "putreq".equals(msgType) || "delreq".equals(msgType);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * @return whether this message arrived as a binary frame, in which case
+     * replies to it should be sent as binary too.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * @param requestId id to send in a binary frame, or -1 for none. Replies
+     *                  should carry the id of the request they answer.
+     */
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * @return whether the sender of this request keeps its connection open
+     * for more requests.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
     }
 
 	public final String getKey() {
@@ -249,6 +529,26 @@ public class KVMessage implements Serializable {
         this.tpcOpId = tpcOpId;
     }
 
+    /**
+     * @return the putreqs and delreqs of a batchreq, or null
+     */
+    public List<KVMessage> getBatch() {
+        return batch;
+    }
+
+    /**
+     * @param batch putreqs and delreqs to send together in a batchreq
+     * @throws KVException if batch holds any other type of message
+     */
+    public void setBatch(List<KVMessage> batch) throws KVException {
+        for (KVMessage op : batch) {
+            if (!op.isBatchable()) {
+                throw new KVException(new KVMessage("resp", "Unknwon Error: msgType is unknown"));
+            }
+        }
+        this.batch = new ArrayList<KVMessage>(batch);
+    }
+
     /**
      * Generate the serialized XML representation for this message.
      *
@@ -301,6 +601,23 @@ public class KVMessage implements Serializable {
     	    	    tpcElem.appendChild(doc.createTextNode(this.tpcOpId));
     	    		xml.appendChild(tpcElem);
 	    		}
+            } else if ("batchreq".equals(msgType)) {
+                Element tpcElem = doc.createElement("TPCOpId");
+                tpcElem.appendChild(doc.createTextNode(this.tpcOpId));
+                xml.appendChild(tpcElem);
+                for (KVMessage op : batch) {
+                    Element opElem = doc.createElement("Op");
+                    opElem.setAttribute("type", op.msgType);
+                    Element keyElem = doc.createElement("Key");
+                    keyElem.appendChild(doc.createTextNode(op.key));
+                    opElem.appendChild(keyElem);
+                    if ("putreq".equals(op.msgType)) {
+                        Element valueElem = doc.createElement("Value");
+                        valueElem.appendChild(doc.createTextNode(op.value));
+                        opElem.appendChild(valueElem);
+                    }
+                    xml.appendChild(opElem);
+                }
             } else if ("ready".equals(msgType) || "commit".equals(msgType) || "ack".equals(msgType)) {
             	Element tpcElem = doc.createElement("TPCOpId");
 	    	    tpcElem.appendChild(doc.createTextNode(this.tpcOpId));
@@ -341,6 +658,101 @@ public class KVMessage implements Serializable {
         }
     }
 
+    /**
+     * Generate the binary frame for this message.
+     *
+     * @return the frame, starting with BINARY_MAGIC
+     * @throws KVException
+     */
+    public byte[] toBinary() throws KVException {
+        if (this.key != null && this.key.length() > 256) {
+            throw new KVException(new KVMessage("resp", "Oversized key"));
+        }
+        if (this.value != null && this.value.length() > (256 * 1024)) {
+            throw new KVException(new KVMessage("resp", "Oversized value"));
+        }
+        int type = -1;
+        for (int i = 0; i < BINARY_TYPES.length; i++) {
+            if (BINARY_TYPES[i].equals(msgType)) {
+                type = i;
+            }
+        }
+        if (type < 0) {
+            throw new KVException(new KVMessage("resp", "Unknwon Error: msgType is unknown"));
+        }
+
+        Long numericOpId = null;
+        if (tpcOpId != null) {
+            try {
+                numericOpId = Long.valueOf(tpcOpId);
+                if (!numericOpId.toString().equals(tpcOpId)) {
+                    // Would not come back the same, eg. "+1" or "007"
+                    numericOpId = null;
+                }
+            } catch (NumberFormatException e) {
+                // Sent as a string instead
+            }
+        }
+        int fields = 0;
+        fields |= (key != null) ? HAS_KEY : 0;
+        fields |= (value != null) ? HAS_VALUE : 0;
+        fields |= (message != null) ? HAS_MESSAGE : 0;
+        fields |= (numericOpId != null) ? HAS_NUMERIC_OP_ID : 0;
+        fields |= (tpcOpId != null && numericOpId == null) ? HAS_OP_ID : 0;
+        fields |= (requestId >= 0) ? HAS_REQUEST_ID : 0;
+        fields |= keepAlive ? KEEP_ALIVE : 0;
+        fields |= (batch != null) ? HAS_BATCH : 0;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(BINARY_MAGIC);
+            out.writeInt(0); // Length, filled in below
+            out.writeByte(type);
+            out.writeByte(fields);
+            if (requestId >= 0) {
+                out.writeLong(requestId);
+            }
+            if (numericOpId != null) {
+                out.writeLong(numericOpId);
+            } else if (tpcOpId != null) {
+                writeString(out, tpcOpId);
+            }
+            if (key != null) {
+                writeString(out, key);
+            }
+            if (value != null) {
+                writeString(out, value);
+            }
+            if (message != null) {
+                writeString(out, message);
+            }
+            if (batch != null) {
+                out.writeInt(batch.size());
+                for (KVMessage op : batch) {
+                    out.write(op.toBinary());
+                }
+            }
+            out.flush();
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 5;
+            frame[1] = (byte) (length >>> 24);
+            frame[2] = (byte) (length >>> 16);
+            frame[3] = (byte) (length >>> 8);
+            frame[4] = (byte) length;
+            return frame;
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new KVException(new KVMessage("resp", "Unknown Error: " + e.getMessage()));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String field) throws IOException {
+        byte[] bytes = field.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
     /**
      * Send this message to another host via socket. You will need to
      * flush the stream by calling sock.shutdownOutput()
@@ -360,4 +772,28 @@ public class KVMessage implements Serializable {
         }
     }
 
+    /**
+     * Send this message as a binary frame if binary is set, and as XML
+     * otherwise. A frame carries its own length, so the socket stays open
+     * for writing after it.
+     *
+     * @param sock Socket with which to send this message
+     * @param binary whether to send a binary frame
+     * @throws KVException
+     */
+    public void sendMessage(Socket sock, boolean binary) throws KVException {
+        if (!binary) {
+            sendMessage(sock);
+            return;
+        }
+        byte[] frame = toBinary();
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write(frame);
+            out.flush();
+        } catch (IOException e) {
+            throw new KVException(new KVMessage("resp", "Network Error: Could not send data"));
+        }
+    }
+
 }
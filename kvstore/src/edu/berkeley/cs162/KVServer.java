@@ -30,6 +30,11 @@
  */
 package edu.berkeley.cs162;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
 /**
  * This class defines the slave key value servers. Each individual KVServer
  * would be a fully functioning Key-Value server. For Project 3, you would
@@ -46,21 +51,82 @@ public class KVServer implements KeyValueInterface {
     public static final int MAX_KEY_SIZE = 256;
     public static final int MAX_VAL_SIZE = 256 * 1024;
 
+    // Reads the store on cache misses
+    private final SingleFlight.Loader storeLoader = new SingleFlight.Loader() {
+        @Override
+        public String load(String key) throws KVException {
+            return dataStore.get(key);
+        }
+    };
+    // Misses on the same key share one read of the store
+    private SingleFlight storeReads = null;
+
+    /**
+     * How long the op id of a key's last 2PC write is remembered. Well past
+     * the minute or two TPCMaster keeps retrying a repair, after which no
+     * older write for the key can still arrive.
+     */
+    public static final long APPLIED_OP_TTL_MS = 10 * 60 * 1000;
+
+    // Op id of the last 2PC write applied to each key, dels included, for
+    // APPLIED_OP_TTL_MS after it was applied
+    private final ConcurrentHashMap<String, AppliedOp> appliedOps = new ConcurrentHashMap<String, AppliedOp>();
+    private final AtomicLong nextPrune = new AtomicLong(System.currentTimeMillis() + APPLIED_OP_TTL_MS);
+
     /**
      * @param numSets number of sets in the data Cache.
      */
     public KVServer(int numSets, int maxElemsPerSet) {
-        dataStore = new KVStore();
-        dataCache = new KVCache(numSets, maxElemsPerSet);
+        this(new KVStore(), new KVCache(numSets, maxElemsPerSet));
+    }
 
-        AutoGrader.registerKVServer(dataStore, dataCache);
+    /**
+     * @param numSets number of sets in the data Cache.
+     * @param maxCacheBytes bound on the bytes held by the data Cache, split
+     *                      evenly between its sets.
+     */
+    public KVServer(int numSets, int maxElemsPerSet, long maxCacheBytes) {
+        this(new KVStore(), new KVCache(numSets, maxElemsPerSet, maxCacheBytes));
+    }
+
+    /**
+     * @param numSets number of sets in the data Cache.
+     * @param admissionFilter whether the data Cache only admits keys that are
+     *                        requested more often than what they'd evict.
+     */
+    public KVServer(int numSets, int maxElemsPerSet, boolean admissionFilter) {
+        this(new KVStore(), new KVCache(numSets, maxElemsPerSet, admissionFilter));
     }
 
-    // Visible for testing
+    /**
+     * @param numSets number of sets in the data Cache.
+     * @param arena where both the data Store and the data Cache keep their
+     *              values, off the heap.
+     */
+    public KVServer(int numSets, int maxElemsPerSet, ValueArena arena) {
+        this(new KVStore(arena), new KVCache(numSets, maxElemsPerSet, arena));
+    }
+
+    /**
+     * @param numSets number of sets in the data Cache.
+     * @param store where to keep the data, eg. a LogStructuredStore to have
+     *              it survive restarts.
+     */
+    public KVServer(int numSets, int maxElemsPerSet, KVStore store) {
+        this(store, new KVCache(numSets, maxElemsPerSet));
+    }
+
+    /**
+     * Serves from the given store and cache; the other constructors all
+     * come here. Also visible for testing.
+     */
     public KVServer(KVStore store, KVCache cache) {
-    	dataStore = store;
-    	dataCache = cache;
-	}
+        dataStore = store;
+        dataCache = cache;
+        storeReads = new SingleFlight(dataCache, storeLoader);
+
+        AutoGrader.registerKVServer(dataStore, dataCache);
+    }
 
 	@Override
     public void put(String key, String value) throws KVException {
@@ -78,19 +144,22 @@ public class KVServer implements KeyValueInterface {
             throw new KVException(new KVMessage("resp", "Oversized value"));
         }
 
-        synchronized(dataCache.getWriteLock(key)) {
-            // Since we're only synchronizing based on the writelock (ie. set)
-            // We know this call is parallel across sets.
+        WriteLock setLock = dataCache.getWriteLock(key);
+        setLock.lock();
+        try {
+            // Since we're only locking the set, we know this call is
+            // parallel across sets.
             if(dataCache.get(key) != null) {
                 dataCache.put(key, value);
             }
             // The value corresponding to the key will never
             // differ between the cache and the store because
             // we can't write the same key at the same time due
-            // to the outer lock.
-            synchronized(this) {
-                dataStore.put(key, value);
-            }
+            // to the outer lock. The store itself is thread-safe.
+            dataStore.put(key, value);
+        } finally {
+            storeReads.forget(key);
+            setLock.unlock();
         }
 
         // Must be called before returning
@@ -102,27 +171,18 @@ public class KVServer implements KeyValueInterface {
         // Must be called before anything else
         AutoGrader.agKVServerGetStarted(key);
 
-        String value = null;
-        synchronized(dataCache.getWriteLock(key)) {
-            String dcValue = dataCache.get(key);
-            // If the value isn't in the cache we have to go to the keystore.
-            if(dcValue == null) {
-                synchronized(this) {
-                    try {
-                        String dsValue = dataStore.get(key);
-                        value = dsValue;
-                        dataCache.put(key, value);
-                    } catch(KVException e) {
-                        // Must be called before return or abnormal exit
-                        AutoGrader.agKVServerGetFinished(key);
-                        throw e;
-                    }
-                }
-            } else {
-                // Otherwise we can use the value in the cache, which will always be the same
-                // as the value in the store due to our constraints above.
-                // Also this is parallel across sets because it's only synchronized based on the set lock.
-                value = dcValue;
+        // Cache hits don't take any lock. The cache always agrees with the
+        // store because writers update both while holding the set lock.
+        String value = dataCache.get(key);
+        if(value == null) {
+            // Misses read the store without the set lock, once for all
+            // concurrent misses on the key
+            try {
+                value = storeReads.get(key);
+            } catch(KVException e) {
+                // Must be called before return or abnormal exit
+                AutoGrader.agKVServerGetFinished(key);
+                throw e;
             }
         }
 
@@ -136,33 +196,152 @@ public class KVServer implements KeyValueInterface {
         // Must be called before anything else
         AutoGrader.agKVServerDelStarted(key);
 
-        synchronized(dataCache.getWriteLock(key)) {
-            // If it's in our cache we know we must delete in both, so we perform the safe
-            // parallel delete, followed by the synchronized delete in the store.
+        WriteLock setLock = dataCache.getWriteLock(key);
+        setLock.lock();
+        try {
+            // If it's in our cache we know we must delete in both.
             if(dataCache.get(key) != null) {
                 dataCache.del(key);
-                synchronized(this) {
-                    dataStore.del(key);
-                }
+                dataStore.del(key);
             } else {
-                // Otherwise it could still be in the store, so we must synchronize
-                // accesses to the store and check to see if it's there.
-                synchronized(this) {
-                    try {
-                        dataStore.del(key);
-                    } catch (KVException e) {
-                        // Must be called before return or abnormal exit
-                        AutoGrader.agKVServerDelFinished(key);
-                        throw e;
-                    }
+                // Otherwise it could still be in the store, which will
+                // tell us if it isn't there.
+                try {
+                    dataStore.del(key);
+                } catch (KVException e) {
+                    // Must be called before return or abnormal exit
+                    AutoGrader.agKVServerDelFinished(key);
+                    throw e;
                 }
             }
+        } finally {
+            storeReads.forget(key);
+            setLock.unlock();
         }
 
         // Must be called before returning
         AutoGrader.agKVServerDelFinished(key);
     }
 
+    /**
+     * Applies a put committed by 2PC, unless the key has already had a later
+     * 2PC write. The master can deliver the commits for a key out of order,
+     * such as to a replica that voted late or missed the write, and op ids
+     * put them back in order: they only grow, and the writes to a key get
+     * them in the order they commit. Op ids that aren't numbers aren't
+     * ordered, and always apply.
+     *
+     * @return false if the put was older than the key's last write, and
+     *         was dropped.
+     */
+    public boolean putIfNewer(String key, String value, String opId) throws KVException {
+        Long version = version(opId);
+        WriteLock setLock = dataCache.getWriteLock(key);
+        setLock.lock();
+        try {
+            if (!isNewer(key, version)) {
+                return false;
+            }
+            put(key, value);
+            applied(key, version);
+            return true;
+        } finally {
+            setLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a del committed by 2PC, unless the key has already had a later
+     * 2PC write; see putIfNewer. A del of a key that is already gone still
+     * counts, so an older put can't bring it back.
+     *
+     * @return false if the del was older than the key's last write, and
+     *         was dropped.
+     */
+    public boolean delIfNewer(String key, String opId) {
+        Long version = version(opId);
+        WriteLock setLock = dataCache.getWriteLock(key);
+        setLock.lock();
+        try {
+            if (!isNewer(key, version)) {
+                return false;
+            }
+            try {
+                del(key);
+            } catch (KVException e) {
+                // Already gone
+            }
+            applied(key, version);
+            return true;
+        } finally {
+            setLock.unlock();
+        }
+    }
+
+    /** Only called with the key's set lock held. */
+    private boolean isNewer(String key, Long version) {
+        if (version == null) {
+            return true;
+        }
+        AppliedOp last = appliedOps.get(key);
+        return last == null || last.version < version;
+    }
+
+    /** Only called with the key's set lock held. */
+    private void applied(String key, Long version) {
+        if (version == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        appliedOps.put(key, new AppliedOp(version, now));
+        long due = nextPrune.get();
+        if (now >= due && nextPrune.compareAndSet(due, now + APPLIED_OP_TTL_MS / 2)) {
+            pruneAppliedOps(now);
+        }
+    }
+
+    /**
+     * Forgets the op ids of writes applied more than APPLIED_OP_TTL_MS
+     * before now, so keys that are no longer written, deleted ones
+     * included, don't keep an entry forever. Called every so often by the
+     * writes themselves.
+     */
+    public void pruneAppliedOps(long now) {
+        for (Map.Entry<String, AppliedOp> entry : appliedOps.entrySet()) {
+            AppliedOp op = entry.getValue();
+            if (now - op.at > APPLIED_OP_TTL_MS) {
+                // Unless a newer write replaced it meanwhile
+                appliedOps.remove(entry.getKey(), op);
+            }
+        }
+    }
+
+    /**
+     * @return how many keys' last op ids are remembered.
+     */
+    public int getAppliedOpCount() {
+        return appliedOps.size();
+    }
+
+    private static final class AppliedOp {
+        final long version;
+        // When it was applied here, by this server's clock
+        final long at;
+
+        AppliedOp(long version, long at) {
+            this.version = version;
+            this.at = at;
+        }
+    }
+
+    private static Long version(String opId) {
+        try {
+            return (opId == null) ? null : Long.valueOf(opId);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but that
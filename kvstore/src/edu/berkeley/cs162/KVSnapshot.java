@@ -0,0 +1,330 @@
+/**
+ * Binary snapshot format for the Key-Value store.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes KVStore snapshots in a compact binary format:
+ *
+ *   header:  magic (4) | version (4) | block size (4)
+ *   blocks:  entries of key length (4) | key | value length (4) | value
+ *   index:   block count (4), then per block
+ *            offset (8) | length (4) | entry count (4) | CRC32 (4)
+ *   trailer: index offset (8) | magic (4)
+ *
+ * Keys and values are UTF-8. Entries are packed into blocks of about
+ * blockSize bytes; an entry larger than that gets a block of its own.
+ *
+ * Thanks to the index, blocks are checked and decoded in parallel on the
+ * common fork-join pool, straight into a map sized for all the entries.
+ * A snapshot that fails any check is rejected as a whole.
+ */
+final class KVSnapshot {
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x4b565331;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int INDEX_ENTRY_BYTES = 20;
+    private static final int TRAILER_BYTES = 12;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private KVSnapshot() {
+    }
+
+    /**
+     * Streams out the pairs of store, one block at a time.
+     */
+    static void write(KVStore store, String fileName, int blockSize)
+            throws IOException, KVException {
+        FileChannel out = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(blockSize).flip();
+            writeFully(out, header);
+
+            BlockWriter blocks = new BlockWriter(out, blockSize);
+            for (String key : store.keys()) {
+                String value = store.lookup(key);
+                if (value == null) {
+                    // Removed since we listed the keys
+                    continue;
+                }
+                blocks.add(key.getBytes(UTF8), value.getBytes(UTF8));
+            }
+            blocks.finish();
+            out.force(true);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return every pair in the snapshot.
+     * @throws IOException if the file is not a snapshot or is damaged.
+     */
+    static ConcurrentHashMap<String, String> read(String fileName) throws IOException {
+        FileChannel in = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+        try {
+            long size = in.size();
+            if (size < HEADER_BYTES + 4 + TRAILER_BYTES) {
+                throw new IOException("Not a snapshot: " + fileName);
+            }
+            ByteBuffer header = readFully(in, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a snapshot: " + fileName);
+            }
+            ByteBuffer trailer = readFully(in, size - TRAILER_BYTES, TRAILER_BYTES);
+            long indexOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC || indexOffset < HEADER_BYTES
+                    || indexOffset > size - TRAILER_BYTES - 4) {
+                throw new IOException("Truncated snapshot: " + fileName);
+            }
+
+            ByteBuffer index = readFully(in, indexOffset, (int) (size - TRAILER_BYTES - indexOffset));
+            int blockCount = index.getInt();
+            if (index.remaining() != (long) blockCount * INDEX_ENTRY_BYTES) {
+                throw new IOException("Bad block index in " + fileName);
+            }
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            int[] counts = new int[blockCount];
+            int[] checksums = new int[blockCount];
+            long totalEntries = 0;
+            for (int i = 0; i < blockCount; i++) {
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                counts[i] = index.getInt();
+                checksums[i] = index.getInt();
+                if (offsets[i] < HEADER_BYTES || lengths[i] < 0
+                        || offsets[i] + lengths[i] > indexOffset) {
+                    throw new IOException("Bad block index in " + fileName);
+                }
+                totalEntries += counts[i];
+            }
+
+            ConcurrentHashMap<String, String> pairs = new ConcurrentHashMap<String, String>(
+                    (int) Math.min(Integer.MAX_VALUE / 2, Math.max(16, totalEntries * 4 / 3 + 1)),
+                    0.75f, ForkJoinPool.getCommonPoolParallelism());
+            try {
+                ForkJoinPool.commonPool().invoke(
+                        new DecodeBlocks(in, offsets, lengths, counts, checksums, pairs, 0, blockCount));
+            } catch (UncheckedIOException e) {
+                throw new IOException(e.getCause().getMessage() + " in " + fileName, e.getCause());
+            }
+            if (pairs.size() != totalEntries) {
+                throw new IOException("Duplicate keys in " + fileName);
+            }
+            return pairs;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks and decodes blocks [from, to), splitting the range in half until
+     * a single block is left.
+     */
+    private static final class DecodeBlocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel in;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final int[] counts;
+        private final int[] checksums;
+        private final Map<String, String> pairs;
+        private final int from;
+        private final int to;
+
+        DecodeBlocks(FileChannel in, long[] offsets, int[] lengths, int[] counts, int[] checksums,
+                Map<String, String> pairs, int from, int to) {
+            this.in = in;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.counts = counts;
+            this.checksums = checksums;
+            this.pairs = pairs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeBlocks(in, offsets, lengths, counts, checksums, pairs, from, mid),
+                        new DecodeBlocks(in, offsets, lengths, counts, checksums, pairs, mid, to));
+                return;
+            }
+            if (to == from) {
+                return;
+            }
+            try {
+                decode(from);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void decode(int block) throws IOException {
+            ByteBuffer bytes = readFully(in, offsets[block], lengths[block]);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.array(), 0, lengths[block]);
+            if ((int) crc.getValue() != checksums[block]) {
+                throw new IOException("Checksum mismatch in block " + block);
+            }
+            byte[] array = bytes.array();
+            try {
+                for (int i = 0; i < counts[block]; i++) {
+                    int keyLength = bytes.getInt();
+                    String key = new String(array, bytes.position(), keyLength, UTF8);
+                    bytes.position(bytes.position() + keyLength);
+                    int valueLength = bytes.getInt();
+                    String value = new String(array, bytes.position(), valueLength, UTF8);
+                    bytes.position(bytes.position() + valueLength);
+                    pairs.put(key, value);
+                }
+            } catch (RuntimeException e) {
+                // Lengths that run past the block
+                throw new IOException("Malformed block " + block);
+            }
+            if (bytes.hasRemaining()) {
+                throw new IOException("Malformed block " + block);
+            }
+        }
+    }
+
+    /**
+     * Packs entries into blocks and writes each full block, then the index.
+     */
+    private static final class BlockWriter {
+        private final FileChannel out;
+        private final ByteBuffer block;
+        private long position = HEADER_BYTES;
+        private int entries = 0;
+
+        private long[] offsets = new long[16];
+        private int[] lengths = new int[16];
+        private int[] counts = new int[16];
+        private int[] checksums = new int[16];
+        private int blockCount = 0;
+
+        BlockWriter(FileChannel out, int blockSize) {
+            this.out = out;
+            this.block = ByteBuffer.allocate(blockSize);
+        }
+
+        void add(byte[] key, byte[] value) throws IOException {
+            int length = 8 + key.length + value.length;
+            if (length > block.remaining() && entries > 0) {
+                flush(block);
+            }
+            if (length > block.capacity()) {
+                ByteBuffer oversized = ByteBuffer.allocate(length);
+                oversized.putInt(key.length).put(key).putInt(value.length).put(value);
+                entries = 1;
+                flush(oversized);
+                return;
+            }
+            block.putInt(key.length).put(key).putInt(value.length).put(value);
+            entries++;
+        }
+
+        private void flush(ByteBuffer bytes) throws IOException {
+            bytes.flip();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.array(), 0, bytes.limit());
+
+            if (blockCount == offsets.length) {
+                int grown = blockCount * 2;
+                offsets = Arrays.copyOf(offsets, grown);
+                lengths = Arrays.copyOf(lengths, grown);
+                counts = Arrays.copyOf(counts, grown);
+                checksums = Arrays.copyOf(checksums, grown);
+            }
+            offsets[blockCount] = position;
+            lengths[blockCount] = bytes.limit();
+            counts[blockCount] = entries;
+            checksums[blockCount] = (int) crc.getValue();
+            blockCount++;
+
+            position += bytes.limit();
+            writeFully(out, bytes);
+            bytes.clear();
+            entries = 0;
+        }
+
+        void finish() throws IOException {
+            if (entries > 0) {
+                flush(block);
+            }
+            ByteBuffer index = ByteBuffer.allocate(4 + blockCount * INDEX_ENTRY_BYTES + TRAILER_BYTES);
+            index.putInt(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                index.putLong(offsets[i]).putInt(lengths[i]).putInt(counts[i]).putInt(checksums[i]);
+            }
+            index.putLong(position).putInt(MAGIC).flip();
+            writeFully(out, index);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel in, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
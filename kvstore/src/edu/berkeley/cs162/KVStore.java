@@ -31,47 +31,149 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringWriter;
-import java.util.HashMap;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.FactoryConfigurationError;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  * This is a dummy KeyValue Store. Ideally this would go to disk, or some other
  * backing store. For this project, we simulate the disk like system using a
  * manual delay.
  *
+ * Values are kept as Strings on the heap unless the store is given a
+ * ValueArena, in which case they are kept off-heap as UTF-8 and the store
+ * only maps keys to handles.
  *
+ * The store is safe to use from many threads at once without any outside
+ * locking. Operations on a single key are atomic.
  *
+ * Subclasses can keep the data somewhere else entirely by overriding the
+ * storage hooks (lookup, insert, remove, keys and clear); the public
+ * operations, the AutoGrader hooks and the XML dump stay the same.
  */
 public class KVStore implements KeyValueInterface {
-    private Map<String, String> store = null;
+    private static final int DUMP_BUFFER_SIZE = 64 * 1024;
+
+    private volatile Map<String, String> store = null;
+
+    // Only used when values are kept off-heap
+    private ValueArena arena = null;
+    private volatile Map<String, Long> handles = null;
 
     public KVStore() {
         resetStore();
     }
 
+    /**
+     * @param arena where to keep values, off the heap.
+     */
+    public KVStore(ValueArena arena) {
+        this.arena = arena;
+        resetStore();
+    }
+
     private void resetStore() {
-        store = new HashMap<String, String>();
+        if(arena == null) {
+            store = new ConcurrentHashMap<String, String>();
+        } else {
+            Map<String, Long> old = handles;
+            handles = new ConcurrentHashMap<String, Long>();
+            if(old != null) {
+                for(long handle : old.values()) {
+                    arena.free(handle);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every key in the store.
+     */
+    protected void clear() throws KVException {
+        resetStore();
+    }
+
+    /**
+     * @return the value stored for key, or null.
+     */
+    protected String lookup(String key) throws KVException {
+        if(arena == null) {
+            return store.get(key);
+        }
+        while(true) {
+            Long handle = handles.get(key);
+            if(handle == null) {
+                return null;
+            }
+            String value = arena.load(handle);
+            if(value != null) {
+                return value;
+            }
+            // Overwritten or removed since we read the handle, look again
+        }
+    }
+
+    protected void insert(String key, String value) throws KVException {
+        if(arena == null) {
+            store.put(key, value);
+            return;
+        }
+        Long old = handles.put(key, arena.store(value));
+        if(old != null) {
+            arena.free(old);
+        }
+    }
+
+    /**
+     * @return whether there was a value to remove.
+     */
+    protected boolean remove(String key) throws KVException {
+        if(arena == null) {
+            return store.remove(key) != null;
+        }
+        Long old = handles.remove(key);
+        if(old == null) {
+            return false;
+        }
+        arena.free(old);
+        return true;
+    }
+
+    /**
+     * Replaces the contents of the store with entries, which the store may
+     * keep and use as its own.
+     */
+    protected void replaceWith(ConcurrentHashMap<String, String> entries) throws KVException {
+        if(arena == null) {
+            store = entries;
+            return;
+        }
+        clear();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            insert(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return a live view of the keys in the store; keys may come and go
+     * while it is being iterated.
+     */
+    protected Iterable<String> keys() {
+        return (arena == null) ? store.keySet() : handles.keySet();
     }
 
     @Override
@@ -80,7 +182,7 @@ public class KVStore implements KeyValueInterface {
 
         try {
             putDelay();
-            store.put(key, value);
+            insert(key, value);
         } finally {
             AutoGrader.agStorePutFinished(key, value);
         }
@@ -92,7 +194,7 @@ public class KVStore implements KeyValueInterface {
 
         try {
             getDelay();
-            String retVal = this.store.get(key);
+            String retVal = lookup(key);
             if (retVal == null) {
                 KVMessage msg = new KVMessage("resp", "Does not exist");
                 throw new KVException(msg);
@@ -110,9 +212,7 @@ public class KVStore implements KeyValueInterface {
         try {
             delDelay();
             if (key != null) {
-                if(this.store.containsKey(key)) {
-                    this.store.remove(key);
-                } else {
+                if(!remove(key)) {
                     KVMessage msg = new KVMessage("resp", "Does not exist");
                     throw new KVException(msg);
                 }
@@ -136,65 +236,49 @@ public class KVStore implements KeyValueInterface {
 
     public String toXML() {
         try {
-            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-            Element rootElem = doc.createElement("KVStore");
-            doc.appendChild(rootElem);
-
-            for (Map.Entry<String, String> entry : this.store.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-
-                Element cElem = doc.createElement("KVPair");
-
-                Element kElem = doc.createElement("Key");
-                kElem.appendChild(doc.createTextNode(key));
-                Element vElem = doc.createElement("Value");
-                vElem.appendChild(doc.createTextNode(value));
-
-                cElem.appendChild(kElem);
-
-                cElem.appendChild(vElem);
-
-                rootElem.appendChild(cElem);
-
-            }
-            Transformer laBeouf = TransformerFactory.newInstance().newTransformer();
             StringWriter strWriter = new StringWriter();
-            StreamResult streamResult = new StreamResult(strWriter);
-            laBeouf.transform(new DOMSource(doc), streamResult);
+            writeXML(strWriter);
             return strWriter.toString();
-        } catch (ParserConfigurationException e) { // Potentially thrown by the
-                                                   // newDocumentBuilder() call
-            e.printStackTrace(System.out);
-            return null;
-        } catch (FactoryConfigurationError f) { // Caused by the
-                                                // DocumentBuilderFactory.newInstance()
-                                                // call
-            f.printStackTrace(System.out);
-            return null;
-        } catch (TransformerException e) {
-            e.printStackTrace(System.out);
-            return null;
         } catch (Exception e) {
             e.printStackTrace(System.out);
             return null;
         }
     }
 
+    /**
+     * Streams the store out as XML, one pair at a time.
+     */
+    private void writeXML(Writer writer) throws IOException, XMLStreamException, KVException {
+        XMLStreamWriter out = XMLStreams.newWriter(writer);
+        out.writeStartElement("KVStore");
+        for (String key : keys()) {
+            String value = lookup(key);
+            if (value == null) {
+                // Removed since we listed the keys
+                continue;
+            }
+            out.writeStartElement("KVPair");
+            XMLStreams.writeTextElement(out, "Key", key);
+            XMLStreams.writeTextElement(out, "Value", value);
+            out.writeEndElement();
+        }
+        out.writeEndElement();
+        out.writeEndDocument();
+        out.close();
+    }
+
     public void dumpToFile(String fileName) {
         try {
-            FileWriter file_writer = new FileWriter(fileName); // Constructs a
-                                                               // FileWriter
-                                                               // object given a
-                                                               // file name
-            BufferedWriter buffered_writer = new BufferedWriter(file_writer);
-
-            String str = this.toXML();
-
-            buffered_writer.write(str); // Potentially throws an IOExecption
-            buffered_writer.close(); // Closes the stream, flushing it first.
-        } catch (IOException e) { // From either BufferedWriter.write() or the
-                                  // FileWriter constructor
+            FileChannel channel = FileChannel.open(new File(fileName).toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            Writer writer = new BufferedWriter(Channels.newWriter(channel, "UTF-8"), DUMP_BUFFER_SIZE);
+            try {
+                writeXML(writer);
+            } finally {
+                writer.close(); // Flushes the buffer and closes the channel
+            }
+        } catch (IOException e) { // From opening or writing the file
             e.printStackTrace(System.out);
         } catch (Exception e) {
             e.printStackTrace(System.out);
@@ -209,37 +293,74 @@ public class KVStore implements KeyValueInterface {
      *            the file to be read.
      */
     public void restoreFromFile(String fileName) {
-        // Reset it
-        resetStore();
-
         try {
-            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-
-            File file = new File(fileName);
-            // Check if file exists and is readable
-
-            Document d = builder.parse(file);
-            // Normalize text representation
-            d.getDocumentElement().normalize();
-
-            NodeList pairList = d.getElementsByTagName("KVPair");
-
-            for (int i = 0; i < pairList.getLength(); i++) {
-                Element node = (Element) pairList.item(i);
-                Node keyNode = node.getElementsByTagName("Key").item(0);
-                Node valueNode = node.getElementsByTagName("Value").item(0);
-                store.put(keyNode.getTextContent(), valueNode.getTextContent());
+            // Reset it
+            clear();
+
+            InputStream in = new BufferedInputStream(Channels.newInputStream(
+                    FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)),
+                    DUMP_BUFFER_SIZE);
+            try {
+                XMLStreamReader reader = XMLStreams.newReader(in);
+                String key = null;
+                String value = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if ("Key".equals(reader.getLocalName())) {
+                            key = reader.getElementText();
+                        } else if ("Value".equals(reader.getLocalName())) {
+                            value = reader.getElementText();
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT
+                            && "KVPair".equals(reader.getLocalName())) {
+                        insert(key, value);
+                        key = null;
+                        value = null;
+                    }
+                }
+                reader.close();
+            } finally {
+                in.close();
             }
-        } catch (FactoryConfigurationError f) { // Caused by the
-                                                // DocumentBuilderFactory.newInstance()
-                                                // call
-            f.printStackTrace(System.out);
-        } catch (IOException i) { // Caused by the DocumentBuilder.parse() call
+        } catch (IOException i) { // From opening or reading the file
             i.printStackTrace(System.out);
-        } catch (SAXException s) { // Caused by the DocumentBuilder.parse() call
+        } catch (XMLStreamException s) { // Caused by a malformed file
             s.printStackTrace(System.out);
         } catch (Exception e) {
             e.printStackTrace(System.out);
         }
     }
+
+    /**
+     * Writes the store to fileName in the binary snapshot format, which is
+     * much smaller and faster to restore than the XML one.
+     */
+    public void dumpToSnapshot(String fileName) {
+        try {
+            KVSnapshot.write(this, fileName, KVSnapshot.DEFAULT_BLOCK_SIZE);
+        } catch (IOException e) { // From opening or writing the file
+            e.printStackTrace(System.out);
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Replaces the contents of the store with the contents of a file written
+     * by dumpToSnapshot. The whole snapshot is checked before the store is
+     * touched, so a damaged snapshot leaves the store as it was.
+     *
+     * @param fileName
+     *            the file to be read.
+     */
+    public void restoreFromSnapshot(String fileName) {
+        try {
+            replaceWith(KVSnapshot.read(fileName));
+        } catch (IOException e) { // Unreadable or damaged snapshot
+            e.printStackTrace(System.out);
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+    }
 }
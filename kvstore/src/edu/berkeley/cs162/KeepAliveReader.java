@@ -0,0 +1,107 @@
+/**
+ * Server side of a persistent connection to a Key-Value server.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Reads the requests that follow the first one on a keep-alive connection
+ * and hands each to a Dispatcher as soon as it arrives, so a client can have
+ * several requests outstanding at once. Replies may go back in any order;
+ * the client matches them up by request id.
+ *
+ * The connection is closed when the client closes it, sends something that
+ * isn't a valid frame, or sends nothing for IDLE_TIMEOUT_MS.
+ */
+final class KeepAliveReader implements Runnable {
+    /** How long a connection may sit idle before the server drops it. */
+    static final int IDLE_TIMEOUT_MS = 60 * 1000;
+
+    interface Dispatcher {
+        /**
+         * Handles one request read off client. Replies are written to
+         * client, and must not be interleaved with other writes to it.
+         */
+        void dispatch(Socket client, KVMessage request) throws InterruptedException;
+    }
+
+    private final Socket client;
+    private final Dispatcher dispatcher;
+
+    private KeepAliveReader(Socket client, Dispatcher dispatcher) {
+        this.client = client;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Starts reading requests off client on a thread of its own.
+     */
+    static void start(Socket client, Dispatcher dispatcher) {
+        Thread reader = new Thread(new KeepAliveReader(client, dispatcher),
+                "KeepAliveReader-" + client.getRemoteSocketAddress());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            client.setTcpNoDelay(true);
+            client.setSoTimeout(IDLE_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            while (true) {
+                KVMessage request = KVMessage.readFrame(in);
+                if (request == null) {
+                    break; // Client is done with the connection
+                }
+                dispatcher.dispatch(client, request);
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle too long
+        } catch (IOException e) {
+            // Connection failed, or closed under us
+        } catch (KVException e) {
+            // Lost track of the frames, nothing to do but drop the connection
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,697 @@
+/**
+ * Log-structured, persistent storage engine for the Key-Value store.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A KVStore that keeps its data on disk, Bitcask style.
+ *
+ * Every put and del is appended to a single data file as a record:
+ *
+ *   crc (4) | key length (4) | value length (4, -1 for a del) | key | value
+ *
+ * where the CRC32 covers everything after itself. An in-memory index maps
+ * each live key to where its latest record starts, so a get is one
+ * positional read. Overwritten and deleted records stay in the file until a
+ * compaction copies the live records into a fresh file and swaps it in. A
+ * background thread compacts once at least half of the file, and at least
+ * MIN_COMPACTION_BYTES, is stale; compact() can also be called directly.
+ *
+ * Compaction and close() write a hint file listing the index together with
+ * the length of data file it describes. On start the index is loaded from
+ * the hints and only the records appended after them are read; without
+ * usable hints the whole data file is scanned. A torn or corrupt record
+ * ends the scan and the file is cut back to the last good record.
+ *
+ * Gets run in parallel with each other and with writes. Writes are
+ * serialized on the append position. Compaction copies the live records
+ * without holding up writers, and only blocks them while it copies what
+ * was appended in the meantime and swaps the files.
+ */
+public class LogStructuredStore extends KVStore {
+    public static final String DATA_FILE = "kvstore.data";
+    public static final String HINT_FILE = "kvstore.hint";
+    public static final long MIN_COMPACTION_BYTES = 1 << 20;
+    public static final long COMPACTION_CHECK_MS = 10 * 1000;
+
+    private static final String COMPACT_FILE = "kvstore.data.compact";
+    private static final String HINT_TEMP_FILE = "kvstore.hint.tmp";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_BYTES = 12;
+    private static final int TOMBSTONE = -1;
+    private static final int HINT_MAGIC = 0x4b564831;
+
+    private final File directory;
+    private final boolean syncWrites;
+
+    // Lock order: compactionLock, then appendLock, then fileLock
+    private final Object compactionLock = new Object();
+    private final Object appendLock = new Object();
+    // Held shared by gets, exclusively while the data file is swapped
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    private volatile FileChannel data = null;
+    private volatile Map<String, Location> index = null;
+    // Only moved while holding appendLock
+    private volatile long writePosition = 0;
+    private final AtomicLong staleBytes = new AtomicLong();
+
+    private volatile boolean closed = false;
+    private final Object compactorSignal = new Object();
+    private final Thread compactor;
+
+    /**
+     * Where the latest record for a key starts.
+     */
+    private static final class Location {
+        final long offset;
+        final int keyLength;
+        final int valueLength;
+
+        Location(long offset, int keyLength, int valueLength) {
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        int recordLength() {
+            return recordLength(keyLength, valueLength);
+        }
+
+        static int recordLength(int keyLength, int valueLength) {
+            return HEADER_BYTES + keyLength + Math.max(valueLength, 0);
+        }
+    }
+
+    /**
+     * A record read back from a data file.
+     */
+    private static final class Record {
+        final ByteBuffer bytes;
+        final String key;
+        final int keyLength;
+        final int valueLength;
+
+        Record(ByteBuffer bytes, String key, int keyLength, int valueLength) {
+            this.bytes = bytes;
+            this.key = key;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        boolean isTombstone() {
+            return valueLength == TOMBSTONE;
+        }
+    }
+
+    /**
+     * Opens the store kept in directory, creating it if needed. Writes are
+     * forced to disk before they return.
+     */
+    public LogStructuredStore(String directory) throws IOException {
+        this(directory, true);
+    }
+
+    /**
+     * @param syncWrites whether each put and del is forced to disk before it
+     *                   returns. Without it a crash can lose the latest
+     *                   writes, but never corrupts older ones.
+     */
+    public LogStructuredStore(String directory, boolean syncWrites) throws IOException {
+        this.directory = new File(directory);
+        this.syncWrites = syncWrites;
+        open();
+
+        compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compactInBackground();
+            }
+        }, "LogStructuredStore compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        // Leftovers of a compaction that never finished
+        new File(directory, COMPACT_FILE).delete();
+        new File(directory, HINT_TEMP_FILE).delete();
+
+        data = FileChannel.open(new File(directory, DATA_FILE).toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        Map<String, Location> loaded = new ConcurrentHashMap<String, Location>();
+        boolean opened = false;
+        try {
+            long hinted = readHints(loaded);
+            if (hinted > data.size()) {
+                System.out.println("WARN LogStructuredStore: hint file is ahead of the data file, ignoring it");
+                loaded.clear();
+                hinted = 0;
+            }
+            writePosition = replay(hinted, loaded);
+            opened = true;
+        } finally {
+            if (!opened) {
+                data.close();
+            }
+        }
+        index = loaded;
+
+        long live = 0;
+        for (Location location : loaded.values()) {
+            live += location.recordLength();
+        }
+        staleBytes.set(writePosition - live);
+    }
+
+    /**
+     * Applies the records from offset on to the index, and cuts the data
+     * file back to the last good record if all that follows it is a torn
+     * write.
+     *
+     * @return the end of the last good record.
+     * @throws IOException if a bad record has good ones after it, which a
+     *         crash can't explain. The data file is left as it is.
+     */
+    private long replay(long offset, Map<String, Location> into) throws IOException {
+        long size = data.size();
+        while (offset < size) {
+            Record record = readRecord(data, offset, size);
+            if (record == null) {
+                if (hasRecordAfter(offset, size)) {
+                    throw new IOException("Corrupt record at offset " + offset + " of "
+                            + new File(directory, DATA_FILE) + ", with good records after it");
+                }
+                break;
+            }
+            if (record.isTombstone()) {
+                into.remove(record.key);
+            } else {
+                into.put(record.key, new Location(offset, record.keyLength, record.valueLength));
+            }
+            offset += record.bytes.capacity();
+        }
+        if (offset < size) {
+            System.out.println("WARN LogStructuredStore: dropping " + (size - offset)
+                    + " bytes of torn or corrupt records at the end of " + DATA_FILE);
+            data.truncate(offset);
+            data.force(true);
+        }
+        return offset;
+    }
+
+    /**
+     * @return whether a good record starts anywhere after offset, before
+     *         limit. Only used once replay has hit a bad one, to tell a torn
+     *         tail from corruption in the middle of the file.
+     */
+    private boolean hasRecordAfter(long offset, long limit) throws IOException {
+        for (long at = offset + 1; limit - at >= HEADER_BYTES; at++) {
+            if (readRecord(data, at, limit) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the record starting at offset, or null if it runs past limit or
+     * fails its CRC.
+     */
+    private static Record readRecord(FileChannel channel, long offset, long limit)
+            throws IOException {
+        if (limit - offset < HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, offset);
+        int keyLength = header.getInt(4);
+        int valueLength = header.getInt(8);
+        // In longs, as garbage lengths could overflow an int
+        if (keyLength < 0 || valueLength < TOMBSTONE
+                || (long) keyLength + Math.max(valueLength, 0) > limit - offset - HEADER_BYTES) {
+            return null;
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(Location.recordLength(keyLength, valueLength));
+        readFully(channel, bytes, offset);
+        if (!checksumMatches(bytes)) {
+            return null;
+        }
+        String key = new String(bytes.array(), HEADER_BYTES, keyLength, UTF8);
+        return new Record(bytes, key, keyLength, valueLength);
+    }
+
+    private static boolean checksumMatches(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        return record.getInt(0) == (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    /**
+     * Appends a record at the end of the data file. Caller holds appendLock.
+     *
+     * @param value null to record a del.
+     */
+    private Location append(byte[] key, byte[] value) throws IOException {
+        int valueLength = (value == null) ? TOMBSTONE : value.length;
+        ByteBuffer record = ByteBuffer.allocate(Location.recordLength(key.length, valueLength));
+        record.putInt(0).putInt(key.length).putInt(valueLength).put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+
+        long offset = writePosition;
+        writeFully(data, record, offset);
+        if (syncWrites) {
+            data.force(false);
+        }
+        writePosition = offset + record.capacity();
+        return new Location(offset, key.length, valueLength);
+    }
+
+    @Override
+    protected String lookup(String key) throws KVException {
+        fileLock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(location.recordLength());
+            readFully(data, record, location.offset);
+            if (!checksumMatches(record)) {
+                throw new KVException(new KVMessage("resp",
+                        "IO Error: corrupt record for key " + key));
+            }
+            return new String(record.array(), HEADER_BYTES + location.keyLength,
+                    location.valueLength, UTF8);
+        } catch (IOException e) {
+            throw ioError(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void insert(String key, String value) throws KVException {
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] valueBytes = value.getBytes(UTF8);
+        synchronized (appendLock) {
+            checkOpen();
+            try {
+                Location old = index.put(key, append(keyBytes, valueBytes));
+                if (old != null) {
+                    staleBytes.addAndGet(old.recordLength());
+                }
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+        }
+    }
+
+    @Override
+    protected boolean remove(String key) throws KVException {
+        byte[] keyBytes = key.getBytes(UTF8);
+        synchronized (appendLock) {
+            checkOpen();
+            if (!index.containsKey(key)) {
+                return false;
+            }
+            try {
+                Location tombstone = append(keyBytes, null);
+                Location old = index.remove(key);
+                staleBytes.addAndGet(old.recordLength() + tombstone.recordLength());
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    protected Iterable<String> keys() {
+        return index.keySet();
+    }
+
+    @Override
+    protected void clear() throws KVException {
+        synchronized (compactionLock) {
+            synchronized (appendLock) {
+                checkOpen();
+                fileLock.writeLock().lock();
+                try {
+                    new File(directory, HINT_FILE).delete();
+                    data.truncate(0);
+                    data.force(true);
+                    writePosition = 0;
+                    index = new ConcurrentHashMap<String, Location>();
+                    staleBytes.set(0);
+                } catch (IOException e) {
+                    throw ioError(e);
+                } finally {
+                    fileLock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void replaceWith(ConcurrentHashMap<String, String> entries) throws KVException {
+        clear();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            insert(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return bytes in the data file that belong to overwritten or deleted
+     * keys, and would be reclaimed by compact().
+     */
+    public long getStaleBytes() {
+        return staleBytes.get();
+    }
+
+    /**
+     * @return length of the data file.
+     */
+    public long getDataBytes() {
+        return writePosition;
+    }
+
+    /**
+     * Rewrites the data file with only the live records, and writes a fresh
+     * hint file for it.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            if (closed) {
+                throw new IOException("Store is closed");
+            }
+            File compactFile = new File(directory, COMPACT_FILE);
+            FileChannel out = FileChannel.open(compactFile.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            boolean swapped = false;
+            try {
+                long snapshotEnd;
+                Map<String, Location> snapshot;
+                synchronized (appendLock) {
+                    snapshotEnd = writePosition;
+                    snapshot = new HashMap<String, Location>(index);
+                }
+
+                // Only a compaction or clear() changes the data file under us,
+                // and both hold compactionLock
+                FileChannel in = data;
+                Map<String, Location> compacted = new ConcurrentHashMap<String, Location>(
+                        Math.max(16, snapshot.size() * 4 / 3 + 1));
+                long position = 0;
+                for (Map.Entry<String, Location> entry : snapshot.entrySet()) {
+                    Location location = entry.getValue();
+                    ByteBuffer record = ByteBuffer.allocate(location.recordLength());
+                    readFully(in, record, location.offset);
+                    writeFully(out, record, position);
+                    compacted.put(entry.getKey(),
+                            new Location(position, location.keyLength, location.valueLength));
+                    position += record.capacity();
+                }
+
+                synchronized (appendLock) {
+                    // Carry over whatever was written while we were copying
+                    long stale = 0;
+                    long offset = snapshotEnd;
+                    while (offset < writePosition) {
+                        Record record = readRecord(in, offset, writePosition);
+                        if (record == null) {
+                            throw new IOException("Corrupt record at " + offset + " in " + DATA_FILE);
+                        }
+                        writeFully(out, record.bytes, position);
+                        Location old;
+                        if (record.isTombstone()) {
+                            old = compacted.remove(record.key);
+                            stale += record.bytes.capacity();
+                        } else {
+                            old = compacted.put(record.key,
+                                    new Location(position, record.keyLength, record.valueLength));
+                        }
+                        if (old != null) {
+                            stale += old.recordLength();
+                        }
+                        position += record.bytes.capacity();
+                        offset += record.bytes.capacity();
+                    }
+                    out.force(true);
+                    writeHints(compacted, position);
+
+                    // A crash anywhere in here leaves either no hint file, or
+                    // one that matches the data file next to it
+                    fileLock.writeLock().lock();
+                    try {
+                        new File(directory, HINT_FILE).delete();
+                        Files.move(compactFile.toPath(), new File(directory, DATA_FILE).toPath(),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        data = out;
+                        index = compacted;
+                        writePosition = position;
+                        staleBytes.set(stale);
+                        swapped = true;
+                    } finally {
+                        fileLock.writeLock().unlock();
+                    }
+                    in.close();
+                    publishHints();
+                }
+            } finally {
+                if (!swapped) {
+                    out.close();
+                    compactFile.delete();
+                    new File(directory, HINT_TEMP_FILE).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the hint file for the current index and closes the data file.
+     * The store can't be used afterwards.
+     */
+    public void close() throws IOException {
+        synchronized (compactorSignal) {
+            closed = true;
+            compactorSignal.notifyAll();
+        }
+        synchronized (compactionLock) {
+            synchronized (appendLock) {
+                if (!data.isOpen()) {
+                    return;
+                }
+                try {
+                    data.force(true);
+                    writeHints(index, writePosition);
+                    publishHints();
+                } finally {
+                    data.close();
+                }
+            }
+        }
+    }
+
+    private void compactInBackground() {
+        while (true) {
+            synchronized (compactorSignal) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    compactorSignal.wait(COMPACTION_CHECK_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            long stale = staleBytes.get();
+            if (stale < MIN_COMPACTION_BYTES || stale * 2 < writePosition) {
+                continue;
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * Writes the hint file for index, covering the first dataLength bytes of
+     * the data file, to HINT_TEMP_FILE.
+     *
+     * Layout: magic, data length, entry count, then per entry the key length,
+     * key, record offset and value length, then a CRC32 of all of it.
+     */
+    private void writeHints(Map<String, Location> hints, long dataLength) throws IOException {
+        FileOutputStream file = new FileOutputStream(new File(directory, HINT_TEMP_FILE));
+        try {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(file), crc));
+            out.writeInt(HINT_MAGIC);
+            out.writeLong(dataLength);
+            out.writeInt(hints.size());
+            for (Map.Entry<String, Location> entry : hints.entrySet()) {
+                byte[] key = entry.getKey().getBytes(UTF8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(entry.getValue().offset);
+                out.writeInt(entry.getValue().valueLength);
+            }
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void publishHints() throws IOException {
+        Files.move(new File(directory, HINT_TEMP_FILE).toPath(),
+                new File(directory, HINT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the hint file, if there's a good one, into index.
+     *
+     * @return the length of data file the hints cover, or 0 if there were
+     * none.
+     */
+    private long readHints(Map<String, Location> into) {
+        File hintFile = new File(directory, HINT_FILE);
+        if (!hintFile.isFile()) {
+            return 0;
+        }
+        try {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(hintFile)), crc));
+            try {
+                if (in.readInt() != HINT_MAGIC) {
+                    throw new IOException("Not a hint file");
+                }
+                long dataLength = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    int keyLength = in.readInt();
+                    if (keyLength < 0 || keyLength > hintFile.length()) {
+                        throw new IOException("Bad key length " + keyLength + " in hint file");
+                    }
+                    byte[] key = new byte[keyLength];
+                    in.readFully(key);
+                    long offset = in.readLong();
+                    int valueLength = in.readInt();
+                    into.put(new String(key, UTF8), new Location(offset, key.length, valueLength));
+                }
+                long computed = crc.getValue();
+                if (in.readLong() != computed) {
+                    throw new IOException("Hint file checksum mismatch");
+                }
+                return dataLength;
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Garbage is no worse than no hints at all
+            System.out.println("WARN LogStructuredStore: unreadable hint file, scanning "
+                    + DATA_FILE + " instead");
+            into.clear();
+            return 0;
+        }
+    }
+
+    private void checkOpen() throws KVException {
+        if (closed) {
+            throw new KVException(new KVMessage("resp", "IO Error: store is closed"));
+        }
+    }
+
+    private static KVException ioError(IOException e) throws KVException {
+        return new KVException(new KVMessage("resp", "IO Error: " + e.getMessage()));
+    }
+}
@@ -0,0 +1,578 @@
+/**
+ * Memory-mapped, read-mostly snapshot store for the Key-Value store.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A KVStore that serves reads straight out of a memory-mapped snapshot file,
+ * so a slave can take requests as soon as the file is mapped instead of
+ * after loading every pair onto the heap.
+ *
+ * The snapshot is never written in place. Puts and dels go to an in-memory
+ * overlay that is checked before the snapshot; a del of a snapshot key
+ * leaves a tombstone in the overlay. checkpoint() writes the merged view to
+ * a new snapshot, maps it, and drops the overlay entries it now holds.
+ * A background thread checkpoints to the file the store was opened from
+ * once the overlay reaches a set number of keys, and close() checkpoints
+ * whatever is left.
+ *
+ * File layout, big-endian:
+ *
+ *   header:  magic (4) | version (4) | entry count (8) | table offset (8)
+ *            | table slots (4) | unused (4)
+ *   entries: hash (4) | key length (4) | key | value length (4) | value
+ *   table:   one entry offset (8) per slot, 0 for an empty slot
+ *
+ * Keys and values are UTF-8. The table is an open-addressing hash table
+ * with linear probing, a power of two in size and at most half full, so a
+ * lookup is usually one table read and one entry read.
+ */
+public class MappedSnapshotStore extends KVStore {
+    public static final int DEFAULT_CHECKPOINT_KEYS = 64 * 1024;
+    public static final long CHECKPOINT_CHECK_MS = 10 * 1000;
+
+    private static final int MAGIC = 0x4b564d31;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Shared by writes, exclusive while a checkpoint swaps snapshots
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Object checkpointLock = new Object();
+
+    // Null once the store has been cleared
+    private volatile MappedFile snapshot;
+    private volatile ConcurrentHashMap<String, Change> overlay =
+            new ConcurrentHashMap<String, Change>();
+
+    private final String fileName;
+    private final int checkpointKeys;
+    private volatile boolean closed = false;
+    private volatile boolean checkpointDue = false;
+    private final Object checkpointerSignal = new Object();
+    private final Thread checkpointer;
+
+    /**
+     * Maps a snapshot written by write() or checkpoint().
+     */
+    public MappedSnapshotStore(String fileName) throws IOException {
+        this(fileName, DEFAULT_CHECKPOINT_KEYS);
+    }
+
+    /**
+     * @param checkpointKeys how many keys the overlay may hold before they
+     *                       are checkpointed back to fileName.
+     */
+    public MappedSnapshotStore(String fileName, int checkpointKeys) throws IOException {
+        if (checkpointKeys < 1) {
+            throw new IllegalArgumentException("checkpointKeys must be positive");
+        }
+        this.fileName = fileName;
+        this.checkpointKeys = checkpointKeys;
+        snapshot = MappedFile.open(fileName);
+
+        checkpointer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                checkpointInBackground();
+            }
+        }, "MappedSnapshotStore checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    @Override
+    protected String lookup(String key) {
+        Change change = overlay.get(key);
+        if (change != null) {
+            return change.value;
+        }
+        MappedFile current = snapshot;
+        return (current == null) ? null : current.find(key);
+    }
+
+    @Override
+    protected void insert(String key, String value) {
+        swapLock.readLock().lock();
+        try {
+            overlay.put(key, new Change(value));
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        checkOverlaySize();
+    }
+
+    @Override
+    protected boolean remove(String key) {
+        swapLock.readLock().lock();
+        try {
+            while (true) {
+                Change old = overlay.get(key);
+                if (old != null && old.value == null) {
+                    return false;
+                }
+                if (old != null) {
+                    if (overlay.replace(key, old, new Change(null))) {
+                        break;
+                    }
+                    continue;
+                }
+                MappedFile current = snapshot;
+                if (current == null || current.locate(key) < 0) {
+                    return false;
+                }
+                if (overlay.putIfAbsent(key, new Change(null)) == null) {
+                    break;
+                }
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        checkOverlaySize();
+        return true;
+    }
+
+    @Override
+    protected Iterable<String> keys() {
+        final Map<String, Change> currentOverlay = overlay;
+        final MappedFile currentSnapshot = snapshot;
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new MergedKeys(currentOverlay, currentSnapshot);
+            }
+        };
+    }
+
+    @Override
+    protected void clear() {
+        swapLock.writeLock().lock();
+        try {
+            snapshot = null;
+            overlay = new ConcurrentHashMap<String, Change>();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void replaceWith(ConcurrentHashMap<String, String> entries) {
+        ConcurrentHashMap<String, Change> changes = new ConcurrentHashMap<String, Change>(
+                Math.max(16, entries.size() * 2));
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            changes.put(entry.getKey(), new Change(entry.getValue()));
+        }
+        swapLock.writeLock().lock();
+        try {
+            snapshot = null;
+            overlay = changes;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        checkOverlaySize();
+    }
+
+    /**
+     * @return number of puts and dels not yet folded into the snapshot.
+     */
+    public int getOverlaySize() {
+        return overlay.size();
+    }
+
+    /**
+     * Writes the current contents of the store to a new snapshot at
+     * fileName, replacing any file there, and serves from it from then on.
+     * Writes made while the snapshot is being written stay in the overlay.
+     */
+    public void checkpoint(String fileName) throws IOException, KVException {
+        synchronized (checkpointLock) {
+            Map<String, Change> captured = new HashMap<String, Change>(overlay);
+
+            // The old snapshot may be this very file, so never write over it
+            File target = new File(fileName);
+            File temp = new File(fileName + ".tmp");
+            write(this, temp.getPath());
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            MappedFile next = MappedFile.open(fileName);
+
+            swapLock.writeLock().lock();
+            try {
+                snapshot = next;
+                for (Map.Entry<String, Change> entry : captured.entrySet()) {
+                    // Only if nobody wrote the key after we captured it; every
+                    // write is a new Change, so this compares by identity
+                    overlay.remove(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Stops the background checkpoints and checkpoints whatever is left in
+     * the overlay to the file the store was opened from. Writes made after
+     * close() are only kept in memory.
+     */
+    public void close() throws IOException, KVException {
+        synchronized (checkpointerSignal) {
+            closed = true;
+            checkpointerSignal.notifyAll();
+        }
+        if (!overlay.isEmpty()) {
+            checkpoint(fileName);
+        }
+    }
+
+    private void checkOverlaySize() {
+        if (checkpointDue || overlay.size() < checkpointKeys) {
+            return;
+        }
+        synchronized (checkpointerSignal) {
+            checkpointDue = true;
+            checkpointerSignal.notifyAll();
+        }
+    }
+
+    private void checkpointInBackground() {
+        while (true) {
+            synchronized (checkpointerSignal) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    checkpointerSignal.wait(CHECKPOINT_CHECK_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            checkpointDue = false;
+            if (overlay.size() < checkpointKeys) {
+                continue;
+            }
+            try {
+                checkpoint(fileName);
+            } catch (IOException e) {
+                e.printStackTrace(System.out);
+            } catch (KVException e) {
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * Writes the contents of store as a snapshot that a MappedSnapshotStore
+     * can map.
+     */
+    public static void write(KVStore store, String fileName) throws IOException, KVException {
+        FileChannel channel = FileChannel.open(new File(fileName).toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.write(new byte[HEADER_BYTES]);
+
+            int count = 0;
+            int[] hashes = new int[1024];
+            long[] offsets = new long[1024];
+            long position = HEADER_BYTES;
+            for (String key : store.keys()) {
+                String value = store.lookup(key);
+                if (value == null) {
+                    // Removed since we listed the keys
+                    continue;
+                }
+                byte[] keyBytes = key.getBytes(UTF8);
+                byte[] valueBytes = value.getBytes(UTF8);
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                hashes[count] = hash(key);
+                offsets[count] = position;
+                count++;
+
+                out.writeInt(hash(key));
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeInt(valueBytes.length);
+                out.write(valueBytes);
+                position += 12 + keyBytes.length + valueBytes.length;
+            }
+
+            // Align the table so its slots never straddle two mappings
+            while (position % 8 != 0) {
+                out.write(0);
+                position++;
+            }
+            int slots = Integer.highestOneBit(Math.max(8, count) * 2 - 1) << 1;
+            long[] table = new long[slots];
+            for (int i = 0; i < count; i++) {
+                int slot = hashes[i] & (slots - 1);
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & (slots - 1);
+                }
+                table[slot] = offsets[i];
+            }
+            for (long offset : table) {
+                out.writeLong(offset);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count).putLong(position).putInt(slots);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A snapshot file, mapped in chunks since a single mapping can't pass
+     * 2 GB.
+     */
+    private static final class MappedFile {
+        private static final int CHUNK_SHIFT = 30;
+        private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+        private final MappedByteBuffer[] chunks;
+        private final long entryCount;
+        private final long tableOffset;
+        private final int slots;
+
+        private MappedFile(MappedByteBuffer[] chunks) throws IOException {
+            this.chunks = chunks;
+            if (chunks.length == 0 || chunks[0].capacity() < HEADER_BYTES
+                    || getInt(0) != MAGIC || getInt(4) != VERSION) {
+                throw new IOException("Not a mapped snapshot");
+            }
+            entryCount = getLong(8);
+            tableOffset = getLong(16);
+            slots = getInt(24);
+            if (Integer.bitCount(slots) != 1 || tableOffset < HEADER_BYTES
+                    || tableOffset + 8L * slots > size()) {
+                throw new IOException("Truncated mapped snapshot");
+            }
+        }
+
+        static MappedFile open(String fileName) throws IOException {
+            FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = (long) i << CHUNK_SHIFT;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(CHUNK_SIZE, size - start));
+                }
+                // The mappings stay valid after the channel is closed
+                return new MappedFile(chunks);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private long size() {
+            return ((long) (chunks.length - 1) << CHUNK_SHIFT) + chunks[chunks.length - 1].capacity();
+        }
+
+        /**
+         * @return the offset of the entry for key, or -1.
+         */
+        long locate(String key) {
+            byte[] keyBytes = key.getBytes(UTF8);
+            int hash = hash(key);
+            int slot = hash & (slots - 1);
+            while (true) {
+                long offset = getLong(tableOffset + 8L * slot);
+                if (offset == 0) {
+                    return -1;
+                }
+                if (getInt(offset) == hash && getInt(offset + 4) == keyBytes.length
+                        && Arrays.equals(getBytes(offset + 8, keyBytes.length), keyBytes)) {
+                    return offset;
+                }
+                slot = (slot + 1) & (slots - 1);
+            }
+        }
+
+        String find(String key) {
+            long offset = locate(key);
+            if (offset < 0) {
+                return null;
+            }
+            long valueAt = offset + 8 + getInt(offset + 4);
+            return new String(getBytes(valueAt + 4, getInt(valueAt)), UTF8);
+        }
+
+        private int getInt(long position) {
+            MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+            int index = (int) (position & (CHUNK_SIZE - 1));
+            if (index + 4 <= chunk.capacity()) {
+                return chunk.getInt(index);
+            }
+            return ByteBuffer.wrap(getBytes(position, 4)).getInt();
+        }
+
+        private long getLong(long position) {
+            MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+            int index = (int) (position & (CHUNK_SIZE - 1));
+            if (index + 8 <= chunk.capacity()) {
+                return chunk.getLong(index);
+            }
+            return ByteBuffer.wrap(getBytes(position, 8)).getLong();
+        }
+
+        private byte[] getBytes(long position, int length) {
+            byte[] bytes = new byte[length];
+            int copied = 0;
+            while (copied < length) {
+                ByteBuffer view = chunks[(int) (position >>> CHUNK_SHIFT)].duplicate();
+                view.position((int) (position & (CHUNK_SIZE - 1)));
+                int n = Math.min(length - copied, view.remaining());
+                view.get(bytes, copied, n);
+                copied += n;
+                position += n;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * A put or del held in the overlay. Each write gets its own Change, so
+     * checkpoint() can tell by identity whether a key was written again
+     * while it ran, even with the same value.
+     */
+    private static final class Change {
+        // Null for a del
+        final String value;
+
+        Change(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Walks the live overlay keys, then the snapshot keys the overlay
+     * doesn't shadow.
+     */
+    private static final class MergedKeys implements Iterator<String> {
+        private final Map<String, Change> overlay;
+        private final MappedFile snapshot;
+        private final Iterator<Map.Entry<String, Change>> overlayEntries;
+        private long entriesLeft;
+        private long position = HEADER_BYTES;
+        private String next;
+
+        MergedKeys(Map<String, Change> overlay, MappedFile snapshot) {
+            this.overlay = overlay;
+            this.snapshot = snapshot;
+            this.overlayEntries = overlay.entrySet().iterator();
+            this.entriesLeft = (snapshot == null) ? 0 : snapshot.entryCount;
+            advance();
+        }
+
+        private void advance() {
+            while (overlayEntries.hasNext()) {
+                Map.Entry<String, Change> entry = overlayEntries.next();
+                if (entry.getValue().value != null) {
+                    next = entry.getKey();
+                    return;
+                }
+            }
+            while (entriesLeft > 0) {
+                entriesLeft--;
+                int keyLength = snapshot.getInt(position + 4);
+                String key = new String(snapshot.getBytes(position + 8, keyLength), UTF8);
+                long valueAt = position + 8 + keyLength;
+                position = valueAt + 4 + snapshot.getInt(valueAt);
+                if (!overlay.containsKey(key)) {
+                    next = key;
+                    return;
+                }
+            }
+            next = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String key = next;
+            advance();
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
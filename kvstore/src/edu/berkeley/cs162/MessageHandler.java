@@ -0,0 +1,69 @@
+/**
+ * Handler for requests read by a SocketServer in selector mode.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+
+/**
+ * A NetworkHandler that can also be handed requests that a SocketServer in
+ * selector mode has already read off the connection in full. No thread is
+ * tied up while a client is slow to send, or idle between requests.
+ */
+public interface MessageHandler extends NetworkHandler {
+
+    /**
+     * Where the reply to one request goes.
+     */
+    public interface Replier {
+        /**
+         * Sends reply, in the format the request came in. Returns without
+         * waiting for it to be written.
+         */
+        public void reply(KVMessage reply) throws KVException;
+
+        /**
+         * Gives up on replying. The connection is closed unless it is a
+         * keep-alive one.
+         */
+        public void close();
+    }
+
+    /**
+     * Handles request asynchronously; called on the thread that reads
+     * every connection, so it must not block.
+     *
+     * @param request a whole request. Ones that could not be decoded are
+     *                answered with the error by the SocketServer.
+     * @param replier where to send exactly one reply, or close if there is
+     *                to be none.
+     */
+    public void handle(KVMessage request, Replier replier) throws IOException;
+}
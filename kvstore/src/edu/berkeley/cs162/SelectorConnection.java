@@ -0,0 +1,282 @@
+/**
+ * One client connection of a SocketServer in selector mode.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the bytes of a client connection into whole messages as they
+ * arrive, and writes replies back as the socket has room for them. All of
+ * the reading and writing is done on the SocketServer's selector thread;
+ * the only state a connection holds between reads is the message it is
+ * partway through.
+ *
+ * A binary frame is whole once its length has arrived. An XML document
+ * has no length, so it is whole when the client shuts down its side of
+ * the connection, and is the only request on that connection.
+ */
+final class SelectorConnection {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_BYTES = 5; // BINARY_MAGIC and length
+    // Reads of one connection before moving on to the next
+    private static final int MAX_READS_PER_EVENT = 16;
+    // A frame's buffer starts this big and doubles as its bytes arrive, so
+    // a header alone can't make a connection hold MAX_FRAME_BYTES
+    private static final int INITIAL_FRAME_BYTES = 4 * 1024;
+
+    private final SocketServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    // What the connection is carrying, known from its first byte
+    private static final int UNKNOWN = 0, BINARY = 1, XML = 2;
+    private int mode = UNKNOWN;
+    private final byte[] header = new byte[HEADER_BYTES];
+    private int headerFill = 0;
+    private byte[] frame = null;
+    private int frameFill = 0;
+    // The whole frame's size, header included, once its header is in
+    private int frameLength = 0;
+    private ByteArrayOutputStream xml = null;
+
+    // No more requests will be read
+    private boolean inputDone = false;
+    private boolean closed = false;
+    private long lastActivity = System.currentTimeMillis();
+
+    // Requests handed out that have not been replied to yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // Replies waiting for room in the socket
+    private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    SelectorConnection(SocketServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * Reads whatever has arrived, adding each message it completes to
+     * messages.
+     *
+     * @throws KVException if the client sent something that can't be a
+     *         message. No more is read from the connection.
+     */
+    void read(ByteBuffer buffer, List<byte[]> messages) throws IOException, KVException {
+        lastActivity = System.currentTimeMillis();
+        for (int i = 0; i < MAX_READS_PER_EVENT && !inputDone; i++) {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                stopReading();
+                if (mode == XML) {
+                    messages.add(xml.toByteArray());
+                    xml = null;
+                }
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            buffer.flip();
+            try {
+                consume(buffer, messages);
+            } catch (KVException e) {
+                stopReading();
+                throw e;
+            }
+        }
+    }
+
+    private void consume(ByteBuffer buffer, List<byte[]> messages) throws KVException {
+        while (buffer.hasRemaining()) {
+            if (mode == UNKNOWN) {
+                mode = ((buffer.get(buffer.position()) & 0xff) == KVMessage.BINARY_MAGIC) ? BINARY : XML;
+                if (mode == XML) {
+                    xml = new ByteArrayOutputStream();
+                }
+            }
+            if (mode == XML) {
+                int n = buffer.remaining();
+                if (xml.size() + n > KVMessage.MAX_FRAME_BYTES) {
+                    throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
+                }
+                byte[] bytes = new byte[n];
+                buffer.get(bytes);
+                xml.write(bytes, 0, n);
+                continue;
+            }
+            if (frame == null) {
+                int n = Math.min(HEADER_BYTES - headerFill, buffer.remaining());
+                buffer.get(header, headerFill, n);
+                headerFill += n;
+                if (headerFill < HEADER_BYTES) {
+                    return;
+                }
+                int length = ByteBuffer.wrap(header, 1, 4).getInt();
+                if ((header[0] & 0xff) != KVMessage.BINARY_MAGIC
+                        || length < 2 || length > KVMessage.MAX_FRAME_BYTES) {
+                    throw new KVException(new KVMessage("resp", "Unknown Error: Received malformed binary message"));
+                }
+                frameLength = HEADER_BYTES + length;
+                frame = new byte[Math.min(frameLength, INITIAL_FRAME_BYTES)];
+                System.arraycopy(header, 0, frame, 0, HEADER_BYTES);
+                frameFill = HEADER_BYTES;
+                headerFill = 0;
+            }
+            if (frameFill == frame.length) {
+                frame = Arrays.copyOf(frame, (int) Math.min(2L * frame.length, frameLength));
+            }
+            int n = Math.min(frame.length - frameFill, buffer.remaining());
+            buffer.get(frame, frameFill, n);
+            frameFill += n;
+            if (frameFill == frameLength) {
+                messages.add(frame);
+                frame = null;
+            }
+        }
+    }
+
+    /**
+     * @return whether the connection carries binary frames.
+     */
+    boolean isBinary() {
+        return mode == BINARY;
+    }
+
+    /**
+     * Stops reading requests; the connection closes once the ones already
+     * read have been replied to.
+     */
+    void stopReading() {
+        inputDone = true;
+        if (!closed) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * @param binary whether to reply in binary frames or XML
+     * @return where the reply to a request just read goes.
+     */
+    MessageHandler.Replier newReplier(final boolean binary) {
+        outstanding.incrementAndGet();
+        return new MessageHandler.Replier() {
+            private final AtomicBoolean done = new AtomicBoolean();
+
+            @Override
+            public void reply(KVMessage reply) throws KVException {
+                byte[] bytes = binary ? reply.toBinary() : reply.toXML().getBytes(UTF8);
+                if (done.compareAndSet(false, true)) {
+                    writes.add(ByteBuffer.wrap(bytes));
+                    finish();
+                }
+            }
+
+            @Override
+            public void close() {
+                if (done.compareAndSet(false, true)) {
+                    finish();
+                }
+            }
+        };
+    }
+
+    private void finish() {
+        outstanding.decrementAndGet();
+        server.service(this);
+    }
+
+    /**
+     * Writes as much of the queued replies as the socket will take, and
+     * closes the connection if it has nothing left to do. Only called on
+     * the selector thread.
+     */
+    void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            ByteBuffer next;
+            while ((next = writes.peek()) != null) {
+                channel.write(next);
+                if (next.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writes.poll();
+                lastActivity = System.currentTimeMillis();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (inputDone && isIdle()) {
+                close();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * @return whether every request read has been replied to, and every
+     *         reply written.
+     */
+    boolean isIdle() {
+        return outstanding.get() == 0 && writes.isEmpty();
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -47,12 +47,36 @@ public class Server {
 
         // Create TPCMaster
         tpcMaster = new TPCMaster(Integer.parseInt(args[0]));
+        tpcMaster.setVirtualNodes(Integer.getInteger(TPCMaster.VIRTUAL_NODES_PROPERTY,
+                TPCMaster.DEFAULT_VIRTUAL_NODES));
+        tpcMaster.setReplication(
+                Integer.getInteger(TPCMaster.REPLICAS_PROPERTY, TPCMaster.DEFAULT_REPLICAS),
+                Integer.getInteger(TPCMaster.WRITE_QUORUM_PROPERTY, TPCMaster.DEFAULT_WRITE_QUORUM),
+                Integer.getInteger(TPCMaster.READ_QUORUM_PROPERTY, TPCMaster.DEFAULT_READ_QUORUM));
+        String hedgePercentile = System.getProperty(TPCMaster.HEDGE_PERCENTILE_PROPERTY);
+        if (hedgePercentile != null) {
+            tpcMaster.setHedgedReads(Double.parseDouble(hedgePercentile));
+        }
+        int batchOps = Integer.getInteger(TPCMaster.BATCH_OPS_PROPERTY, 1);
+        if (batchOps > 1) {
+            tpcMaster.setBatching(batchOps, Integer.getInteger(TPCMaster.BATCH_WINDOW_PROPERTY, 2));
+        }
         tpcMaster.run();
 
         // Create KVClientHandler
         System.out.println("Binding Master:");
         server = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 8080);
-        NetworkHandler handler = new KVClientHandler(tpcMaster);
+        server.setSelectorMode(Boolean.getBoolean(SocketServer.SELECTOR_PROPERTY));
+        int perTask = Integer.getInteger(ThreadPool.PER_TASK_PROPERTY, 0);
+        int workStealing = Integer.getInteger(ThreadPool.WORK_STEALING_PROPERTY, 0);
+        NetworkHandler handler;
+        if (perTask > 0) {
+            handler = new KVClientHandler(ThreadPool.perTask(perTask), tpcMaster);
+        } else if (workStealing > 0) {
+            handler = new KVClientHandler(ThreadPool.workStealing(workStealing), tpcMaster);
+        } else {
+            handler = new KVClientHandler(tpcMaster);
+        }
         server.addHandler(handler);
         server.connect();
         System.out.println("Starting Master");
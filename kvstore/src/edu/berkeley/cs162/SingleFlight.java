@@ -0,0 +1,162 @@
+/**
+ * Coalesces concurrent cache misses on the same key into one fetch.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+/**
+ * Fills a KVCache on misses, with at most one fetch per key in flight. The
+ * first miss on a key loads it without holding the set lock; any other
+ * misses on the key meanwhile wait for that load and share its value, or
+ * its error, instead of going to the store or slaves themselves.
+ *
+ * The loaded value is only cached if no write to the key finished while it
+ * was loading. Writers must call forget() once their write is done, while
+ * still holding the set lock; a load already in flight then still answers
+ * its waiters, whose reads overlapped the write, but leaves the cache alone,
+ * and later misses start a fresh load.
+ */
+public final class SingleFlight {
+
+    /**
+     * Fetches a key that missed in the cache.
+     */
+    public interface Loader {
+        String load(String key) throws KVException;
+    }
+
+    private final KVCache cache;
+    private final Loader loader;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    public SingleFlight(KVCache cache, Loader loader) {
+        this.cache = cache;
+        this.loader = loader;
+    }
+
+    /**
+     * @return the value of key, loaded by this call or one already in flight
+     * @throws KVException if the load failed
+     */
+    public String get(String key) throws KVException {
+        Flight flight = flights.get(key);
+        if (flight != null) {
+            return flight.await();
+        }
+        Flight mine = new Flight();
+        flight = flights.putIfAbsent(key, mine);
+        if (flight != null) {
+            return flight.await();
+        }
+
+        String value = null;
+        KVException error = null;
+        try {
+            // The last flight may have filled the cache since we missed
+            value = cache.get(key);
+            if (value == null) {
+                value = loader.load(key);
+                fill(key, value, mine);
+            }
+        } catch (KVException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new KVException(new KVMessage("resp", "Unknown Error: " + e.getMessage()));
+        } finally {
+            flights.remove(key, mine);
+            mine.finish(value, error);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return value;
+    }
+
+    /**
+     * Keeps any load of key in flight from caching what it read. The caller
+     * must hold key's set lock, after writing to key.
+     */
+    public void forget(String key) {
+        flights.remove(key);
+    }
+
+    private void fill(String key, String value, Flight flight) {
+        WriteLock setLock = cache.getWriteLock(key);
+        setLock.lock();
+        try {
+            // Only if no writer has forgotten this flight
+            if (flights.get(key) == flight) {
+                cache.put(key, value);
+            }
+        } finally {
+            setLock.unlock();
+        }
+    }
+
+    /**
+     * One load of a key, which any number of misses wait on.
+     */
+    private static final class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private String value;
+        private KVException error;
+
+        void finish(String value, KVException error) {
+            this.value = value;
+            this.error = error;
+            done.countDown();
+        }
+
+        String await() throws KVException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        done.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return value;
+        }
+    }
+}
@@ -29,6 +29,7 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.File;
 import java.net.InetAddress;
 
 public class SlaveServer {
@@ -44,6 +45,14 @@ public class SlaveServer {
     static int masterPort = 8080;
     static int registrationPort = 9090;
 
+    /*
+     * If set, names a snapshot written by MappedSnapshotStore. The slave then
+     * serves from the mapped file right away, with the log replayed on top,
+     * instead of starting empty. If the file doesn't exist yet an empty one
+     * is written, and the checkpoint on shutdown fills it for the next start.
+     */
+    static final String SNAPSHOT_PROPERTY = "kvstore.snapshot";
+
     /**
      * @param args
      */
@@ -59,9 +68,41 @@ public class SlaveServer {
 
         // Create TPCMasterHandler
         System.out.println("Binding SlaveServer:");
-        keyServer = new KVServer(100, 10);
+        String snapshotPath = System.getProperty(SNAPSHOT_PROPERTY);
+        if (snapshotPath != null) {
+            if (!new File(snapshotPath).isFile()) {
+                System.out.println("Creating snapshot " + snapshotPath);
+                MappedSnapshotStore.write(new KVStore(), snapshotPath);
+            }
+            System.out.println("Mapping snapshot " + snapshotPath);
+            final MappedSnapshotStore snapshotStore = new MappedSnapshotStore(snapshotPath);
+            keyServer = new KVServer(100, 10, snapshotStore);
+            // Fold the last writes into the snapshot so the next start maps them
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        snapshotStore.close();
+                    } catch (Exception e) {
+                        e.printStackTrace(System.out);
+                    }
+                }
+            }, "MappedSnapshotStore close"));
+        } else {
+            keyServer = new KVServer(100, 10);
+        }
         server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
-        TPCMasterHandler handler = new TPCMasterHandler(keyServer, slaveID);
+        server.setSelectorMode(Boolean.getBoolean(SocketServer.SELECTOR_PROPERTY));
+        int perTask = Integer.getInteger(ThreadPool.PER_TASK_PROPERTY, 0);
+        int workStealing = Integer.getInteger(ThreadPool.WORK_STEALING_PROPERTY, 0);
+        TPCMasterHandler handler;
+        if (perTask > 0) {
+            handler = new TPCMasterHandler(keyServer, slaveID, ThreadPool.perTask(perTask));
+        } else if (workStealing > 0) {
+            handler = new TPCMasterHandler(keyServer, slaveID, ThreadPool.workStealing(workStealing));
+        } else {
+            handler = new TPCMasterHandler(keyServer, slaveID);
+        }
         server.addHandler(handler);
         server.connect();
 
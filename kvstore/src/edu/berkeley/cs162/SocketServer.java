@@ -31,18 +31,43 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This is an generic class that should handle all TCP network connections
  * arriving on a given unique (host, port) tuple. Ensure that this class
  * remains generic by providing the connection handling logic in a NetworkHandler
+ *
+ * In selector mode, one thread accepts and reads every connection without
+ * blocking, and a MessageHandler is only handed whole requests. Idle
+ * clients, and clients slow to send, then cost no worker threads, so the
+ * server can hold many more connections open than it has workers.
  */
 public class SocketServer {
     private static final int SOCKET_TIMEOUT_MS = 500;
+    // Shared by every connection, since only the selector thread reads
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * If set to true, Server and SlaveServer run their SocketServers in
+     * selector mode.
+     */
+    static final String SELECTOR_PROPERTY = "kvstore.selector";
 
     public String hostname;
     public int port;
@@ -50,6 +75,16 @@ public class SocketServer {
     public ServerSocket server;
     public boolean running = false;
 
+    private boolean selectorMode = false;
+    private Selector selector = null;
+    private volatile Thread selectorThread = null;
+    // Guards handing the selector between run() and closeSocket()
+    private final Object selectorLock = new Object();
+    private ServerSocketChannel serverChannel = null;
+    private ByteBuffer readBuffer = null;
+    // Connections with replies to write, or that may be done
+    private final Queue<SelectorConnection> toService = new ConcurrentLinkedQueue<SelectorConnection>();
+
     public SocketServer(String hostname) {
         this(hostname, -1);
     }
@@ -76,6 +111,19 @@ public class SocketServer {
     }
 
 
+    /**
+     * Chooses between handing each accepted Socket to the handler (the
+     * default) and reading requests with a Selector, which needs the
+     * handler to be a MessageHandler. Must be called before connect().
+     */
+    public void setSelectorMode(boolean selectorMode) {
+        this.selectorMode = selectorMode;
+    }
+
+    public boolean isSelectorMode() {
+        return selectorMode;
+    }
+
     /**
      * Creates a ServerSocket. Uses 'port' if it is greater than zero, otherwise
      * selects a random port that is available. See ServerSocket API.
@@ -83,7 +131,20 @@ public class SocketServer {
      * @throws IOException
      */
     public void connect() throws IOException {
-        server = new ServerSocket(port);
+        if (!selectorMode) {
+            server = new ServerSocket(port);
+            return;
+        }
+        serverChannel = ServerSocketChannel.open();
+        // As a ServerSocket would, so a restarted server can bind right away
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port > 0 ? port : 0));
+        serverChannel.configureBlocking(false);
+        server = serverChannel.socket();
+        port = server.getLocalPort();
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
     }
 
     /**
@@ -92,6 +153,10 @@ public class SocketServer {
      * @throws IOException if there is a network error
      */
     public void run() throws IOException {
+        if (selectorMode) {
+            runSelector();
+            return;
+        }
         running = true;
         while(running) {
             try {
@@ -108,6 +173,142 @@ public class SocketServer {
     }
 
 
+    private void runSelector() throws IOException {
+        if (!(handler instanceof MessageHandler)) {
+            throw new IllegalStateException("Selector mode needs a MessageHandler");
+        }
+        MessageHandler messageHandler = (MessageHandler) handler;
+        List<byte[]> messages = new ArrayList<byte[]>();
+        long lastSweep = System.currentTimeMillis();
+        synchronized (selectorLock) {
+            // Closed before we got going
+            if (!selector.isOpen()) {
+                return;
+            }
+            selectorThread = Thread.currentThread();
+            running = true;
+        }
+        try {
+            while (running && serverChannel.isOpen()) {
+                selector.select(SOCKET_TIMEOUT_MS);
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while (ready.hasNext()) {
+                    SelectionKey key = ready.next();
+                    ready.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    SelectorConnection connection = (SelectorConnection) key.attachment();
+                    if (key.isWritable()) {
+                        connection.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection, messageHandler, messages);
+                    }
+                }
+                SelectorConnection connection;
+                while ((connection = toService.poll()) != null) {
+                    connection.flush();
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep > SOCKET_TIMEOUT_MS) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof SelectorConnection) {
+                    ((SelectorConnection) key.attachment()).close();
+                }
+            }
+            selector.close();
+            selectorThread = null;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+            key.attach(new SelectorConnection(this, client, key));
+        }
+    }
+
+    private void read(SelectorConnection connection, MessageHandler messageHandler,
+            List<byte[]> messages) {
+        messages.clear();
+        KVException malformed = null;
+        try {
+            connection.read(readBuffer, messages);
+        } catch (IOException e) {
+            connection.close();
+            return;
+        } catch (KVException e) {
+            malformed = e;
+        }
+        for (byte[] bytes : messages) {
+            boolean binary = (bytes[0] & 0xff) == KVMessage.BINARY_MAGIC;
+            MessageHandler.Replier replier = connection.newReplier(binary);
+            try {
+                KVMessage request = KVMessage.decode(bytes);
+                if (!request.isKeepAlive()) {
+                    // Last request on the connection
+                    connection.stopReading();
+                }
+                messageHandler.handle(request, replier);
+            } catch (KVException e) {
+                sendError(replier, e);
+                connection.stopReading();
+            } catch (IOException e) {
+                replier.close();
+                connection.close();
+            }
+        }
+        if (malformed != null) {
+            sendError(connection.newReplier(connection.isBinary()), malformed);
+        }
+        connection.flush();
+    }
+
+    private static void sendError(MessageHandler.Replier replier, KVException e) {
+        try {
+            replier.reply(e.getMsg());
+        } catch (KVException e1) {
+            replier.close();
+        }
+    }
+
+    /**
+     * Closes connections that have had nothing to do for too long.
+     */
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof SelectorConnection) {
+                SelectorConnection connection = (SelectorConnection) key.attachment();
+                if (connection.isIdle()
+                        && now - connection.getLastActivity() > KeepAliveReader.IDLE_TIMEOUT_MS) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Has the selector thread write out connection's replies, or close it
+     * if it is done. Can be called from any thread.
+     */
+    void service(SelectorConnection connection) {
+        toService.add(connection);
+        selector.wakeup();
+    }
+
     /**
      * Stop the ServerSocket
      */
@@ -121,6 +322,29 @@ public class SocketServer {
         } catch (IOException e) {
             // We can fall through here, it's not a killer if the socket doesn't close.
         }
+        if (selector != null) {
+            // A channel registered with a selector keeps its port until the
+            // selector lets go of it, so wait for that
+            Thread thread;
+            synchronized (selectorLock) {
+                thread = selectorThread;
+                if (thread == null) {
+                    try {
+                        selector.close();
+                    } catch (IOException e) {
+                        // As above
+                    }
+                }
+            }
+            if (thread != null && thread != Thread.currentThread()) {
+                selector.wakeup();
+                try {
+                    thread.join(2 * SOCKET_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 
     @Override
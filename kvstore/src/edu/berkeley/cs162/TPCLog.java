@@ -35,6 +35,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class TPCLog {
 
@@ -47,13 +49,20 @@ public class TPCLog {
     public ArrayList<KVMessage> entries = null;
 
     /*
-     * Keeps track of the interrupted 2PC operation if there is one. There can
-     * be at most one, ie., when the last 2PC operation before crashing was in
-     * READY state. This should be set during a call to rebuildKeyServer()
-     * during recovery.
+     * Keeps track of the interrupted 2PC operation if there is one, ie., when
+     * some 2PC operation before crashing was in READY state. This is the last
+     * log entry and is set during a call to rebuildKeyServer() during
+     * recovery; the operations themselves are in interruptedTpcOperations.
      */
     public KVMessage interruptedTpcOperation = null;
 
+    /*
+     * The master runs independent 2PC operations concurrently, so a slave can
+     * crash with several of them in READY state. Their phase-1 requests are
+     * kept here by op id until the master's decision for each one arrives.
+     */
+    private final Map<String, KVMessage> interruptedTpcOperations = new LinkedHashMap<String, KVMessage>();
+
     /**
      *
      * @param logPath
@@ -67,25 +76,27 @@ public class TPCLog {
         this.kvServer = kvServer;
     }
 
-    public ArrayList<KVMessage> getEntries() {
+    public synchronized ArrayList<KVMessage> getEntries() {
         return entries;
     }
 
-    public boolean empty() {
+    public synchronized boolean empty() {
         return entries.size() == 0;
     }
 
     /**
      * Add an entry to the log and flush the entire log to disk. You do not have
-     * to efficiently append entries onto the log stored on disk.
+     * to efficiently append entries onto the log stored on disk. A batchreq
+     * is a single entry, so all of its operations share one flush.
      *
      * @param entry
      *            KVMessage to write to the log
      */
-    public void appendAndFlush(KVMessage entry) {
+    public synchronized void appendAndFlush(KVMessage entry) {
         System.out.println("appending: " + entry.getMsgType());
         if ("putreq".equals(entry.getMsgType())
                 || "delreq".equals(entry.getMsgType())
+                || "batchreq".equals(entry.getMsgType())
                 || "ready".equals(entry.getMsgType())
                 || "abort".equals(entry.getMsgType())
                 || "commit".equals(entry.getMsgType())) {
@@ -98,7 +109,7 @@ public class TPCLog {
      * Load log from persistent storage.
      */
     @SuppressWarnings("unchecked")
-    public void loadFromDisk() {
+    public synchronized void loadFromDisk() {
         ObjectInputStream inputStream = null;
 
         try {
@@ -125,7 +136,7 @@ public class TPCLog {
     /**
      * Writes the log to persistent storage.
      */
-    public void flushToDisk() {
+    public synchronized void flushToDisk() {
         ObjectOutputStream outputStream = null;
 
         try {
@@ -149,34 +160,61 @@ public class TPCLog {
      * Load log and rebuild KVServer by iterating over log entries. You do not
      * need to restore the previous cache state (ie. ignore GETS). Set
      * interruptedTpcOperation, if there is one (ie., slave crashed in the READY
-     * state).
+     * state). Decisions are matched to their requests by op id, since the
+     * phases of concurrent operations interleave in the log.
      *
      * @throws KVException
      *             if an error occurs in KVServer (we do not expect any)
      */
-    public void rebuildKeyServer() throws KVException {
+    public synchronized void rebuildKeyServer() throws KVException {
         loadFromDisk();
-        KVMessage prev = null;
+        interruptedTpcOperations.clear();
         for (KVMessage entry : entries) {
             System.out.println("build: " + entry.getMsgType());
-            if (entry.getMsgType().equals("commit") && prev != null) {
-                if (prev.getMsgType().equals("putreq")) {
-                    kvServer.put(prev.getKey(), prev.getValue());
-                } else if (prev.getMsgType().equals("delreq")) {
-                    kvServer.del(prev.getKey());
+            String opId = entry.getTpcOpId();
+            if (entry.getMsgType().equals("commit")) {
+                KVMessage req = interruptedTpcOperations.remove(opId);
+                if (req == null) {
+                    continue;
+                }
+                if (req.getMsgType().equals("batchreq")) {
+                    for (KVMessage op : req.getBatch()) {
+                        apply(op, opId);
+                    }
+                } else {
+                    apply(req, opId);
                 }
-            } else if(entry.getMsgType().equals("putreq") || entry.getMsgType().equals("delreq")) {
-                prev = entry;
+            } else if (entry.getMsgType().equals("abort")) {
+                interruptedTpcOperations.remove(opId);
+            } else if(entry.getMsgType().equals("putreq") || entry.getMsgType().equals("delreq")
+                    || entry.getMsgType().equals("batchreq")) {
+                interruptedTpcOperations.put(opId, entry);
             }
         }
-        interruptedTpcOperation = entries.get(entries.size() - 1);
+        if (interruptedTpcOperations.isEmpty()) {
+            interruptedTpcOperation = null;
+        } else {
+            interruptedTpcOperation = entries.get(entries.size() - 1);
+        }
+    }
+
+    /*
+     * Applies req as the slave did, so commits that were logged out of op id
+     * order replay the same way
+     */
+    private void apply(KVMessage req, String opId) throws KVException {
+        if (req.getMsgType().equals("putreq")) {
+            kvServer.putIfNewer(req.getKey(), req.getValue(), opId);
+        } else if (req.getMsgType().equals("delreq")) {
+            kvServer.delIfNewer(req.getKey(), opId);
+        }
     }
 
     /**
      *
      * @return Interrupted 2PC operation, if any
      */
-    public KVMessage getInterruptedTpcOperation() {
+    public synchronized KVMessage getInterruptedTpcOperation() {
         KVMessage logEntry = interruptedTpcOperation;
         interruptedTpcOperation = null;
         return logEntry;
@@ -186,7 +224,24 @@ public class TPCLog {
      *
      * @return True if TPCLog contains an interrupted 2PC operation
      */
-    public boolean hasInterruptedTpcOperation() {
+    public synchronized boolean hasInterruptedTpcOperation() {
         return interruptedTpcOperation != null;
     }
+
+    /**
+     * Removes and returns the phase-1 request of an operation that was in
+     * READY state when the slave crashed.
+     *
+     * @param tpcOpId
+     *            Op id carried by the master's decision
+     * @return The putreq, delreq or batchreq for that op, or null if it was not
+     *         interrupted
+     */
+    public synchronized KVMessage takeInterruptedTpcOperation(String tpcOpId) {
+        KVMessage req = interruptedTpcOperations.remove(tpcOpId);
+        if (interruptedTpcOperations.isEmpty()) {
+            interruptedTpcOperation = null;
+        }
+        return req;
+    }
 }
@@ -37,6 +37,27 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 import edu.berkeley.cs162.TPCMaster.TPCRegistrationHandler.RegistrationHandler;
 
@@ -49,7 +70,10 @@ public class TPCMaster {
     private static final int REGISTRATION_PORT = 9090;
 
     // Cache stored in the Master/Coordinator Server
-    public KVCache masterCache = new KVCache(100, 10);
+    public KVCache masterCache = null;
+
+    // Misses on the same key share one read from its replicas
+    private SingleFlight replicaReads = null;
 
     // Registration server that uses TPCRegistrationHandler
     public SocketServer regServer = null;
@@ -57,10 +81,115 @@ public class TPCMaster {
     // Number of slave servers in the system
     public int numSlaves = -1;
 
-    // ID of the next 2PC operation
-    public Long tpcOpId = 0L;
+    // Most calls to slaves made at once on other threads
+    private static final int FAN_OUT_THREADS = 64;
+
+    // Runs calls to slaves so that both replicas are asked at once
+    private final ThreadPool fanOut = ThreadPool.perTask(FAN_OUT_THREADS);
+
+    // ID of the next 2PC operation. Slaves order the writes to a key by op
+    // id, so ids start from the clock to keep growing across restarts.
+    public final AtomicLong tpcOpId = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    // Replicas that fall behind on a write are brought up to date in the
+    // background, trying this many times at most, waiting twice as long
+    // after each failure
+    private static final int REPAIR_ATTEMPTS = 10;
+    private static final int REPAIR_BACKOFF_MS = 100;
+    // How often to check whether a replica that hadn't voted by the
+    // decision has voted since
+    private static final int LATE_VOTE_POLL_MS = 50;
+    // Repairs beyond this many are dropped rather than queued
+    private static final int MAX_PENDING_REPAIRS = 16 * 1024;
+    private static final int REPAIR_THREADS = 4;
+
+    private final ScheduledThreadPoolExecutor repairs =
+            new ScheduledThreadPoolExecutor(REPAIR_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable job) {
+                    Thread thread = new Thread(job, "TPCMaster repairs");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final AtomicInteger pendingRepairs = new AtomicInteger();
+
+    /*
+     * If set, Server puts that many points on the ring for each slave.
+     */
+    static final String VIRTUAL_NODES_PROPERTY = "kvstore.virtualNodes";
+
+    // One point per slave, at its ID, places keys as the spec describes
+    public static final int DEFAULT_VIRTUAL_NODES = 1;
+
+    // Registered slaves by ID. Guards rebuilding the ring.
+    private final TreeMap<Long, SlaveInfo> slaves = new TreeMap<Long, SlaveInfo>();
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+
+    // Rebuilt and swapped in whole on every change, so lookups take no lock
+    private volatile ConsistentHashRing<SlaveInfo> ring =
+            ConsistentHashRing.build(slaves, DEFAULT_VIRTUAL_NODES);
+
+    // Whether requests to slaves go out as binary frames rather than XML
+    private volatile boolean binaryProtocol = true;
+
+    // Most connections open to each slave at once
+    private volatile int maxConnectionsPerSlave = ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+
+    /*
+     * If set to a number above one, Server batches that many writes at most
+     * into each 2PC round. BATCH_WINDOW_PROPERTY sets how long a batch
+     * waits for them, in milliseconds.
+     */
+    static final String BATCH_OPS_PROPERTY = "kvstore.batchOps";
+    static final String BATCH_WINDOW_PROPERTY = "kvstore.batchWindowMs";
+
+    // Batches stop taking writes well before they'd be too big to send
+    private static final int MAX_BATCH_BYTES = KVMessage.MAX_FRAME_BYTES / 4;
+
+    // Group commit; one op per batch means every write has its own round
+    private volatile int maxBatchOps = 1;
+    private volatile int batchWindowMs = 0;
+
+    // The batch still taking writes for each primary slave
+    private final HashMap<Long, Batch> openBatches = new HashMap<Long, Batch>();
+    // Keys with a batched write under way; guarded by openBatches
+    private final HashSet<String> batchedKeys = new HashSet<String>();
+
+    /*
+     * If set, Server keeps that many replicas of each key, and needs
+     * WRITE_QUORUM_PROPERTY of them to commit a write and
+     * READ_QUORUM_PROPERTY of them to agree on a read.
+     */
+    static final String REPLICAS_PROPERTY = "kvstore.replicas";
+    static final String WRITE_QUORUM_PROPERTY = "kvstore.writeQuorum";
+    static final String READ_QUORUM_PROPERTY = "kvstore.readQuorum";
+
+    // Two replicas, both written, either read, as the spec describes
+    public static final int DEFAULT_REPLICAS = 2;
+    public static final int DEFAULT_WRITE_QUORUM = 2;
+    public static final int DEFAULT_READ_QUORUM = 1;
+
+    private volatile int replicas = DEFAULT_REPLICAS;
+    private volatile int writeQuorum = DEFAULT_WRITE_QUORUM;
+    private volatile int readQuorum = DEFAULT_READ_QUORUM;
+
+    /*
+     * If set, Server hedges reads that take longer than that percentile of
+     * recent reads, given as a fraction; 0 turns hedging off.
+     */
+    static final String HEDGE_PERCENTILE_PROPERTY = "kvstore.hedgePercentile";
+
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+    // How long before a read is hedged, until enough reads have been timed
+    private static final long INITIAL_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
 
-    private ArrayList<SlaveInfo> keySpace = new ArrayList<SlaveInfo>();
+    // Fraction of reads slower than the point a read is hedged; 0 if off
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+
+    // Recent read latencies across all slaves, for the hedge delay
+    private final LatencyWindow readLatencies = new LatencyWindow();
 
     /**
      * Creates TPCMaster
@@ -69,7 +198,25 @@ public class TPCMaster {
      * @throws Exception
      */
     public TPCMaster(int numSlaves) {
+        this(numSlaves, false);
+    }
+
+    /**
+     * Creates TPCMaster
+     *
+     * @param numSlaves number of slave servers expected to register
+     * @param admissionFilter whether masterCache only admits keys that are
+     *                        requested more often than what they'd evict
+     */
+    public TPCMaster(int numSlaves, boolean admissionFilter) {
         this.numSlaves = numSlaves;
+        masterCache = new KVCache(100, 10, admissionFilter);
+        replicaReads = new SingleFlight(masterCache, new SingleFlight.Loader() {
+            @Override
+            public String load(String key) throws KVException {
+                return readFromReplicas(key, findReplicas(key, replicas));
+            }
+        });
         try {
             regServer = new SocketServer(InetAddress.getLocalHost().getHostAddress(),
                                          REGISTRATION_PORT);
@@ -78,15 +225,129 @@ public class TPCMaster {
         }
     }
 
+    /**
+     * Slaves answer in whichever format they are asked in, so this only
+     * needs turning off for slaves that only speak XML.
+     *
+     * @param binaryProtocol whether requests to slaves are sent as binary
+     *                       frames (the default) or as XML
+     */
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    /**
+     * Gives each slave more points on the ring, at places derived from its
+     * ID, so that keys spread more evenly over the slaves.
+     *
+     * @param virtualNodes points on the ring for each slave
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        synchronized (slaves) {
+            ring = ConsistentHashRing.build(slaves, virtualNodes);
+            this.virtualNodes = virtualNodes;
+        }
+    }
+
+    /**
+     * Adds a slave to the ring, or replaces the one with the same ID.
+     *
+     * @return the slave it replaced, or null
+     */
+    private SlaveInfo addSlave(SlaveInfo info) {
+        synchronized (slaves) {
+            SlaveInfo old = slaves.put(info.getSlaveID(), info);
+            ring = ConsistentHashRing.build(slaves, virtualNodes);
+            return old;
+        }
+    }
+
+    /**
+     * Turns on group commit. Writes that go to the same pair of slaves and
+     * arrive within windowMs of the first are sent as one batchreq, which
+     * the slaves prepare, log and commit as a unit. This trades a little
+     * latency for far fewer round trips and log flushes under heavy writes.
+     *
+     * @param maxOps most writes in a batch; 1 turns batching off
+     * @param windowMs how long a batch waits for more writes, unless it
+     *                 fills up first
+     */
+    public void setBatching(int maxOps, int windowMs) {
+        if (maxOps < 1) {
+            throw new IllegalArgumentException("maxOps must be at least 1");
+        }
+        if (windowMs < 0) {
+            throw new IllegalArgumentException("windowMs can't be negative");
+        }
+        this.maxBatchOps = maxOps;
+        this.batchWindowMs = windowMs;
+    }
+
+    /**
+     * Sets how many slaves hold each key, and how many of them reads and
+     * writes need. A write is prepared on all n replicas and committed as
+     * soon as w of them are ready, so one slow replica no longer holds up
+     * every write; replicas that vote late still get the decision. A read
+     * returns the value once r replicas agree on it. Values aren't
+     * versioned, so reads only see the latest write for certain when
+     * w + r > n and r <= w.
+     *
+     * @param n replicas of each key, fewer if there aren't that many slaves
+     * @param w replicas that must be ready before a write commits
+     * @param r replicas that must agree on a value before a read returns it
+     */
+    public void setReplication(int n, int w, int r) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be at least 1");
+        }
+        if (w < 1 || w > n) {
+            throw new IllegalArgumentException("w must be between 1 and n");
+        }
+        if (r < 1 || r > n) {
+            throw new IllegalArgumentException("r must be between 1 and n");
+        }
+        this.replicas = n;
+        this.writeQuorum = w;
+        this.readQuorum = r;
+    }
+
+    /**
+     * Reads go first to the replica with the fewest requests outstanding,
+     * and then the lowest average latency. If it hasn't answered once the
+     * given percentile of recent reads would have, the next replica is
+     * asked too and the first answer wins. A slave that stalls, say for a
+     * long GC pause, then costs a read little more than a typical read.
+     *
+     * @param percentile fraction of reads to be faster than the hedge
+     *                   delay, such as 0.95; 0 turns hedging off
+     */
+    public void setHedgedReads(double percentile) {
+        if (percentile < 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be at least 0 and below 1");
+        }
+        this.hedgePercentile = percentile;
+    }
+
+    /**
+     * @param maxConnections most connections open to each slave at once;
+     *                       requests past that wait for one to come free
+     */
+    public void setMaxConnectionsPerSlave(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnectionsPerSlave = maxConnections;
+    }
+
     /**
      * Calculates tpcOpId to be used for an operation. In this implementation
      * it is a long variable that increases by one for each 2PC operation.
+     * Concurrent operations each get their own id without taking a lock.
      *
      * @return
      */
     public String getNextTpcOpId() {
-        tpcOpId++;
-        return tpcOpId.toString();
+        return Long.toString(tpcOpId.incrementAndGet());
     }
 
     /**
@@ -168,16 +429,8 @@ public class TPCMaster {
      * @return SlaveInfo of first replica
      */
     public SlaveInfo findFirstReplica(String key) {
-        // 64-bit hash of the key
-        long hashedKey = hashTo64bit(key.toString());
-        for(SlaveInfo info : keySpace) {
-            // Return the first slave that has a higher ID than the hashed key
-            if(isLessThanEqualUnsigned(hashedKey, info.getSlaveID())) {
-                return info;
-            }
-        }
-        // If it's greater than the last element we give it the first one.
-        return keySpace.get(0);
+        // The first slave at or after the key's 64-bit hash, going round
+        return ring.get(hashTo64bit(key.toString()));
     }
 
     /**
@@ -187,96 +440,476 @@ public class TPCMaster {
      * @return SlaveInfo of successor replica
      */
     public SlaveInfo findSuccessor(SlaveInfo firstReplica) {
-        int index = keySpace.indexOf(firstReplica);
-        if(index == keySpace.size() - 1) {
-            return keySpace.get(0);
-        } else {
-            return keySpace.get(index + 1);
-        }
+        List<SlaveInfo> next = ring.get(firstReplica.getSlaveID(), 2);
+        return next.get(next.size() - 1);
     }
 
     /**
-     * Synchronized method to perform 2PC operations. This method contains the
-     * bulk of the two-phase commit logic. It performs phase 1 and phase 2
-     * with appropriate timeouts and retries. See the spec for details on the
+     * Find the replicas for a given key: its primary, then the next slaves
+     * round the ring. With virtual nodes, these depend on where the key
+     * falls and not just on which slave is its primary.
+     *
+     * @param key
+     * @param n number of replicas
+     * @return SlaveInfo of each replica, primary first; fewer than n if
+     *         there aren't that many slaves
+     */
+    public List<SlaveInfo> findReplicas(String key, int n) {
+        return ring.get(hashTo64bit(key.toString()), n);
+    }
+
+    /**
+     * Performs a 2PC operation. This method contains the bulk of the
+     * two-phase commit logic. It performs phase 1 and phase 2 with
+     * appropriate timeouts and retries. See the spec for details on the
      * expected behavior.
      *
+     * Only the key's cache set is locked for the operation, so writes to the
+     * same key stay ordered while writes elsewhere, usually to other slaves,
+     * run their two phases at the same time. With batching on, writes to the
+     * same slaves share their rounds; see setBatching. A batched write only
+     * locks the set to update the cache once it has committed, and holds
+     * just its key while the batch fills up and runs.
+     *
      * @param msg
      * @param isPutReq boolean to distinguish put and del requests
      * @throws KVException if the operation cannot be carried out
      */
-    public synchronized void performTPCOperation(KVMessage msg, boolean isPutReq) throws KVException {
+    public void performTPCOperation(KVMessage msg, boolean isPutReq) throws KVException {
         AutoGrader.agPerformTPCOperationStarted(isPutReq);
 
         String key = msg.getKey();
         String value = msg.getValue();
-        String opId = getNextTpcOpId();
 
-        synchronized(masterCache.getWriteLock(key)) {
+        boolean batched = (maxBatchOps > 1);
+        WriteLock setLock = masterCache.getWriteLock(key);
+        if (batched) {
+            holdKey(key);
+        } else {
+            setLock.lock();
+        }
+        try {
             KVMessage req = new KVMessage(isPutReq ? "putreq" : "delreq");
             req.setKey(key);
             if(isPutReq) {
                 req.setValue(value);
             }
-            req.setTpcOpId(opId);
 
-            SlaveInfo primary = findFirstReplica(key);
-            SlaveInfo secondary = findSuccessor(primary);
+            List<SlaveInfo> targets = findReplicas(key, replicas);
 
-            Socket pCon = primary.connectHost();
-            Socket sCon = secondary.connectHost();
-            boolean abort = false;
-            // Send the initial message
             try {
-                req.sendMessage(pCon);
+                if (batched) {
+                    commitInBatch(targets, req);
+                } else {
+                    runTPCRound(targets, req);
+                }
             } catch (KVException e) {
-                abort = true;
+                AutoGrader.agPerformTPCOperationFinished(isPutReq);
+                throw e;
+            } finally {
+                if (batched) {
+                    // Only now, so other writes to the set never wait out
+                    // this one's batch window
+                    setLock.lock();
+                }
             }
-            try {
-                req.sendMessage(sCon);
-            } catch (KVException e) {
-                abort = true;
+            // We need to update the cache after our operation completes.
+            if(masterCache.get(key) != null) {
+                if(isPutReq) {
+                    masterCache.put(key, value);
+                } else {
+                    masterCache.del(key);
+                }
+            }
+
+            AutoGrader.agPerformTPCOperationFinished(isPutReq);
+            return;
+        } finally {
+            // Reads of the key in flight may be from before the write
+            replicaReads.forget(key);
+            setLock.unlock();
+            if (batched) {
+                releaseKey(key);
+            }
+        }
+    }
+
+    /**
+     * Runs both phases of 2PC for req, a putreq, delreq or batchreq that
+     * doesn't have an op id yet. The decision is made as soon as the write
+     * quorum is ready, or can no longer be. After a commit, replicas that
+     * hadn't voted by then, refused or couldn't be reached are brought up
+     * to date in the background; see Repair.
+     *
+     * @throws KVException with the slaves' errors if the operation aborted
+     */
+    private void runTPCRound(List<SlaveInfo> targets, KVMessage req) throws KVException {
+        // Taken while the write holds its set lock or, batched, its key, so
+        // ids for one key follow commit order
+        String opId = getNextTpcOpId();
+        req.setTpcOpId(opId);
+
+        // Every replica gets the request at once, each call with its own
+        // timeout. A slave that can't be reached answers with the error.
+        BlockingQueue<Call> voted = new LinkedBlockingQueue<Call>();
+        List<Call> votes = startAll(targets, req, TIMEOUT_MILLISECONDS, voted);
+        int needed = Math.min(writeQuorum, targets.size());
+        int ready = 0;
+        int refused = 0;
+        while (ready < needed && refused <= targets.size() - needed) {
+            Call vote = takeUninterruptibly(voted);
+            if ("ready".equals(awaitReply(vote).getMsgType())) {
+                ready++;
+            } else {
+                refused++;
+            }
+        }
+
+        if (ready < needed) {
+            // Aborts aren't in a hurry, so the error can say what every
+            // replica answered
+            List<KVMessage> replies = new ArrayList<KVMessage>(votes.size());
+            for (Call vote : votes) {
+                replies.add(awaitReply(vote));
+            }
+            sendDecisionUntilAck(voters(votes), "abort", opId);
+            throw new KVException(mergeErrorMessages(targets, replies));
+        }
+
+        // Send commit to everyone who has answered
+        List<SlaveInfo> answered = new ArrayList<SlaveInfo>(votes.size());
+        List<SlaveInfo> behind = new ArrayList<SlaveInfo>();
+        for (Call vote : votes) {
+            if (!vote.isDone()) {
+                repair(new Repair(vote.slave, req, vote));
+                continue;
+            }
+            KVMessage reply = awaitReply(vote);
+            if (isVote(reply)) {
+                answered.add(vote.slave);
+            }
+            if (!"ready".equals(reply.getMsgType())) {
+                behind.add(vote.slave);
+            }
+        }
+        sendDecisionUntilAck(answered, "commit", opId);
+        for (SlaveInfo slave : behind) {
+            repair(new Repair(slave, req, null));
+        }
+    }
+
+    /**
+     * @return the number of replicas still to be brought up to date with
+     *         writes they fell behind on.
+     */
+    public int getPendingRepairs() {
+        return pendingRepairs.get();
+    }
+
+    private void repair(Repair repair) {
+        if (pendingRepairs.incrementAndGet() > MAX_PENDING_REPAIRS) {
+            pendingRepairs.decrementAndGet();
+            System.out.println("Too many repairs queued; " + repair.slave.getSlaveID()
+                    + " stays behind on op " + repair.opId);
+            return;
+        }
+        try {
+            repairs.execute(repair);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+            pendingRepairs.decrementAndGet();
+        }
+    }
+
+    /**
+     * Brings one replica up to date with a committed write it fell behind
+     * on. If it hadn't voted by the decision, it is sent the commit once it
+     * does. If it refused the write or couldn't be reached, each put and
+     * del in the write is sent to it again, under the write's op id, in a
+     * 2PC exchange of its own. Slaves apply the writes to a key in op id
+     * order, so a repair that lands after a later write to the key is
+     * dropped rather than undoing it.
+     *
+     * Repairs run on their own threads, never holding up writers, and give
+     * up after REPAIR_ATTEMPTS failures in a row.
+     */
+    private final class Repair implements Runnable {
+        final SlaveInfo slave;
+        final String opId;
+        // The replica's vote, if it was still out at the decision
+        private Call vote;
+        // Prepared on the replica, and waiting for the commit
+        private boolean prepared = false;
+        // Puts and dels still to send to the replica
+        private final LinkedList<KVMessage> missed = new LinkedList<KVMessage>();
+        private int failures = 0;
+
+        Repair(SlaveInfo slave, KVMessage req, Call vote) {
+            this.slave = slave;
+            this.opId = req.getTpcOpId();
+            this.vote = vote;
+            List<KVMessage> ops = "batchreq".equals(req.getMsgType())
+                    ? req.getBatch() : Arrays.asList(req);
+            for (KVMessage op : ops) {
+                KVMessage copy = new KVMessage(op);
+                copy.setTpcOpId(opId);
+                missed.add(copy);
             }
+        }
+
+        @Override
+        public void run() {
+            if (vote != null) {
+                if (!vote.isDone()) {
+                    repairs.schedule(this, LATE_VOTE_POLL_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                KVMessage reply = awaitReply(vote);
+                vote = null;
+                if (isVote(reply)) {
+                    // Either way the replica waits for a decision
+                    prepared = true;
+                    if ("ready".equals(reply.getMsgType())) {
+                        missed.clear();
+                    }
+                }
+            }
+            while (prepared || !missed.isEmpty()) {
+                if (prepared) {
+                    if (!"ack".equals(callOnce(decision("commit")).getMsgType())) {
+                        retry();
+                        return;
+                    }
+                    prepared = false;
+                    failures = 0;
+                    continue;
+                }
+                // A del of a key the replica doesn't have is refused, and
+                // leaves nothing to catch up on
+                if (!isVote(callOnce(missed.peek()))) {
+                    retry();
+                    return;
+                }
+                missed.poll();
+                prepared = true;
+            }
+            pendingRepairs.decrementAndGet();
+        }
+
+        private void retry() {
+            if (++failures >= REPAIR_ATTEMPTS) {
+                System.out.println("Giving up on bringing " + slave.getSlaveID()
+                        + " up to date with op " + opId);
+                pendingRepairs.decrementAndGet();
+                return;
+            }
+            long delay = Math.min((long) REPAIR_BACKOFF_MS << failures, TIMEOUT_MILLISECONDS);
+            repairs.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private KVMessage callOnce(KVMessage request) {
+            Call call = new Call(slave, request, TIMEOUT_MILLISECONDS, null);
+            call.run();
+            return awaitReply(call);
+        }
 
-            // Get the first response
-            KVMessage pResp = null;
-            KVMessage sResp = null;
+        private KVMessage decision(String type) {
             try {
-                pResp = new KVMessage(pCon, TIMEOUT_MILLISECONDS);
-                sResp = new KVMessage(sCon, TIMEOUT_MILLISECONDS);
+                KVMessage decision = new KVMessage(type);
+                decision.setTpcOpId(opId);
+                return decision;
             } catch (KVException e) {
-                abort = true;
+                // This won't happen.
+                throw new RuntimeException(e);
             }
-            if(abort || (!"ready".equals(pResp.getMsgType()) || !"ready".equals(sResp.getMsgType()))) {
-                // Send abort if we don't recieve anything
-                sendDecisionUntilAck(primary, secondary, "abort", opId);
-                KVMessage errorMsg = mergeErrorMessages(primary, pResp, secondary, sResp);
-                AutoGrader.agPerformTPCOperationFinished(isPutReq);
-                throw new KVException(errorMsg);
-            } else {
-                // Send commit if we've recieved everything
-                sendDecisionUntilAck(primary, secondary, "commit", opId);
-                // We need to update the cache after our operation completes.
-                if(masterCache.get(key) != null) {
-                    if(isPutReq) {
-                        masterCache.put(key, value);
-                    } else {
-                        masterCache.del(key);
-                	}
+        }
+    }
+
+    /**
+     * @return the slaves that voted, ready or not, once every vote is in.
+     *         The rest couldn't be reached and have nothing to decide.
+     */
+    private static List<SlaveInfo> voters(List<Call> votes) {
+        List<SlaveInfo> voters = new ArrayList<SlaveInfo>(votes.size());
+        for (Call vote : votes) {
+            if (isVote(awaitReply(vote))) {
+                voters.add(vote.slave);
+            }
+        }
+        return voters;
+    }
+
+    private static boolean isVote(KVMessage reply) {
+        return "ready".equals(reply.getMsgType()) || "abort".equals(reply.getMsgType());
+    }
+
+    /**
+     * Writes that share one 2PC round. The first write to join leads the
+     * batch: it waits out the window, runs the round, and then hands every
+     * write its outcome.
+     */
+    private static final class Batch {
+        final List<SlaveInfo> replicas;
+        final List<KVMessage> ops = new ArrayList<KVMessage>();
+        long bytes = 0;
+
+        // Error for each write, null for ones that committed. Null as a
+        // whole if the leader failed before it knew.
+        private KVMessage[] errors = null;
+        private boolean done = false;
+
+        Batch(List<SlaveInfo> replicas) {
+            this.replicas = replicas;
+        }
+
+        /** @return the write's index in the batch */
+        int add(KVMessage op) {
+            ops.add(op);
+            // No more than this once encoded
+            bytes += 3 * (op.getKey().length()
+                    + (op.getValue() == null ? 0 : op.getValue().length())) + 32;
+            return ops.size() - 1;
+        }
+
+        synchronized void finish(KVMessage[] errors) {
+            this.errors = errors;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the leader to finish. Interrupts can't cut this short, as
+         * the write may still commit.
+         */
+        synchronized void await(int index) throws KVException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
             }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (errors == null) {
+                throw new KVException(new KVMessage("resp", "Unknown Error: batch did not finish"));
+            }
+            if (errors[index] != null) {
+                throw new KVException(errors[index]);
+            }
+        }
+    }
 
-            AutoGrader.agPerformTPCOperationFinished(isPutReq);
-            return;
+    /**
+     * Waits until no other batched write to key is under way, and then
+     * claims it. A second write to a key never joins the batch holding the
+     * first, and doesn't start until the first has committed and updated
+     * the cache, so writes to a key keep their order.
+     */
+    private void holdKey(String key) {
+        boolean interrupted = false;
+        synchronized (openBatches) {
+            while (!batchedKeys.add(key)) {
+                try {
+                    openBatches.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void releaseKey(String key) {
+        synchronized (openBatches) {
+            batchedKeys.remove(key);
+            openBatches.notifyAll();
+        }
+    }
+
+    /**
+     * Commits req as part of a batch with other writes to the same replicas.
+     * Callers hold the key with holdKey(), so no batch ever has two writes
+     * to the same key.
+     */
+    private void commitInBatch(List<SlaveInfo> targets, KVMessage req) throws KVException {
+        Long slaveID = targets.get(0).getSlaveID();
+        Batch batch;
+        int index;
+        synchronized (openBatches) {
+            batch = openBatches.get(slaveID);
+            if (batch == null || !batch.replicas.equals(targets)) {
+                batch = new Batch(targets);
+                openBatches.put(slaveID, batch);
+            }
+            index = batch.add(req);
+            if (batch.ops.size() >= maxBatchOps || batch.bytes >= MAX_BATCH_BYTES) {
+                // Full, so the leader needn't wait any longer
+                openBatches.remove(slaveID);
+                openBatches.notifyAll();
+            }
+        }
+        if (index == 0) {
+            KVMessage[] errors = null;
+            try {
+                errors = leadBatch(batch);
+            } finally {
+                batch.finish(errors);
+            }
         }
+        batch.await(index);
     }
 
-    private void sendDecisionUntilAck(SlaveInfo primary, SlaveInfo secondary, String decision, String opId) {
-        boolean pAcked = false;
-        boolean sAcked = false;
-        Socket pCon = null;
-        Socket sCon = null;
+    /**
+     * @return the error for each write in the batch, null where it committed
+     */
+    private KVMessage[] leadBatch(Batch batch) throws KVException {
+        Long slaveID = batch.replicas.get(0).getSlaveID();
+        synchronized (openBatches) {
+            long deadline = System.currentTimeMillis() + batchWindowMs;
+            long wait = batchWindowMs;
+            try {
+                while (openBatches.get(slaveID) == batch && wait > 0) {
+                    openBatches.wait(wait);
+                    wait = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                // Stop waiting, but still run the round
+                Thread.currentThread().interrupt();
+            }
+            if (openBatches.get(slaveID) == batch) {
+                openBatches.remove(slaveID);
+            }
+        }
+
+        // Nothing joins the batch from here on
+        KVMessage[] errors = new KVMessage[batch.ops.size()];
+        if (batch.ops.size() > 1) {
+            KVMessage batchReq = new KVMessage("batchreq");
+            batchReq.setBatch(batch.ops);
+            try {
+                runTPCRound(batch.replicas, batchReq);
+                return errors;
+            } catch (KVException e) {
+                // One write's failure shouldn't fail the rest, so each
+                // gets a round of its own
+            }
+        }
+        for (int i = 0; i < errors.length; i++) {
+            try {
+                runTPCRound(batch.replicas, batch.ops.get(i));
+            } catch (KVException e) {
+                errors[i] = e.getMsg();
+            }
+        }
+        return errors;
+    }
 
+    private void sendDecisionUntilAck(List<SlaveInfo> targets, String decision, String opId) {
         // Build decision
         KVMessage commitMsg;
         try {
@@ -288,48 +921,175 @@ public class TPCMaster {
     	}
         commitMsg.setTpcOpId(opId);
 
-        while(!(pAcked && sAcked)) {
-            if(!pAcked) {
-                try {
-                    // Send decision
-                    pCon = primary.connectHost();
-                    commitMsg.sendMessage(pCon);
-                    // Wait for ack
-                    KVMessage pAck = new KVMessage(pCon, TIMEOUT_MILLISECONDS);
-                    if("ack".equals(pAck.getMsgType())) {
-                        pAcked = true;
+        // Resend to whichever slaves haven't acked, all at once
+        List<SlaveInfo> unacked = new ArrayList<SlaveInfo>(targets);
+        while(!unacked.isEmpty()) {
+            List<KVMessage> acks = callAll(unacked, commitMsg, TIMEOUT_MILLISECONDS);
+            for (int i = acks.size() - 1; i >= 0; i--) {
+                if ("ack".equals(acks.get(i).getMsgType())) {
+                    unacked.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * A call to one slave, run on another thread.
+     */
+    private static final class Call extends FutureTask<KVMessage> {
+        final SlaveInfo slave;
+        // Where the call goes once it's done, if anywhere
+        private final BlockingQueue<Call> done;
+
+        Call(final SlaveInfo slave, final KVMessage request, final int timeoutMs,
+                BlockingQueue<Call> done) {
+            super(new Callable<KVMessage>() {
+                @Override
+                public KVMessage call() throws KVException {
+                    slave.requestStarted();
+                    long start = System.nanoTime();
+                    boolean failed = true;
+                    try {
+                        KVMessage reply = slave.getPool().call(request, timeoutMs);
+                        failed = false;
+                        return reply;
+                    } finally {
+                        slave.requestFinished(System.nanoTime() - start, failed);
                     }
-                } catch (KVException e) {
-                    pAcked = false;
-                    e.printStackTrace();
                 }
+            });
+            this.slave = slave;
+            this.done = done;
+        }
+
+        @Override
+        protected void done() {
+            if (done != null) {
+                done.add(this);
             }
-            if(!sAcked) {
+        }
+    }
+
+    /**
+     * Starts sending request to every slave in targets at once.
+     *
+     * @param done if not null, gets each call as it finishes
+     * @return the calls, in the order of targets
+     */
+    private List<Call> startAll(List<SlaveInfo> targets, KVMessage request, int timeoutMs,
+            BlockingQueue<Call> done) {
+        List<Call> calls = new ArrayList<Call>(targets.size());
+        for (SlaveInfo slave : targets) {
+            Call call = new Call(slave, request, timeoutMs, done);
+            calls.add(call);
+            submit(call);
+        }
+        return calls;
+    }
+
+    /**
+     * Sends request to every slave in targets at the same time and waits for
+     * all of their replies. Each call has its own timeout, so this takes about
+     * one round trip to the slowest slave rather than the sum of them.
+     *
+     * @return each slave's reply, in order, or the error its call failed with
+     */
+    private List<KVMessage> callAll(List<SlaveInfo> targets, KVMessage request, int timeoutMs) {
+        if (targets.isEmpty()) {
+            return new ArrayList<KVMessage>();
+        }
+        List<Call> calls = startAll(targets.subList(0, targets.size() - 1), request, timeoutMs, null);
+        // This thread would only be waiting, so it makes the last call
+        Call last = new Call(targets.get(targets.size() - 1), request, timeoutMs, null);
+        calls.add(last);
+        last.run();
+
+        List<KVMessage> replies = new ArrayList<KVMessage>(calls.size());
+        for (Call call : calls) {
+            replies.add(awaitReply(call));
+        }
+        return replies;
+    }
+
+    private void submit(Runnable job) {
+        try {
+            fanOut.addToQueue(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.run();
+        }
+    }
+
+    /**
+     * @return the next call done within timeoutNanos, or null
+     */
+    private static Call pollUninterruptibly(BlockingQueue<Call> queue, long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        boolean interrupted = false;
+        try {
+            while (true) {
                 try {
-                    // Send decision
-                    sCon = secondary.connectHost();
-                    commitMsg.sendMessage(sCon);
-                    // Wait for ack
-                    KVMessage sAck = new KVMessage(sCon, TIMEOUT_MILLISECONDS);
-                    if("ack".equals(sAck.getMsgType())) {
-                        sAcked = true;
-                    }
-                } catch (KVException e) {
-                    sAcked = false;
+                    return queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
             }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Call takeUninterruptibly(BlockingQueue<Call> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static KVMessage awaitReply(FutureTask<KVMessage> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KVException) {
+                return ((KVException) e.getCause()).getMsg();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            try {
+                return new KVMessage("resp", "Unknown Error: Interrupted waiting for slave");
+            } catch (KVException e1) {
+                // This won't happen.
+                throw new RuntimeException(e1);
+            }
         }
     }
 
     /**
      * Perform GET operation in the following manner:
      * - Try to GET from cache, return immediately if found
-     * - Try to GET from first/primary replica
-     * - If primary succeeded, return value
-     * - If primary failed, try to GET from the other replica
-     * - If secondary succeeded, return value
-     * - If secondary failed, return KVExceptions from both replicas
-     * Please see spec for more details.
+     * - If another GET of the key is already reading from the replicas,
+     *   wait for its answer instead
+     * - Try to GET from the first read quorum of replicas at once, least
+     *   loaded first
+     * - If enough of them agree on the value, return it
+     * - If not, or they are slow to answer, try the other replicas one at a
+     *   time until enough do
+     * - If they never do, return KVExceptions from every replica tried
+     * With the default read quorum of one and the replicas idle, this is the
+     * primary and then the other replica, as in the spec.
      *
      * @param msg Message containing Key to get
      * @return Value corresponding to the Key
@@ -338,37 +1098,158 @@ public class TPCMaster {
     public String handleGet(KVMessage msg) throws KVException {
         AutoGrader.aghandleGetStarted();
         String key = msg.getKey();
-        synchronized(masterCache.getWriteLock(key)) {
-            String value = masterCache.get(key);
-            if(value == null) {
-                SlaveInfo primary = findFirstReplica(key);
-                SlaveInfo secondary = findSuccessor(primary);
-                KVMessage getReq = new KVMessage("getreq");
-                getReq.setKey(key);
-                Socket pCon = primary.connectHost();
-                getReq.sendMessage(pCon);
-                KVMessage pResp = new KVMessage(pCon);
-                if(pResp.getValue() != null) {
-                    value = pResp.getValue();
-                } else {
-                    Socket sCon = secondary.connectHost();
-                    getReq.sendMessage(sCon);
-                    KVMessage sResp = new KVMessage(sCon);
-                    if(sResp.getValue() != null) {
-                        value = sResp.getValue();
-                    } else {
-                        KVMessage merged = mergeErrorMessages(primary, pResp, secondary, sResp);
-                        AutoGrader.aghandleGetFinished();
-                        throw new KVException(merged);
-                    }
-                }
-            }
+        // Cache hits don't need the set lock
+        String value = masterCache.get(key);
+        if(value != null) {
             AutoGrader.aghandleGetFinished();
             return value;
         }
+        // Misses don't hold the set lock over the network, and concurrent
+        // misses on the key wait for the same read
+        try {
+            value = replicaReads.get(key);
+        } catch (KVException e) {
+            AutoGrader.aghandleGetFinished();
+            throw e;
+        }
+        AutoGrader.aghandleGetFinished();
+        return value;
+    }
+
+    /**
+     * @return the value that the read quorum of targets agree on
+     * @throws KVException with what every replica asked answered, if they
+     *         never agree
+     */
+    private String readFromReplicas(String key, List<SlaveInfo> targets) throws KVException {
+        KVMessage getReq = new KVMessage("getreq");
+        getReq.setKey(key);
+        List<SlaveInfo> ordered = orderForRead(targets);
+        int needed = Math.min(readQuorum, ordered.size());
+        Map<String, Integer> agreeing = new HashMap<String, Integer>();
+        List<SlaveInfo> asked = new ArrayList<SlaveInfo>(ordered.size());
+        List<KVMessage> replies = new ArrayList<KVMessage>(ordered.size());
+        long start = System.nanoTime();
+
+        // Ask as many as it takes to agree at once. Then ask one more each
+        // time one fails to, or the others are slow to answer.
+        BlockingQueue<Call> answered = new LinkedBlockingQueue<Call>();
+        int started = 0;
+        for (; started < needed; started++) {
+            submit(new Call(ordered.get(started), getReq, TIMEOUT_MILLISECONDS, answered));
+        }
+        int waiting = started;
+        long hedgeNanos = hedgeDelayNanos();
+        while (waiting > 0) {
+            Call call;
+            if (started < ordered.size() && hedgeNanos > 0) {
+                call = pollUninterruptibly(answered, hedgeNanos);
+                if (call == null) {
+                    // Slow; hedge with the next replica
+                    submit(new Call(ordered.get(started++), getReq, TIMEOUT_MILLISECONDS, answered));
+                    waiting++;
+                    continue;
+                }
+            } else {
+                call = takeUninterruptibly(answered);
+            }
+            waiting--;
+
+            KVMessage reply = awaitReply(call);
+            asked.add(call.slave);
+            replies.add(reply);
+            String value = reply.getValue();
+            if (value != null) {
+                Integer count = agreeing.get(value);
+                count = (count == null) ? 1 : count + 1;
+                if (count >= needed) {
+                    // Any other calls still out are left to finish alone
+                    readLatencies.add(System.nanoTime() - start);
+                    return value;
+                }
+                agreeing.put(value, count);
+            }
+            if (started < ordered.size()) {
+                submit(new Call(ordered.get(started++), getReq, TIMEOUT_MILLISECONDS, answered));
+                waiting++;
+            }
+        }
+        throw new KVException(mergeErrorMessages(asked, replies));
     }
 
-    private KVMessage mergeErrorMessages(SlaveInfo primary, KVMessage pError, SlaveInfo secondary, KVMessage sError) {
+    /**
+     * @return targets with the least loaded first: fewest requests
+     *         outstanding, then the lowest average latency, then ring order
+     */
+    private static List<SlaveInfo> orderForRead(List<SlaveInfo> targets) {
+        List<SlaveInfo> ordered = new ArrayList<SlaveInfo>(targets);
+        // A stable sort, so idle replicas stay in ring order
+        Collections.sort(ordered, new Comparator<SlaveInfo>() {
+            @Override
+            public int compare(SlaveInfo a, SlaveInfo b) {
+                int byLoad = a.getOutstandingRequests() - b.getOutstandingRequests();
+                if (byLoad != 0) {
+                    return byLoad;
+                }
+                long x = a.getLatencyEwmaNanos();
+                long y = b.getLatencyEwmaNanos();
+                return (x < y) ? -1 : ((x == y) ? 0 : 1);
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * @return how long to wait on a read before hedging it, or 0 if reads
+     *         aren't hedged
+     */
+    private long hedgeDelayNanos() {
+        double percentile = hedgePercentile;
+        if (percentile <= 0) {
+            return 0;
+        }
+        long delay = readLatencies.percentile(percentile);
+        return (delay < 0) ? INITIAL_HEDGE_DELAY_NANOS : Math.max(delay, 1);
+    }
+
+    /**
+     * The latencies of the last few reads, kept to find percentiles of.
+     */
+    private static final class LatencyWindow {
+        private static final int SIZE = 1024;
+        // Percentiles are found again after this many new samples
+        private static final int RECOMPUTE_EVERY = 64;
+
+        private final long[] samples = new long[SIZE];
+        private long count = 0;
+        private double cachedPercentile = -1;
+        private long cachedValue = -1;
+        private long cachedAt = -1;
+
+        synchronized void add(long nanos) {
+            samples[(int) (count++ % SIZE)] = nanos;
+        }
+
+        /**
+         * @return the percentile of the window, or -1 until it has enough
+         *         samples to say
+         */
+        synchronized long percentile(double percentile) {
+            if (count < RECOMPUTE_EVERY) {
+                return -1;
+            }
+            if (percentile != cachedPercentile || count - cachedAt >= RECOMPUTE_EVERY) {
+                long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SIZE));
+                Arrays.sort(sorted);
+                cachedValue = sorted[(int) Math.min(sorted.length - 1, (long) (percentile * sorted.length))];
+                cachedPercentile = percentile;
+                cachedAt = count;
+            }
+            return cachedValue;
+        }
+    }
+
+    private KVMessage mergeErrorMessages(List<SlaveInfo> targets, List<KVMessage> replies) {
         KVMessage toReturn;
         try {
             toReturn = new KVMessage("resp");
@@ -376,9 +1257,19 @@ public class TPCMaster {
             // We should never hit this case because we are using a predefined type.
             throw new RuntimeException(e);
         }
-        String message1 = "@" + primary.getSlaveID() + ":=" + pError.getMessage() + "\n";
-        String message2 = "@" + secondary.getSlaveID() + ":=" + sError.getMessage();
-        toReturn.setMessage(message1 + message2);
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < replies.size(); i++) {
+            if (i > 0) {
+                message.append("\n");
+            }
+            KVMessage reply = replies.get(i);
+            String error = reply.getMessage();
+            if (error == null && reply.getValue() != null) {
+                error = "Not enough replicas agree on the value";
+            }
+            message.append("@").append(targets.get(i).getSlaveID()).append(":=").append(error);
+        }
+        toReturn.setMessage(message.toString());
         return toReturn;
     }
 
@@ -421,34 +1312,25 @@ public class TPCMaster {
 
             @Override
             public void run() {
+                boolean binary = false;
                 try {
                     KVMessage regMsg = new KVMessage(client);
+                    binary = regMsg.isBinary();
                     if("register".equals(regMsg.getMsgType())) {
                         SlaveInfo info = new SlaveInfo(regMsg.getMessage());
-                        // Search through our list to ensure it isn't there.
-                        for(int i = 0; i < keySpace.size(); i++) {
-                            if(keySpace.get(i).getSlaveID() == info.getSlaveID()) {
-                                keySpace.set(i, info);
-                                new KVMessage("resp", "Success").sendMessage(client);
-                                return;
-                            }
+                        SlaveInfo old = addSlave(info);
+                        if (old != null) {
+                            // It may have moved, so drop connections to
+                            // where it was
+                            old.close();
                         }
-                        // If not, add a new node into the space where it belongs
-                        for(int i = 0; i < keySpace.size(); i++) {
-                            if(isLessThanUnsigned(info.getSlaveID(), keySpace.get(i).getSlaveID())) {
-                                keySpace.add(i, info);
-                                return;
-                            }
-                        }
-                        // If we didn't add it, add it to the end
-                        keySpace.add(info);
-                        new KVMessage("resp", "Success").sendMessage(client);
+                        new KVMessage("resp", "Success").sendMessage(client, binary);
                     } else {
-                        new KVMessage("resp", "Error invalid message to register server").sendMessage(client);
+                        new KVMessage("resp", "Error invalid message to register server").sendMessage(client, binary);
                     }
                 } catch (KVException e) {
                     try {
-                        e.getMsg().sendMessage(client);
+                        e.getMsg().sendMessage(client, binary);
                     } catch (KVException ignore) {
                         // This case can be ignored by spec.
                     }
@@ -468,6 +1350,12 @@ public class TPCMaster {
         public String hostName = null;
         // Port which SlaveServer is listening to
         public int port = -1;
+        // Connections requests to this SlaveServer go out on
+        private ConnectionPool pool = null;
+        // Requests sent to this SlaveServer that haven't finished
+        private final AtomicInteger outstanding = new AtomicInteger();
+        // Moving average of how long they take; 0 until the first one
+        private volatile long latencyEwmaNanos = 0;
 
         /**
          *
@@ -490,6 +1378,67 @@ public class TPCMaster {
             return slaveID;
         }
 
+        void requestStarted() {
+            outstanding.incrementAndGet();
+        }
+
+        /**
+         * @param failed whether the request failed, in which case it counts
+         *               as taking at least the full timeout
+         */
+        void requestFinished(long nanos, boolean failed) {
+            outstanding.decrementAndGet();
+            if (failed) {
+                nanos = Math.max(nanos, TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLISECONDS));
+            }
+            long average = latencyEwmaNanos;
+            // Weighs the newest request at 1/8. Racing updates may drop a
+            // sample, which an average can live with.
+            latencyEwmaNanos = (average == 0) ? nanos : average + (nanos - average) / 8;
+        }
+
+        /**
+         * @return requests sent to this SlaveServer that haven't finished
+         */
+        public int getOutstandingRequests() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return moving average of how long requests to this SlaveServer
+         *         take, in nanoseconds, or 0 if none have finished
+         */
+        public long getLatencyEwmaNanos() {
+            return latencyEwmaNanos;
+        }
+
+        /**
+         * @return the pool of connections to this SlaveServer, in the format
+         *         set by setBinaryProtocol and of the size set by
+         *         setMaxConnectionsPerSlave.
+         */
+        public synchronized ConnectionPool getPool() {
+            if (pool == null || pool.isBinary() != binaryProtocol
+                    || pool.getMaxConnections() != maxConnectionsPerSlave) {
+                if (pool != null) {
+                    pool.close();
+                }
+                pool = new ConnectionPool(hostName, port, binaryProtocol,
+                        maxConnectionsPerSlave, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS);
+            }
+            return pool;
+        }
+
+        /**
+         * Closes the connections to this SlaveServer, if there are any.
+         */
+        public synchronized void close() {
+            if (pool != null) {
+                pool.close();
+                pool = null;
+            }
+        }
+
         public Socket connectHost() throws KVException {
             Socket connection;
             try {
@@ -522,5 +1471,6 @@ public class TPCMaster {
     public void stop() {
         regServer.stop();
         regServer.closeSocket();
+        repairs.shutdownNow();
     }
 }
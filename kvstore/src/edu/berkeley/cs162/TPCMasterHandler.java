@@ -33,13 +33,16 @@ package edu.berkeley.cs162;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
  *
  */
-public class TPCMasterHandler implements NetworkHandler {
+public class TPCMasterHandler implements MessageHandler {
 
     public KVServer kvServer = null;
     public ThreadPool threadpool = null;
@@ -47,14 +50,22 @@ public class TPCMasterHandler implements NetworkHandler {
     public long slaveID = -1;
 
     // Used to handle the "ignoreNext" message
-    public boolean ignoreNext = false;
+    public volatile boolean ignoreNext = false;
 
     // Stored phase-1 request message from TPCMaster
-    public KVMessage originalMessage = null;
+    public volatile KVMessage originalMessage = null;
 
     // Whether we sent back an abort decision in phase 1. Used and checked by
     // autograder. Is not used for any other logic.
-    public boolean aborted = false;
+    public volatile boolean aborted = false;
+
+    /*
+     * The master no longer runs one 2PC operation at a time, so phases of
+     * different operations can interleave here. Phase-1 requests waiting for
+     * a decision are kept by op id, along with the ones we voted to abort.
+     */
+    private final ConcurrentHashMap<String, KVMessage> pendingOps = new ConcurrentHashMap<String, KVMessage>();
+    private final Set<String> abortedOps = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public TPCMasterHandler(KVServer keyserver) {
         this(keyserver, 1);
@@ -72,6 +83,16 @@ public class TPCMasterHandler implements NetworkHandler {
         threadpool = new ThreadPool(connections);
     }
 
+    /**
+     * @param threadpool where requests are run, eg. ThreadPool.perTask(n)
+     *                   for a thread per request
+     */
+    public TPCMasterHandler(KVServer kvServer, long slaveID, ThreadPool threadpool) {
+        this.kvServer = kvServer;
+        this.slaveID = slaveID;
+        this.threadpool = threadpool;
+    }
+
     /**
      * Set TPCLog after it has been rebuilt.
      *
@@ -120,10 +141,51 @@ public class TPCMasterHandler implements NetworkHandler {
         AutoGrader.agFinishedTPCRequest(slaveID);
     }
 
-    public class MasterHandler implements Runnable {
+    @Override
+    public void handle(KVMessage request, Replier replier) throws IOException {
+        AutoGrader.agReceivedTPCRequest(slaveID);
+        Runnable r = new MasterHandler(kvServer, request, replier);
+        try {
+            threadpool.addToQueue(r);
+        } catch (InterruptedException e) {
+            replier.close();
+        }
+        AutoGrader.agFinishedTPCRequest(slaveID);
+    }
+
+    public class MasterHandler implements ThreadPool.RejectableJob {
 
         public KVServer keyserver = null;
         public Socket client = null;
+        // Replies go out in the format the request came in, tagged with its
+        // request id
+        public boolean binary = false;
+        private long requestId = -1;
+        // Already read off a keep-alive connection, null to read from client
+        private KVMessage request = null;
+        // Where replies go when a SocketServer in selector mode read request
+        private Replier replier = null;
+
+        /**
+         * Sends reason back in place of a reply. A request still on the
+         * socket is never read, so that answer goes out as XML, which the
+         * master can read.
+         */
+        @Override
+        public void reject(KVMessage reason) {
+            if (request != null) {
+                binary = request.isBinary();
+                requestId = request.getRequestId();
+            }
+            try {
+                reply(reason);
+            } catch (KVException e) {
+                // Nothing more we can tell the master
+            }
+            if (request == null) {
+                closeConn();
+            }
+        }
 
         public void closeConn() {
             try {
@@ -137,6 +199,36 @@ public class TPCMasterHandler implements NetworkHandler {
             this.client = client;
         }
 
+        /**
+         * @param request the next request on client's keep-alive connection.
+         */
+        public MasterHandler(KVServer keyserver, Socket client, KVMessage request) {
+            this.keyserver = keyserver;
+            this.client = client;
+            this.request = request;
+        }
+
+        /**
+         * @param replier where the reply to request goes.
+         */
+        public MasterHandler(KVServer keyserver, KVMessage request, Replier replier) {
+            this.keyserver = keyserver;
+            this.request = request;
+            this.replier = replier;
+        }
+
+        private void reply(KVMessage msg) throws KVException {
+            msg.setRequestId(requestId);
+            if (replier != null) {
+                replier.reply(msg);
+                return;
+            }
+            // Replies to pipelined requests share the connection
+            synchronized (client) {
+                msg.sendMessage(client, binary);
+            }
+        }
+
         public void abort(String opId, String reason) {
             KVMessage toAbort;
             try {
@@ -148,14 +240,14 @@ public class TPCMasterHandler implements NetworkHandler {
             toAbort.setMessage(reason);
             toAbort.setTpcOpId(opId);
             try {
-                toAbort.sendMessage(client);
+                reply(toAbort);
                 if (tpcLog != null) {
                     tpcLog.appendAndFlush(toAbort);
                 }
             } catch (KVException e) {
                 // If this happens we try to send an error message:
                 try {
-                    e.getMsg().sendMessage(client);
+                    reply(e.getMsg());
                 } catch (KVException e1) {
                     // We can't handle this case..
                     throw new RuntimeException(e1);
@@ -181,13 +273,13 @@ public class TPCMasterHandler implements NetworkHandler {
             }
 
             try {
-                response.sendMessage(client);
+                reply(response);
                 if (tpcLog != null) {
                     tpcLog.appendAndFlush(response);
                 }
             } catch (KVException e) {
                 try {
-                    e.getMsg().sendMessage(client);
+                    reply(e.getMsg());
                 } catch (KVException e1) {
                     // We can just fail this case:
                     throw new RuntimeException(e);
@@ -197,25 +289,56 @@ public class TPCMasterHandler implements NetworkHandler {
 
         @Override
         public void run() {
-            KVMessage msg;
-            try {
-                msg = new KVMessage(client);
-            } catch (KVException e) {
-                // We can't do anything without the message
-                throw new RuntimeException(e);
+            boolean first = (request == null);
+            KVMessage msg = request;
+            if (first) {
+                try {
+                    msg = new KVMessage(client);
+                } catch (KVException e) {
+                    // We can't do anything without the message
+                    throw new RuntimeException(e);
+                }
             }
+            binary = msg.isBinary();
+            requestId = msg.getRequestId();
+
+            boolean done = process(msg);
+            if (first && msg.isKeepAlive()) {
+                // More requests to come on this connection
+                KeepAliveReader.start(client, new KeepAliveReader.Dispatcher() {
+                    @Override
+                    public void dispatch(Socket c, KVMessage r) throws InterruptedException {
+                        AutoGrader.agReceivedTPCRequest(slaveID);
+                        threadpool.addToQueue(new MasterHandler(kvServer, c, r));
+                        AutoGrader.agFinishedTPCRequest(slaveID);
+                    }
+                });
+            } else if (first && done) {
+                // Finally, close the connection
+                closeConn();
+            } else if (!done && replier != null) {
+                // Nothing is coming, so don't hold the connection open for it
+                replier.close();
+            }
+        }
 
+        /**
+         * Handles one request from the master.
+         *
+         * @return false if the request was dropped without a reply.
+         */
+        private boolean process(KVMessage msg) {
             String key = msg.getKey();
             String msgType = msg.getMsgType();
 
-            if ((msgType.equals("delreq") || msgType.equals("putreq")) && ignoreNext) {
+            if ((msgType.equals("delreq") || msgType.equals("putreq") || msgType.equals("batchreq")) && ignoreNext) {
                 ignoreNext = false;
                 // Do nothing in the case of ignore
                 try {
-                    new KVMessage("resp", "IgnoreNext Error: SlaveServer SlaveServerID has ignored this 2PC request during the first phase").sendMessage(client);
+                    reply(new KVMessage("resp", "IgnoreNext Error: SlaveServer SlaveServerID has ignored this 2PC request during the first phase"));
                 } catch (KVException e) {
                     try {
-                        e.getMsg().sendMessage(client);
+                        reply(e.getMsg());
                     } catch (KVException e1) {
                         throw new RuntimeException(e1);
                     }
@@ -226,12 +349,14 @@ public class TPCMasterHandler implements NetworkHandler {
                 handlePut(msg, key);
             } else if (msgType.equals("delreq")) {
                 handleDel(msg, key);
+            } else if (msgType.equals("batchreq")) {
+                handleBatch(msg);
             } else if (msgType.equals("ignoreNext")) {
                 // Set ignoreNext to true.
                 ignoreNext = true;
                 try {
                     // Send back an acknowledgment
-                    new KVMessage("resp", "Success").sendMessage(client);
+                    reply(new KVMessage("resp", "Success"));
                 } catch (KVException e) {
                     // We can't recover from this case.
                     throw new RuntimeException(e);
@@ -240,28 +365,33 @@ public class TPCMasterHandler implements NetworkHandler {
 
                 if (ignoreNext) {
                     ignoreNext = false;
-                    return;
+                    return false;
                 }
 
+                String opId = msg.getTpcOpId();
+                KVMessage origMsg = pendingOps.remove(opId);
+                boolean origAborted = abortedOps.remove(opId);
                 // Check in TPCLog for the case when SlaveServer is restarted
-                if (tpcLog.hasInterruptedTpcOperation()) {
-                    originalMessage = tpcLog.getInterruptedTpcOperation();
+                if (origMsg == null && tpcLog != null) {
+                    origMsg = tpcLog.takeInterruptedTpcOperation(opId);
+                }
+                if (origMsg == null) {
+                    // Already decided; the master lost our ack and is resending
+                    respond("ack", opId, null, null);
+                    return true;
                 }
-                // originalMessage is either the passed in argument or
-                // tpcLog.getInterruptedTpcOperation
-                handleMasterResponse(msg, originalMessage, aborted);
+                handleMasterResponse(msg, origMsg, origAborted);
 
                 originalMessage = null;
                 aborted = false;
             } else {
                 try {
-                    new KVMessage("resp", "Error: message type unknown").sendMessage(client);
+                    reply(new KVMessage("resp", "Error: message type unknown"));
                 } catch (KVException e) {
                     // We can fall through in this case.
                 }
             }
-            // Finally, close the connection
-            closeConn();
+            return true;
         }
 
         /* Handle a get request from the master */
@@ -285,6 +415,7 @@ public class TPCMasterHandler implements NetworkHandler {
             // Store for use in the second phase
             originalMessage = new KVMessage(msg);
             aborted = false;
+            pendingOps.put(msg.getTpcOpId(), originalMessage);
 
             tpcLog.appendAndFlush(msg);
             respond("ready", msg.getTpcOpId(), null, null);
@@ -297,6 +428,7 @@ public class TPCMasterHandler implements NetworkHandler {
             AutoGrader.agTPCDelStarted(slaveID, msg, key);
             // Store for use in the second phase
             originalMessage = new KVMessage(msg);
+            pendingOps.put(msg.getTpcOpId(), originalMessage);
 
             try {
                     kvServer.hasKey(key); // Can't delete it if it doesn't exist
@@ -305,12 +437,38 @@ public class TPCMasterHandler implements NetworkHandler {
                     respond("ready", msg.getTpcOpId(), null, null);
             } catch (KVException e) {
                 aborted = true;
+                abortedOps.add(msg.getTpcOpId());
                 abort(msg.getTpcOpId(), e.getMsg().getMessage());
             }
 
             AutoGrader.agTPCDelFinished(slaveID, msg, key);
         }
 
+        /* Handle a phase-1 2PC batch of puts and dels from the master */
+        public void handleBatch(KVMessage msg) {
+            // Store for use in the second phase
+            originalMessage = new KVMessage(msg);
+            pendingOps.put(msg.getTpcOpId(), originalMessage);
+
+            try {
+                // The master never batches two operations on one key, so
+                // each can be checked on its own
+                for (KVMessage op : msg.getBatch()) {
+                    if (op.getMsgType().equals("delreq")) {
+                        kvServer.hasKey(op.getKey()); // Can't delete it if it doesn't exist
+                    }
+                }
+                aborted = false;
+                // The whole batch is one log entry and one flush
+                tpcLog.appendAndFlush(msg);
+                respond("ready", msg.getTpcOpId(), null, null);
+            } catch (KVException e) {
+                aborted = true;
+                abortedOps.add(msg.getTpcOpId());
+                abort(msg.getTpcOpId(), e.getMsg().getMessage());
+            }
+        }
+
         /**
          * Second phase of 2PC
          *
@@ -330,20 +488,12 @@ public class TPCMasterHandler implements NetworkHandler {
                 if(masterResp.getMsgType().equals("abort")) {
                     // TODO: do nothing?
                 } else if (masterResp.getMsgType().equals("commit")) {
-                    if (origMsg.getMsgType().equals("delreq")) {
-                        try {
-                            kvServer.del(origMsg.getKey());
-                        } catch (KVException e) {
-                            // This cannot happen with TPC
-                            throw new RuntimeException(e);
-                        }
-                    } else if (origMsg.getMsgType().equals("putreq")) {
-                        try {
-                            kvServer.put(origMsg.getKey(), origMsg.getValue());
-                        } catch (KVException e) {
-                            // This cannot happen with TPC
-                            throw new RuntimeException(e);
+                    if (origMsg.getMsgType().equals("batchreq")) {
+                        for (KVMessage op : origMsg.getBatch()) {
+                            apply(op, origMsg.getTpcOpId());
                         }
+                    } else {
+                        apply(origMsg, origMsg.getTpcOpId());
                     }
                 }
             }
@@ -352,12 +502,12 @@ public class TPCMasterHandler implements NetworkHandler {
             try {
                 KVMessage ack = new KVMessage("ack");
                 ack.setTpcOpId(origMsg.getTpcOpId());
-                ack.sendMessage(client);
+                reply(ack);
                 if (tpcLog != null)
                     tpcLog.appendAndFlush(masterResp);
             } catch (KVException e) {
                 try {
-                    e.getMsg().sendMessage(client);
+                    reply(e.getMsg());
                 } catch (KVException e1) {
                     throw new RuntimeException(e1);
                 }
@@ -365,5 +515,22 @@ public class TPCMasterHandler implements NetworkHandler {
 
             AutoGrader.agSecondPhaseFinished(slaveID, origMsg, origAborted);
         }
+
+        /*
+         * Applies a committed put or del to the store, unless the key has
+         * already had a later one
+         */
+        private void apply(KVMessage op, String opId) {
+            try {
+                if (op.getMsgType().equals("delreq")) {
+                    kvServer.delIfNewer(op.getKey(), opId);
+                } else if (op.getMsgType().equals("putreq")) {
+                    kvServer.putIfNewer(op.getKey(), op.getValue(), opId);
+                }
+            } catch (KVException e) {
+                // This cannot happen with TPC
+                throw new RuntimeException(e);
+            }
+        }
     }
 }
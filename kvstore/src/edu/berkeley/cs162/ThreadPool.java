@@ -30,16 +30,117 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Runs jobs on a fixed set of worker threads, or, in per-task mode, on a new
+ * thread for each job. Per-task threads are virtual threads where the JVM
+ * has them (Java 21 and up), so thousands of jobs blocked on sockets cost
+ * little; elsewhere they are ordinary daemon threads.
+ *
+ * In work-stealing mode each worker has a deque of its own. Jobs queued from
+ * outside the pool are spread over the workers, jobs queued by a running
+ * job (a handler fanning out) go on its own worker's deque, and a worker
+ * with nothing to do takes jobs from the others. Workers then rarely
+ * touch a shared queue, which suits many short requests.
+ *
+ * Jobs waiting for a thread are held in a bounded queue. What happens to a
+ * job that arrives when the queue is full is up to the RejectionPolicy.
+ * Jobs that are RejectableJobs are told when they won't be run, so they
+ * can answer their client with a "server busy" error instead of leaving it
+ * waiting.
+ */
 public class ThreadPool {
+    /*
+     * If set to a number above zero, Server and SlaveServer run their
+     * handlers in per-task mode, with that many jobs running at once.
+     */
+    static final String PER_TASK_PROPERTY = "kvstore.perTaskThreads";
+
+    /*
+     * If set to a number above zero, Server and SlaveServer run their
+     * handlers in work-stealing mode, with that many workers.
+     */
+    static final String WORK_STEALING_PROPERTY = "kvstore.workStealingThreads";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /**
+     * What to do with a job that arrives when the queue is full.
+     */
+    public enum RejectionPolicy {
+        /** Wait in addToQueue until there is room, slowing the caller. */
+        BLOCK,
+        /** Turn away the new job. */
+        REJECT,
+        /** Turn away the job that has waited longest, and queue the new one. */
+        DROP_OLDEST
+    }
+
+    /**
+     * A job that wants to know if it is turned away.
+     */
+    public interface RejectableJob extends Runnable {
+        /**
+         * Called instead of run(), on the thread that queued the job or
+         * that queued the one that displaced it.
+         *
+         * @param reason error message to pass on to the client
+         */
+        public void reject(KVMessage reason);
+    }
+
     /**
      * Set of threads in the threadpool
      */
     protected Thread threads[] = null;
 
-    protected final Queue<Runnable> jobQueue = new LinkedList<Runnable>();
+    protected final BlockingQueue<Runnable> jobQueue;
+
+    private final int queueCapacity;
+    private final RejectionPolicy policy;
+
+    // Only used in per-task mode
+    private ThreadFactory taskThreads = null;
+    private int maxRunning = 0;
+    private final AtomicInteger running = new AtomicInteger();
+
+    // Only used in work-stealing mode. The deques are the pool's, so the
+    // queue bound is kept by counting jobs in with permits.
+    private ForkJoinPool stealingPool = null;
+    private Semaphore waitingSlots = null;
+
+    private final AtomicLong dequeued = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * A job in the queue, and when it got there.
+     */
+    private static final class Queued implements Runnable {
+        final Runnable job;
+        final long since = System.nanoTime();
+
+        Queued(Runnable job)
+        {
+            this.job = job;
+        }
+
+        @Override
+        public void run()
+        {
+            job.run();
+        }
+    }
 
     /**
      * Initialize the number of threads required in the threadpool.
@@ -48,6 +149,17 @@ public class ThreadPool {
      */
     public ThreadPool(int size)
     {
+        this(size, DEFAULT_QUEUE_CAPACITY, RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * @param size  How many threads in the thread pool.
+     * @param queueCapacity most jobs waiting for a thread
+     * @param policy what to do with jobs past queueCapacity
+     */
+    public ThreadPool(int size, int queueCapacity, RejectionPolicy policy)
+    {
+        this(queueCapacity, policy);
         threads = new Thread[size];
         for(int i = 0; i < size; i++) {
             threads[i] = new WorkerThread(this);
@@ -55,16 +167,340 @@ public class ThreadPool {
         }
     }
 
+    private ThreadPool(int queueCapacity, RejectionPolicy policy)
+    {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        // Producers and consumers take separate locks, and no one holds
+        // the pool's monitor
+        jobQueue = new LinkedBlockingQueue<Runnable>(queueCapacity);
+    }
+
+    /**
+     * Creates a pool in per-task mode, which starts a thread for each job
+     * rather than keeping a fixed set of workers.
+     *
+     * @param maxRunning most jobs run at once; the rest wait in the queue
+     */
+    public static ThreadPool perTask(int maxRunning)
+    {
+        return perTask(maxRunning, DEFAULT_QUEUE_CAPACITY, RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * @param maxRunning most jobs run at once; the rest wait in the queue
+     * @param queueCapacity most jobs waiting for a thread
+     * @param policy what to do with jobs past queueCapacity
+     */
+    public static ThreadPool perTask(int maxRunning, int queueCapacity, RejectionPolicy policy)
+    {
+        if (maxRunning < 1) {
+            throw new IllegalArgumentException("maxRunning must be at least 1");
+        }
+        ThreadPool pool = new ThreadPool(queueCapacity, policy);
+        pool.threads = new Thread[0];
+        pool.taskThreads = newTaskThreadFactory();
+        pool.maxRunning = maxRunning;
+        return pool;
+    }
+
+    /**
+     * Creates a pool in work-stealing mode, where each worker has a deque of
+     * its own and idle workers take jobs from busy ones.
+     *
+     * @param size How many threads in the thread pool.
+     */
+    public static ThreadPool workStealing(int size)
+    {
+        return workStealing(size, DEFAULT_QUEUE_CAPACITY, RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * @param size How many threads in the thread pool.
+     * @param queueCapacity most jobs from outside the pool waiting for a
+     *                      thread. Jobs queued by running jobs don't count,
+     *                      since holding up a worker over them could leave
+     *                      no worker free to make room.
+     * @param policy what to do with jobs past queueCapacity. DROP_OLDEST
+     *               is not supported, as the oldest job could be on any
+     *               worker's deque.
+     */
+    public static ThreadPool workStealing(int size, int queueCapacity, RejectionPolicy policy)
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        if (policy == RejectionPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException("Work-stealing pools can't drop the oldest job");
+        }
+        ThreadPool pool = new ThreadPool(queueCapacity, policy);
+        pool.threads = new Thread[0];
+        // asyncMode: each worker runs its own jobs first in, first out,
+        // as the shared queue did
+        pool.stealingPool = new ForkJoinPool(size,
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        pool.waitingSlots = new Semaphore(queueCapacity);
+        return pool;
+    }
+
+    /**
+     * @return whether per-task threads are virtual threads.
+     */
+    public static boolean hasVirtualThreads()
+    {
+        return virtualThreadFactory() != null;
+    }
+
+    private static ThreadFactory newTaskThreadFactory()
+    {
+        ThreadFactory virtual = virtualThreadFactory();
+        if (virtual != null) {
+            return virtual;
+        }
+        final AtomicLong count = new AtomicLong();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TaskThread-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return Thread.ofVirtual().name("TaskThread-", 1).factory(), or null
+     *         before Java 21. Looked up by reflection so the code still
+     *         builds and runs on older JDKs.
+     */
+    private static ThreadFactory virtualThreadFactory()
+    {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "TaskThread-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // No virtual threads on this JVM
+            return null;
+        }
+    }
+
     /**
      * Add a job to the queue of tasks that has to be executed. As soon as a thread is available,
      * it will retrieve tasks from this queue and start processing.
      * @param r job that has to be executed asynchronously
      * @throws InterruptedException
      */
-    public synchronized void addToQueue(Runnable r) throws InterruptedException
+    public void addToQueue(Runnable r) throws InterruptedException
     {
-        jobQueue.add(r);
-        notify();
+        if (stealingPool != null) {
+            addToDeque(r);
+            return;
+        }
+        if (taskThreads != null && startTask(r)) {
+            return;
+        }
+        Queued queued = new Queued(r);
+        if (!jobQueue.offer(queued)) {
+            switch (policy) {
+            case BLOCK:
+                jobQueue.put(queued);
+                break;
+            case REJECT:
+                reject(r);
+                return;
+            case DROP_OLDEST:
+                while (!jobQueue.offer(queued)) {
+                    Runnable oldest = jobQueue.poll();
+                    if (oldest != null) {
+                        reject(((Queued) oldest).job);
+                    }
+                }
+                break;
+            }
+        }
+        if (taskThreads != null) {
+            // Every task thread may have exited while we queued it
+            startQueued();
+        }
+    }
+
+    /**
+     * In work-stealing mode, queues r on the calling worker's own deque, or
+     * hands it to the pool if called from outside.
+     */
+    private void addToDeque(Runnable r) throws InterruptedException
+    {
+        Thread current = Thread.currentThread();
+        boolean local = (current instanceof ForkJoinWorkerThread)
+                && ((ForkJoinWorkerThread) current).getPool() == stealingPool;
+        if (local) {
+            ForkJoinTask.adapt(new Stealable(new Queued(r), false)).fork();
+            return;
+        }
+        if (policy == RejectionPolicy.BLOCK) {
+            waitingSlots.acquire();
+        } else if (!waitingSlots.tryAcquire()) {
+            reject(r);
+            return;
+        }
+        stealingPool.execute(new Stealable(new Queued(r), true));
+    }
+
+    /**
+     * A job as it sits on a worker's deque.
+     */
+    private class Stealable implements Runnable {
+        private final Queued queued;
+        // Whether it holds one of waitingSlots
+        private final boolean counted;
+
+        Stealable(Queued queued, boolean counted)
+        {
+            this.queued = queued;
+            this.counted = counted;
+        }
+
+        @Override
+        public void run()
+        {
+            if (counted) {
+                waitingSlots.release();
+            }
+            Runnable job = dequeue(queued);
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                // The pool would hide it otherwise
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void reject(Runnable job)
+    {
+        rejected.incrementAndGet();
+        if (job instanceof RejectableJob) {
+            try {
+                ((RejectableJob) job).reject(new KVMessage("resp", "Server Error: Server busy"));
+            } catch (KVException e) {
+                // Can't happen with a valid message type
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * In per-task mode, starts a thread for job if fewer than maxRunning
+     * are running.
+     *
+     * @return whether it did.
+     */
+    private boolean startTask(Runnable job)
+    {
+        while (true) {
+            int now = running.get();
+            if (now >= maxRunning) {
+                return false;
+            }
+            if (running.compareAndSet(now, now + 1)) {
+                taskThreads.newThread(new TaskRunner(job)).start();
+                recordWait(0);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * In per-task mode, starts threads for queued jobs while there are free
+     * slots.
+     */
+    private void startQueued()
+    {
+        while (!jobQueue.isEmpty()) {
+            int now = running.get();
+            if (now >= maxRunning) {
+                return;
+            }
+            if (running.compareAndSet(now, now + 1)) {
+                Runnable next = dequeue(jobQueue.poll());
+                if (next == null) {
+                    running.decrementAndGet();
+                } else {
+                    taskThreads.newThread(new TaskRunner(next)).start();
+                }
+            }
+        }
+    }
+
+    /**
+     * In per-task mode, called by a thread that has finished its job.
+     *
+     * @return the next job for it to run, or null if it should exit.
+     */
+    private Runnable nextTask()
+    {
+        Runnable next = dequeue(jobQueue.poll());
+        if (next == null) {
+            running.decrementAndGet();
+            // In case a job was queued after we looked
+            startQueued();
+        }
+        return next;
+    }
+
+    /**
+     * Runs its job, then any that queued up while every thread was busy.
+     */
+    private class TaskRunner implements Runnable {
+        private Runnable job;
+
+        TaskRunner(Runnable job)
+        {
+            this.job = job;
+        }
+
+        @Override
+        public void run()
+        {
+            while (job != null) {
+                try {
+                    job.run();
+                } catch (RuntimeException e) {
+                    // Must not take the slot down with it
+                    e.printStackTrace();
+                }
+                job = nextTask();
+            }
+        }
+    }
+
+    /**
+     * @return the job held by queued, or null if queued is null.
+     */
+    private Runnable dequeue(Runnable queued)
+    {
+        if (queued == null) {
+            return null;
+        }
+        Queued q = (Queued) queued;
+        recordWait(System.nanoTime() - q.since);
+        return q.job;
+    }
+
+    private void recordWait(long nanos)
+    {
+        dequeued.incrementAndGet();
+        queueWaitNanos.addAndGet(nanos);
+        long max = maxQueueWaitNanos.get();
+        while (nanos > max && !maxQueueWaitNanos.compareAndSet(max, nanos)) {
+            max = maxQueueWaitNanos.get();
+        }
     }
 
     /**
@@ -72,11 +508,62 @@ public class ThreadPool {
      * @return A runnable task that has to be executed
      * @throws InterruptedException
      */
-    public synchronized Runnable getJob() throws InterruptedException {
-        while(jobQueue.peek() == null) {
-            wait();
+    public Runnable getJob() throws InterruptedException {
+        return dequeue(jobQueue.take());
+    }
+
+    /**
+     * @return how many jobs are waiting for a thread.
+     */
+    public int getQueueDepth()
+    {
+        if (stealingPool != null) {
+            return (int) (stealingPool.getQueuedTaskCount() + stealingPool.getQueuedSubmissionCount());
         }
-        return jobQueue.poll();
+        return jobQueue.size();
+    }
+
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    public RejectionPolicy getRejectionPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * @return how many jobs have been handed to a thread.
+     */
+    public long getDequeuedCount()
+    {
+        return dequeued.get();
+    }
+
+    /**
+     * @return the total time jobs spent waiting for a thread, in
+     *         nanoseconds.
+     */
+    public long getQueueWaitNanos()
+    {
+        return queueWaitNanos.get();
+    }
+
+    /**
+     * @return the longest any job waited for a thread, in nanoseconds.
+     */
+    public long getMaxQueueWaitNanos()
+    {
+        return maxQueueWaitNanos.get();
+    }
+
+    /**
+     * @return how many jobs were turned away because the queue was full.
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
     }
 }
 
@@ -0,0 +1,473 @@
+/**
+ * Off-heap storage for values of the key-value store.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores strings as UTF-8 bytes in direct ByteBuffers so that large values
+ * don't live on the Java heap. Callers keep a long handle per value.
+ *
+ * Memory is carved into fixed-size segments. Each segment serves a single
+ * power-of-two block size, and freed blocks go back on a free list for their
+ * size so the next value of that size reuses them. Values larger than a
+ * segment get a segment of their own. defragment() moves the blocks of
+ * sparsely used segments into the gaps of fuller ones and releases the
+ * emptied segments. A free that leaves most of a size class's blocks free
+ * does the same for that class, so an arena behind a store or cache
+ * compacts itself as values come and go.
+ *
+ * A handle packs a slot in an indirection table with that slot's
+ * generation. Moving a block only updates the table, so handles stay valid
+ * across defragmentation. A freed handle is detected rather than read as
+ * whatever value reused its slot.
+ *
+ * Reads share a read lock; allocation, freeing and defragmentation are
+ * exclusive.
+ */
+public class ValueArena {
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MIN_BLOCK_SHIFT = 6;
+    // A size class is defragmented once this share of its blocks is free,
+    // as long as that is at least two segments' worth; one would leave no
+    // spare segment for the next stores
+    private static final double DEFRAGMENT_FREE_SHARE = 0.75;
+
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Indirection table, indexed by the low half of a handle
+    private long[] addresses = new long[256];
+    private int[] lengths = new int[256];
+    private int[] generations = new int[256];
+    private final LongStack freeSlots = new LongStack();
+    private int slotCount = 0;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final LongStack freeSegmentIds = new LongStack();
+    // Free blocks per size class, as segment << 32 | offset
+    private final LongStack[] freeBlocks;
+    // Segments per size class
+    private final int[] classSegments;
+
+    private long allocatedBytes = 0;
+    private long usedBytes = 0;
+
+    public ValueArena() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize bytes per segment, a power of two. Values larger
+     *                    than this get a dedicated segment.
+     */
+    public ValueArena(int segmentSize) {
+        if(Integer.bitCount(segmentSize) != 1 || segmentSize < (1 << MIN_BLOCK_SHIFT)) {
+            throw new IllegalArgumentException("Segment size must be a power of two");
+        }
+        this.segmentSize = segmentSize;
+        int classes = Integer.numberOfTrailingZeros(segmentSize) - MIN_BLOCK_SHIFT + 1;
+        freeBlocks = new LongStack[classes];
+        classSegments = new int[classes];
+        for(int i = 0; i < classes; i++) {
+            freeBlocks[i] = new LongStack();
+        }
+    }
+
+    /**
+     * Copies value off the heap.
+     * @return the handle to load or free it with.
+     */
+    public long store(String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        lock.writeLock().lock();
+        try {
+            long address = allocateBlock(bytes.length);
+            Segment seg = segments.get(segmentOf(address));
+            int offset = offsetOf(address);
+            ByteBuffer view = seg.buffer.duplicate();
+            view.position(offset);
+            view.put(bytes);
+
+            int slot = newSlot();
+            addresses[slot] = address;
+            lengths[slot] = bytes.length;
+            seg.owners[offset / seg.blockSize] = slot;
+            seg.live++;
+            usedBytes += bytes.length;
+            return ((long) generations[slot] << 32) | slot;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the value behind handle, or null if handle has been freed.
+     */
+    public String load(long handle) {
+        int slot = (int) handle;
+        byte[] bytes;
+        lock.readLock().lock();
+        try {
+            if(!isLive(handle)) {
+                return null;
+            }
+            long address = addresses[slot];
+            ByteBuffer view = segments.get(segmentOf(address)).buffer.duplicate();
+            view.position(offsetOf(address));
+            bytes = new byte[lengths[slot]];
+            view.get(bytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Releases the value behind handle. Its block is reused by later stores
+     * of a similar size.
+     * @return false if handle had already been freed.
+     */
+    public boolean free(long handle) {
+        int slot = (int) handle;
+        lock.writeLock().lock();
+        try {
+            if(!isLive(handle)) {
+                return false;
+            }
+            long address = addresses[slot];
+            int segId = segmentOf(address);
+            Segment seg = segments.get(segId);
+            seg.owners[offsetOf(address) / seg.blockSize] = -1;
+            seg.live--;
+            usedBytes -= lengths[slot];
+            if(seg.sizeClass < 0) {
+                // Dedicated segment for an oversized value
+                releaseSegment(segId);
+            } else {
+                freeBlocks[seg.sizeClass].push(address);
+            }
+
+            // Invalidate every outstanding copy of this handle
+            generations[slot]++;
+            lengths[slot] = -1;
+            freeSlots.push(slot);
+
+            if(seg.sizeClass >= 0 && isFragmented(seg.sizeClass)) {
+                defragmentClass(seg.sizeClass);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Packs the live blocks of each size class into as few segments as will
+     * hold them and releases the rest. Handles stay valid.
+     * @return the number of segments released.
+     */
+    public int defragment() {
+        lock.writeLock().lock();
+        try {
+            int released = 0;
+            for(int sizeClass = 0; sizeClass < freeBlocks.length; sizeClass++) {
+                released += defragmentClass(sizeClass);
+            }
+            return released;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of direct memory storing value would take up, counting
+     *         the rounding up to a whole block.
+     */
+    public int footprint(String value) {
+        int length = utf8Length(value);
+        if(length > segmentSize) {
+            return length;
+        }
+        return 1 << (sizeClassOf(length) + MIN_BLOCK_SHIFT);
+    }
+
+    /**
+     * @return the length of value in UTF-8, without encoding it.
+     */
+    private static int utf8Length(String value) {
+        int length = 0;
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c < 0x80) {
+                length += 1;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isSurrogate(c)) {
+                // Half of a four byte pair
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return bytes of direct memory currently held in segments.
+     */
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return allocatedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of live values, excluding block rounding.
+     */
+    public long getUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isLive(long handle) {
+        int slot = (int) handle;
+        return slot >= 0 && slot < slotCount && lengths[slot] >= 0
+                && generations[slot] == (int) (handle >>> 32);
+    }
+
+    private int newSlot() {
+        if(!freeSlots.isEmpty()) {
+            return (int) freeSlots.pop();
+        }
+        if(slotCount == addresses.length) {
+            int grown = addresses.length * 2;
+            addresses = Arrays.copyOf(addresses, grown);
+            lengths = Arrays.copyOf(lengths, grown);
+            generations = Arrays.copyOf(generations, grown);
+        }
+        return slotCount++;
+    }
+
+    private long allocateBlock(int length) {
+        if(length > segmentSize) {
+            int segId = addSegment(length, -1, length);
+            return (long) segId << 32;
+        }
+        int sizeClass = sizeClassOf(length);
+        LongStack free = freeBlocks[sizeClass];
+        if(free.isEmpty()) {
+            int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+            int segId = addSegment(segmentSize, sizeClass, blockSize);
+            // Push in reverse so blocks are handed out front to back
+            for(int offset = segmentSize - blockSize; offset >= 0; offset -= blockSize) {
+                free.push(((long) segId << 32) | offset);
+            }
+        }
+        return free.pop();
+    }
+
+    /**
+     * @return whether enough of sizeClass's blocks are free that
+     *         defragmenting it is worth it.
+     */
+    private boolean isFragmented(int sizeClass) {
+        int perSegment = segmentSize >> (sizeClass + MIN_BLOCK_SHIFT);
+        int free = freeBlocks[sizeClass].size();
+        return free >= 2 * perSegment
+                && free >= DEFRAGMENT_FREE_SHARE * classSegments[sizeClass] * perSegment;
+    }
+
+    private int addSegment(int capacity, int sizeClass, int blockSize) {
+        Segment seg = new Segment(ByteBuffer.allocateDirect(capacity), sizeClass, blockSize);
+        allocatedBytes += capacity;
+        if(sizeClass >= 0) {
+            classSegments[sizeClass]++;
+        }
+        if(!freeSegmentIds.isEmpty()) {
+            int segId = (int) freeSegmentIds.pop();
+            segments.set(segId, seg);
+            return segId;
+        }
+        segments.add(seg);
+        return segments.size() - 1;
+    }
+
+    private void releaseSegment(int segId) {
+        Segment seg = segments.get(segId);
+        allocatedBytes -= seg.buffer.capacity();
+        if(seg.sizeClass >= 0) {
+            classSegments[seg.sizeClass]--;
+        }
+        // The direct buffer is freed once the collector drops it
+        segments.set(segId, null);
+        freeSegmentIds.push(segId);
+    }
+
+    private int defragmentClass(int sizeClass) {
+        final List<Integer> ids = new ArrayList<Integer>();
+        int live = 0;
+        for(int segId = 0; segId < segments.size(); segId++) {
+            Segment seg = segments.get(segId);
+            if(seg != null && seg.sizeClass == sizeClass) {
+                ids.add(segId);
+                live += seg.live;
+            }
+        }
+        if(ids.isEmpty()) {
+            return 0;
+        }
+        int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+        int perSegment = segmentSize / blockSize;
+        int keep = (live + perSegment - 1) / perSegment;
+        if(keep == ids.size()) {
+            return 0;
+        }
+
+        // Keep the fullest segments and evacuate the rest into their gaps
+        Collections.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return segments.get(b).live - segments.get(a).live;
+            }
+        });
+        LongStack gaps = new LongStack();
+        for(int i = 0; i < keep; i++) {
+            Segment seg = segments.get(ids.get(i));
+            for(int block = perSegment - 1; block >= 0; block--) {
+                if(seg.owners[block] < 0) {
+                    gaps.push(((long) ids.get(i) << 32) | (block * blockSize));
+                }
+            }
+        }
+        byte[] scratch = new byte[blockSize];
+        for(int i = keep; i < ids.size(); i++) {
+            Segment from = segments.get(ids.get(i));
+            for(int block = 0; block < perSegment; block++) {
+                int slot = from.owners[block];
+                if(slot < 0) {
+                    continue;
+                }
+                long target = gaps.pop();
+                Segment to = segments.get(segmentOf(target));
+                ByteBuffer src = from.buffer.duplicate();
+                src.position(block * blockSize);
+                src.get(scratch, 0, lengths[slot]);
+                ByteBuffer dst = to.buffer.duplicate();
+                dst.position(offsetOf(target));
+                dst.put(scratch, 0, lengths[slot]);
+
+                addresses[slot] = target;
+                to.owners[offsetOf(target) / blockSize] = slot;
+                to.live++;
+            }
+            releaseSegment(ids.get(i));
+        }
+
+        // Whatever gaps are left are exactly the free blocks of this class
+        freeBlocks[sizeClass] = gaps;
+        return ids.size() - keep;
+    }
+
+    private static int sizeClassOf(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+        return Math.max(shift, MIN_BLOCK_SHIFT) - MIN_BLOCK_SHIFT;
+    }
+
+    private static int segmentOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static final class Segment {
+        final ByteBuffer buffer;
+        // -1 for dedicated segments holding a single oversized value
+        final int sizeClass;
+        final int blockSize;
+        // Slot of the value in each block, or -1 if the block is free
+        final int[] owners;
+        int live = 0;
+
+        Segment(ByteBuffer buffer, int sizeClass, int blockSize) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+            this.blockSize = blockSize;
+            this.owners = new int[buffer.capacity() / blockSize];
+            Arrays.fill(owners, -1);
+        }
+    }
+
+    /**
+     * A growable stack of longs, so free lists don't box.
+     */
+    private static final class LongStack {
+        private long[] items = new long[16];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void push(long item) {
+            if(size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+
+        long pop() {
+            return items[--size];
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Streaming XML helpers shared by the KVStore and KVCache dumps.
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes and reads the store and cache XML with StAX, one element at a
+ * time, instead of going through a DOM of the whole document.
+ *
+ * The output is byte for byte what the DOM Transformer used to produce: the
+ * same declaration, empty elements collapsed, and the same characters
+ * written as character references. Those are the control characters other
+ * than tab and newline (carriage returns included, so they survive a
+ * parse), U+007F to U+009F, and everything outside the BMP, which gets one
+ * reference for the whole code point. The one exception is a lone high
+ * surrogate, which the Transformer silently dropped and which gets a
+ * reference here like a lone low surrogate does.
+ */
+final class XMLStreams {
+    private static final String DECLARATION =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private XMLStreams() {
+    }
+
+    /**
+     * Writes the XML declaration to out and returns a writer for the rest of
+     * the document. Closing the returned writer does not close out.
+     */
+    static XMLStreamWriter newWriter(Writer out) throws IOException, XMLStreamException {
+        out.write(DECLARATION);
+        return OUTPUT_FACTORY.createXMLStreamWriter(out);
+    }
+
+    static XMLStreamReader newReader(InputStream in) throws XMLStreamException {
+        return INPUT_FACTORY.createXMLStreamReader(in);
+    }
+
+    /**
+     * Writes &lt;name&gt;text&lt;/name&gt;.
+     */
+    static void writeTextElement(XMLStreamWriter out, String name, String text)
+            throws XMLStreamException {
+        if (text.isEmpty()) {
+            out.writeEmptyElement(name);
+            return;
+        }
+        out.writeStartElement(name);
+        int start = 0;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (!needsReference(c)) {
+                i++;
+                continue;
+            }
+            if (i > start) {
+                out.writeCharacters(text.substring(start, i));
+            }
+            int codePoint = text.codePointAt(i);
+            out.writeEntityRef("#" + codePoint);
+            i += Character.charCount(codePoint);
+            start = i;
+        }
+        if (start < text.length()) {
+            out.writeCharacters(text.substring(start));
+        }
+        out.writeEndElement();
+    }
+
+    private static boolean needsReference(char c) {
+        return (c < 0x20 && c != '\t' && c != '\n')
+                || (c >= 0x7f && c <= 0x9f)
+                || Character.isSurrogate(c);
+    }
+}
@@ -10,14 +10,21 @@ import org.junit.runners.Suite.SuiteClasses;
  */
 @RunWith(Suite.class)
 @SuiteClasses({
+    ConnectionPoolTest.class,
+    ConsistentHashRingTest.class,
     EndToEndTests.class,
     KVCacheTest.class,
+    KVConnectionTest.class,
     KVMessageTest.class,
     KVServerTest.class,
     KVStoreTest.class,
+    LogStructuredStoreTest.class,
+    MappedSnapshotStoreTest.class,
+    SingleFlightTest.class,
     SocketServerTest.class,
     ThreadPoolTest.class,
-    TPCHandlerLogTest.class
+    TPCHandlerLogTest.class,
+    ValueArenaTest.class
 })
 public final class AllTests {
 
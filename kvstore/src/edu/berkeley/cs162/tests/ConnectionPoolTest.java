@@ -0,0 +1,98 @@
+package edu.berkeley.cs162.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.cs162.ConnectionPool;
+import edu.berkeley.cs162.KVConnection;
+import edu.berkeley.cs162.KVException;
+
+public final class ConnectionPoolTest {
+
+    private static final String SERVER_HOST = "localhost";
+    private static final int SERVER_PORT = 8125;
+    // Nothing listens here
+    private static final int CLOSED_PORT = 8126;
+
+    // Accepts connections into its backlog, which is all the pool needs
+    private ServerSocket server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(SERVER_PORT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws KVException {
+        ConnectionPool pool = new ConnectionPool(SERVER_HOST, SERVER_PORT, true);
+        KVConnection first = pool.borrow(1000);
+        assertEquals(1, pool.getActiveCount());
+        pool.giveBack(first);
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+
+        assertSame(first, pool.borrow(1000));
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, pool.getBorrowCount());
+        pool.close();
+    }
+
+    @Test
+    public void testBorrowWaitsForMaxConnections() throws KVException {
+        ConnectionPool pool = new ConnectionPool(SERVER_HOST, SERVER_PORT, true, 1, 60000);
+        pool.borrow(1000);
+        try {
+            pool.borrow(200);
+            fail("Borrowed more than maxConnections");
+        } catch (KVException e) {
+            // Expected
+        }
+        assertTrue(pool.getMaxBorrowWaitNanos() >= 200 * 1000000L);
+        assertEquals(1, pool.getActiveCount());
+        pool.close();
+    }
+
+    @Test
+    public void testUnhealthyAndIdleConnectionsAreReplaced() throws Exception {
+        ConnectionPool pool = new ConnectionPool(SERVER_HOST, SERVER_PORT, true, 2, 100);
+        KVConnection broken = pool.borrow(1000);
+        broken.close();
+        pool.giveBack(broken);
+        assertEquals(0, pool.getIdleCount());
+
+        KVConnection idle = pool.borrow(1000);
+        pool.giveBack(idle);
+        Thread.sleep(300);
+        assertNotSame(idle, pool.borrow(1000));
+        assertFalse(idle.isOpen());
+        pool.close();
+    }
+
+    @Test
+    public void testConnectFailuresAreCounted() {
+        ConnectionPool pool = new ConnectionPool(SERVER_HOST, CLOSED_PORT, true);
+        try {
+            pool.borrow(1000);
+            fail("Connected to a closed port");
+        } catch (KVException e) {
+            // Expected
+        }
+        assertEquals(1, pool.getConnectFailures());
+        assertEquals(0, pool.getActiveCount());
+    }
+}
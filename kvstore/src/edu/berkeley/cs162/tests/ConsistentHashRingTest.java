@@ -0,0 +1,95 @@
+package edu.berkeley.cs162.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.cs162.ConsistentHashRing;
+
+public final class ConsistentHashRingTest {
+
+    private static Map<Long, String> nodes(long... ids) {
+        Map<Long, String> nodes = new HashMap<Long, String>();
+        for (long id : ids) {
+            nodes.put(id, "node" + id);
+        }
+        return nodes;
+    }
+
+    @Test
+    public void testOnePointPerNode() {
+        // -5 is near the top of the ring, as unsigned
+        ConsistentHashRing<String> ring = ConsistentHashRing.build(nodes(10, 20, -5), 1);
+        assertEquals(3, ring.size());
+        assertEquals("node10", ring.get(5));
+        assertEquals("node10", ring.get(10));
+        assertEquals("node20", ring.get(15));
+        assertEquals("node-5", ring.get(25));
+        assertEquals("node-5", ring.get(Long.MIN_VALUE));
+        // Past the last point goes round to the first
+        assertEquals("node10", ring.get(-1));
+    }
+
+    @Test
+    public void testReplicas() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.build(nodes(10, 20, 30), 1);
+        assertEquals(Arrays.asList("node20", "node30"), ring.get(15, 2));
+        assertEquals(Arrays.asList("node30", "node10", "node20"), ring.get(25, 3));
+        // No more replicas than there are nodes
+        assertEquals(3, ring.get(25, 5).size());
+
+        // Every point of one node is skipped over once it has been counted
+        ConsistentHashRing<String> virtual = ConsistentHashRing.build(nodes(10, 20, 30), 64);
+        for (long hash = 0; hash < 1000; hash++) {
+            List<String> replicas = virtual.get(hash * 7919, 3);
+            assertEquals(3, replicas.size());
+            assertEquals(virtual.get(hash * 7919), replicas.get(0));
+            assertTrue(!replicas.get(0).equals(replicas.get(1))
+                    && !replicas.get(1).equals(replicas.get(2))
+                    && !replicas.get(0).equals(replicas.get(2)));
+        }
+    }
+
+    @Test
+    public void testVirtualNodesEvenOut() {
+        Random random = new Random(162);
+        long[] ids = new long[4];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = random.nextLong();
+        }
+        ConsistentHashRing<String> ring = ConsistentHashRing.build(nodes(ids), 128);
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        int keys = 100000;
+        for (int i = 0; i < keys; i++) {
+            String node = ring.get(random.nextLong());
+            Integer count = counts.get(node);
+            counts.put(node, (count == null) ? 1 : count + 1);
+        }
+        assertEquals(ids.length, counts.size());
+        for (int count : counts.values()) {
+            // A quarter each, give or take
+            assertTrue("Uneven share: " + count, count > keys * 0.15 && count < keys * 0.35);
+        }
+    }
+
+    @Test
+    public void testEmptyRing() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.build(nodes(), 16);
+        assertTrue(ring.isEmpty());
+        try {
+            ring.get(42);
+            fail("Empty ring returned a node");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
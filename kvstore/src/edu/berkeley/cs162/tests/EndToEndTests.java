@@ -31,6 +31,8 @@ public class EndToEndTests {
 	private ServerRunner coordinatorRunner;
 
 	private Map<String, ServerRunner> slaveRunners;
+	private Map<String, TPCMasterHandler> slaveHandlers;
+	private Map<String, KVServer> slaveServers;
 	private TPCMaster master;
 
 	@Before
@@ -40,7 +42,8 @@ public class EndToEndTests {
 		// Set up Coordinator Server
 		SocketServer kvServer = new RobustSocketServer(
 				InetAddress.getLocalHost().getHostAddress(), 8888);
-		kvServer.addHandler(new KVClientHandler(master));
+		// Enough threads for concurrent clients to reach the master together
+		kvServer.addHandler(new KVClientHandler(8, master));
 
 		coordinatorRunner = new ServerRunner(kvServer,
 				"Coordinator Server",
@@ -56,6 +59,8 @@ public class EndToEndTests {
 
 		// Set up slaves
 		slaveRunners = new HashMap<String, ServerRunner>();
+		slaveHandlers = new HashMap<String, TPCMasterHandler>();
+		slaveServers = new HashMap<String, KVServer>();
 		setUpSlave("Mr. Slave");
 		setUpSlave("Mrs. Slave");
 		Thread.sleep(3000);
@@ -83,6 +88,8 @@ public class EndToEndTests {
 		ServerRunner slaveRunner = new ServerRunner(slave, name, "A Slave Server");
 		slaveRunner.start();
 		slaveRunners.put(name, slaveRunner);
+		slaveHandlers.put(name, handler);
+		slaveServers.put(name, slaveKvs);
 
 		// Register with the Master. Assuming it always succeeds (not catching).
 		handler.registerWithMaster(InetAddress.getLocalHost().getHostAddress(), slave);
@@ -296,6 +303,175 @@ public class EndToEndTests {
 		System.out.println("INFO EndToEnd.testDel: Finished.");
 	}
 
+	@Test(timeout = 15000)
+	public void testBatchedWrites() throws Exception {
+		System.out.println("INFO EndToEnd.testBatchedWrites: Begin.");
+		master.setBatching(8, 50);
+		final String host = InetAddress.getLocalHost().getHostAddress();
+		final int writers = 6;
+		final KVException[] errors = new KVException[writers + 1];
+		Thread[] threads = new Thread[writers + 1];
+		for (int i = 0; i < writers; i++) {
+			final int n = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						new KVClient(host, 8888).put("batch" + n, "value" + n);
+					} catch (KVException e) {
+						errors[n] = e;
+					}
+				}
+			};
+		}
+		// Fails on its own without failing the writes batched with it
+		threads[writers] = new Thread() {
+			public void run() {
+				try {
+					new KVClient(host, 8888).del("missing");
+				} catch (KVException e) {
+					errors[writers] = e;
+				}
+			}
+		};
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		KVClient client = new KVClient(host, 8888);
+		for (int i = 0; i < writers; i++) {
+			assertNull("put " + i + " failed", errors[i]);
+			assertEquals("value" + i, client.get("batch" + i));
+		}
+		assertNotNull("Delete did not fail for non-existent key.", errors[writers]);
+		System.out.println("INFO EndToEnd.testBatchedWrites: Finished.");
+	}
+
+	@Test
+	public void testBatchWindowDoesNotHoldTheSet() throws Exception {
+		System.out.println("INFO EndToEnd.testBatchWindowDoesNotHoldTheSet: Begin.");
+		final int windowMs = 2000;
+		master.setBatching(8, windowMs);
+		final String host = InetAddress.getLocalHost().getHostAddress();
+		// Another key in the same set of the master's 100-set cache
+		String other = "window0";
+		for (int i = 1; Math.abs(other.hashCode()) % 100 != Math.abs("window".hashCode()) % 100; i++) {
+			other = "window" + i;
+		}
+
+		final KVException[] firstError = new KVException[1];
+		final long[] firstDone = new long[1];
+		Thread first = new Thread() {
+			public void run() {
+				try {
+					new KVClient(host, 8888).put("window", "first");
+				} catch (KVException e) {
+					firstError[0] = e;
+				}
+				firstDone[0] = System.currentTimeMillis();
+			}
+		};
+		first.start();
+		Thread.sleep(windowMs / 10);
+		new KVClient(host, 8888).put(other, "second");
+		long secondDone = System.currentTimeMillis();
+		first.join();
+
+		assertNull(firstError[0]);
+		// Joined the first write's batch, or ran its own alongside, rather
+		// than waiting for the first to finish before opening a window
+		assertTrue(secondDone - firstDone[0] < windowMs / 2);
+		KVClient client = new KVClient(host, 8888);
+		assertEquals("first", client.get("window"));
+		assertEquals("second", client.get(other));
+		System.out.println("INFO EndToEnd.testBatchWindowDoesNotHoldTheSet: Finished.");
+	}
+
+	@Test(timeout = 15000)
+	public void testQuorums() throws UnknownHostException, KVException {
+		System.out.println("INFO EndToEnd.testQuorums: Begin.");
+		KVClient client = new KVClient(InetAddress.getLocalHost().getHostAddress(), 8888);
+
+		// Commits once either replica is ready
+		master.setReplication(2, 1, 1);
+		client.put("quorum", "one");
+		assertEquals("one", client.get("quorum"));
+
+		// Reads only return what both replicas hold
+		master.setReplication(2, 2, 2);
+		client.put("quorum", "two");
+		assertEquals("two", client.get("quorum"));
+		client.del("quorum");
+		try {
+			client.get("quorum");
+			fail("Get value for deleted key did not fail.");
+		} catch (KVException e) {
+			// Expected
+		}
+
+		try {
+			master.setReplication(2, 3, 1);
+			fail("Write quorum larger than the replicas was allowed");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		System.out.println("INFO EndToEnd.testQuorums: Finished.");
+	}
+
+	@Test(timeout = 60000)
+	public void testIgnoringReplicaCatchesUp() throws Exception {
+		System.out.println("INFO EndToEnd.testIgnoringReplicaCatchesUp: Begin.");
+		KVClient client = new KVClient(InetAddress.getLocalHost().getHostAddress(), 8888);
+		master.setReplication(2, 1, 1);
+
+		// Commits on the other replica alone; this one gets the write later
+		slaveHandlers.get("Mr. Slave").ignoreNext = true;
+		client.put("behind", "one");
+		// Whether or not the first write has reached it by now, this one
+		// must be what it ends up with
+		client.put("behind", "two");
+		while (master.getPendingRepairs() > 0) {
+			Thread.sleep(100);
+		}
+
+		for (KVServer slave : slaveServers.values()) {
+			assertEquals("two", slave.get("behind"));
+		}
+		System.out.println("INFO EndToEnd.testIgnoringReplicaCatchesUp: Finished.");
+	}
+
+	@Test
+	public void testHedgedReads() throws UnknownHostException, KVException {
+		System.out.println("INFO EndToEnd.testHedgedReads: Begin.");
+		KVClient client = new KVClient(InetAddress.getLocalHost().getHostAddress(), 8888);
+
+		// Slaves are slower than the initial hedge delay, so misses in the
+		// master's cache go to both replicas
+		master.setHedgedReads(0.5);
+		client.put("hedge", "value");
+		for (int i = 0; i < 3; i++) {
+			try {
+				client.get("hedge" + i);
+				fail("Get value for missing key did not fail.");
+			} catch (KVException e) {
+				// Expected
+			}
+		}
+
+		master.setHedgedReads(0);
+		assertEquals("value", client.get("hedge"));
+
+		try {
+			master.setHedgedReads(1);
+			fail("Hedging after every read was allowed");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		System.out.println("INFO EndToEnd.testHedgedReads: Finished.");
+	}
+
 	@Test
 	public void simpleKillSlave() {
 
@@ -2,12 +2,16 @@ package edu.berkeley.cs162.tests;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.junit.matchers.JUnitMatchers.containsString;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import edu.berkeley.cs162.KVCache;
+import edu.berkeley.cs162.ValueArena;
 
 /**
  * @author hkothari
@@ -70,6 +74,239 @@ public final class KVCacheTest {
         assertEquals(null, cache.get("5"));
     }
 
+    @Test
+    public void testDelFreesSlot() {
+        cache.put("1", "one");
+        cache.put("2", "two");
+        cache.del("1");
+        // The freed slot should be reused instead of evicting "2"
+        cache.put("3", "three");
+        assertEquals("two", cache.get("2"));
+        assertEquals("three", cache.get("3"));
+    }
+
+    @Test
+    public void testEvictionOrderAfterDel() {
+        KVCache small = new KVCache(1, 3);
+        small.put("A", "a");
+        small.put("B", "b");
+        small.put("C", "c");
+        small.del("B");
+        small.put("D", "d");
+        // D is the newest, so the oldest two go first
+        small.put("E", "e");
+        small.put("F", "f");
+        assertEquals(null, small.get("A"));
+        assertEquals(null, small.get("C"));
+        assertEquals("d", small.get("D"));
+        assertEquals("e", small.get("E"));
+        assertEquals("f", small.get("F"));
+    }
+
+    @Test
+    public void testByteBudget() {
+        // Room for plenty of entries by count but only ~3 small ones by size
+        int small = KVCache.entryCost("k0", "aaaa");
+        KVCache bounded = new KVCache(1, 10, 3 * small);
+        bounded.put("k0", "aaaa");
+        bounded.put("k1", "bbbb");
+        bounded.put("k2", "cccc");
+        assertEquals(3 * small, bounded.getTotalBytes());
+
+        // A fourth entry has to push the oldest out
+        bounded.put("k3", "dddd");
+        assertEquals(null, bounded.get("k0"));
+        assertEquals("dddd", bounded.get("k3"));
+
+        // An entry bigger than the whole budget is not cached at all, and
+        // overwriting with it drops the stale value.
+        StringBuilder huge = new StringBuilder();
+        while(KVCache.entryCost("k3", huge.toString()) <= 3 * small) {
+            huge.append("0123456789");
+        }
+        bounded.put("k3", huge.toString());
+        assertEquals(null, bounded.get("k3"));
+        assertEquals("bbbb", bounded.get("k1"));
+        assertEquals(2 * small, bounded.getTotalBytes());
+    }
+
+    @Test
+    public void testLargestEvictedFirst() {
+        int small = KVCache.entryCost("s0", "aaaa");
+        StringBuilder big = new StringBuilder();
+        while(KVCache.entryCost("big", big.toString()) < 3 * small) {
+            big.append("0");
+        }
+        int bigCost = KVCache.entryCost("big", big.toString());
+        KVCache bounded = new KVCache(1, 10, 3 * small + bigCost);
+        bounded.put("s0", "aaaa");
+        bounded.put("s1", "bbbb");
+        bounded.put("big", big.toString());
+        bounded.put("s2", "cccc");
+
+        // The big entry goes rather than the oldest small one
+        bounded.put("s3", "dddd");
+        assertEquals(null, bounded.get("big"));
+        assertEquals("aaaa", bounded.get("s0"));
+        assertEquals("bbbb", bounded.get("s1"));
+        assertEquals("cccc", bounded.get("s2"));
+        assertEquals("dddd", bounded.get("s3"));
+    }
+
+    @Test
+    public void testGlobalBudgetHeldByOtherSets() {
+        // "b" hashes to set 0, "a", "c" and "e" to set 1
+        KVCache bounded = new KVCache(2, 10, 1000, 1000);
+        bounded.put("b", valueOfCost("b", 736));
+        bounded.put("a", "1");
+        bounded.put("c", "2");
+        long total = bounded.getTotalBytes();
+
+        // Even emptying set 1 wouldn't make room, so nothing is evicted
+        bounded.put("e", valueOfCost("e", 368));
+        assertEquals(null, bounded.get("e"));
+        assertEquals("1", bounded.get("a"));
+        assertEquals("2", bounded.get("c"));
+        assertEquals(total, bounded.getTotalBytes());
+    }
+
+    private static String valueOfCost(String key, int cost) {
+        StringBuilder value = new StringBuilder();
+        while(KVCache.entryCost(key, value.toString()) < cost) {
+            value.append("0");
+        }
+        return value.toString();
+    }
+
+    @Test
+    public void testAdmissionFilter() {
+        KVCache filtered = new KVCache(1, 2, true);
+        for(int i = 0; i < 5; i++) {
+            filtered.get("hot1");
+            filtered.get("hot2");
+        }
+        filtered.put("hot1", "1");
+        filtered.put("hot2", "2");
+
+        // A key seen once shouldn't displace the hot ones
+        filtered.get("cold");
+        filtered.put("cold", "c");
+        assertEquals(null, filtered.get("cold"));
+        assertEquals("1", filtered.get("hot1"));
+        assertEquals("2", filtered.get("hot2"));
+
+        // But one that becomes more popular than them should get in
+        for(int i = 0; i < 10; i++) {
+            filtered.get("hotter");
+        }
+        filtered.put("hotter", "h");
+        assertEquals("h", filtered.get("hotter"));
+    }
+
+    @Test
+    public void testAdmissionDecidedBeforeEvicting() {
+        int small = KVCache.entryCost("k0", "aaaa");
+        KVCache filtered = new KVCache(1, 10, 3 * small, 3 * small, true);
+        filtered.get("k0");
+        for(int i = 0; i < 10; i++) {
+            filtered.get("k1");
+            filtered.get("k2");
+        }
+        filtered.put("k0", "aaaa");
+        filtered.put("k1", "bbbb");
+        filtered.put("k2", "cccc");
+
+        // Needs both k0 and k1 gone to fit, and is less popular than k1
+        StringBuilder big = new StringBuilder();
+        while(KVCache.entryCost("k3", big.toString()) <= 2 * small - 10) {
+            big.append("0");
+        }
+        for(int i = 0; i < 5; i++) {
+            filtered.get("k3");
+        }
+        filtered.put("k3", big.toString());
+        assertEquals(null, filtered.get("k3"));
+        // So nothing was evicted for it either
+        assertEquals("aaaa", filtered.get("k0"));
+        assertEquals(3 * small, filtered.getTotalBytes());
+    }
+
+    @Test
+    public void testOffHeapValues() {
+        ValueArena arena = new ValueArena();
+        KVCache offHeap = new KVCache(1, 2, arena);
+        offHeap.put("1", "one");
+        offHeap.put("1", "uno");
+        offHeap.put("2", "two");
+        assertEquals("uno", offHeap.get("1"));
+
+        // Evicting "2" has to give its bytes back to the arena
+        offHeap.put("3", "three");
+        assertEquals(null, offHeap.get("2"));
+        assertEquals("three", offHeap.get("3"));
+        assertEquals("uno".length() + "three".length(), arena.getUsedBytes());
+    }
+
+    @Test
+    public void testOffHeapByteBudget() {
+        ValueArena arena = new ValueArena();
+        StringBuilder value = new StringBuilder();
+        while(value.length() < 1000) {
+            value.append("0123456789");
+        }
+        // Off the heap the value takes a 1KB block, half its heap size
+        int cost = KVCache.ENTRY_OVERHEAD_BYTES + 2 + 1024;
+        KVCache bounded = new KVCache(1, 10, 2 * cost, 2 * cost, false, arena);
+        bounded.put("1", value.toString());
+        bounded.put("2", value.toString());
+        assertEquals(value.toString(), bounded.get("1"));
+        assertEquals(value.toString(), bounded.get("2"));
+        assertEquals(2 * cost, bounded.getTotalBytes());
+        assertEquals(1024, arena.footprint(value.toString()));
+    }
+
+    @Test
+    public void testUnlockedReadsDuringWrites() throws InterruptedException {
+        final KVCache shared = new KVCache(1, 4);
+        final AtomicBoolean torn = new AtomicBoolean(false);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread[] readers = new Thread[4];
+        for(int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    while(!done.get()) {
+                        for(int i = 0; i < 16; i++) {
+                            String value = shared.get("k" + i);
+                            // A hit must never hand back another key's value
+                            if(value != null && !value.equals("v" + i)) {
+                                torn.set(true);
+                            }
+                        }
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        // Keep evicting so readers race with slots being reused
+        for(int round = 0; round < 2000; round++) {
+            int i = round % 16;
+            shared.getWriteLock("k" + i).lock();
+            try {
+                shared.put("k" + i, "v" + i);
+            } finally {
+                shared.getWriteLock("k" + i).unlock();
+            }
+        }
+        done.set(true);
+        for(Thread reader : readers) {
+            reader.join();
+        }
+        if(torn.get()) {
+            fail("Lock-free get returned a value for the wrong key");
+        }
+    }
+
     @Test
     public void toXML() {
         cache.put("1", "one");
@@ -0,0 +1,272 @@
+package edu.berkeley.cs162.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import edu.berkeley.cs162.KVClient;
+import edu.berkeley.cs162.KVClientHandler;
+import edu.berkeley.cs162.KVConnection;
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.KVMessage;
+import edu.berkeley.cs162.NetworkHandler;
+import edu.berkeley.cs162.SocketServer;
+import edu.berkeley.cs162.TPCMaster;
+
+public final class KVConnectionTest {
+
+    private static final String SERVER_HOST = "localhost";
+    private static final int SERVER_PORT = 8124;
+    private static final long SLOW_GET_MS = 500;
+
+    private SocketServer server;
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        TPCMaster master = mock(TPCMaster.class);
+        when(master.handleGet(any(KVMessage.class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                String key = ((KVMessage) invocation.getArguments()[0]).getKey();
+                if ("slow".equals(key)) {
+                    Thread.sleep(SLOW_GET_MS);
+                }
+                return "value of " + key;
+            }
+        });
+        final KVClientHandler handler = new KVClientHandler(4, master);
+
+        server = new SocketServer(SERVER_HOST, SERVER_PORT);
+        server.addHandler(new NetworkHandler() {
+            @Override
+            public void handle(Socket client) throws IOException {
+                accepted.incrementAndGet();
+                handler.handle(client);
+            }
+        });
+        server.connect();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    // Closed by tearDown
+                }
+            }
+        }.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        server.closeSocket();
+    }
+
+    @Test
+    public void testRequestsShareConnection() throws Exception {
+        KVClient client = new KVClient(SERVER_HOST, SERVER_PORT, true);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("value of key" + i, client.get("key" + i));
+        }
+        client.close();
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void testPipelinedRepliesMatchRequests() throws Exception {
+        KVConnection connection = new KVConnection(SERVER_HOST, SERVER_PORT, true);
+        List<KVMessage> requests = new ArrayList<KVMessage>();
+        for (String key : new String[] {"slow", "a", "b"}) {
+            KVMessage request = new KVMessage("getreq");
+            request.setKey(key);
+            requests.add(request);
+        }
+        // The slow reply comes back last, but still goes to its request
+        List<KVMessage> replies = connection.pipeline(requests, 5000);
+        assertEquals(3, replies.size());
+        assertEquals("value of slow", replies.get(0).getValue());
+        assertEquals("value of a", replies.get(1).getValue());
+        assertEquals("value of b", replies.get(2).getValue());
+        connection.close();
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void testPipelineTimeoutForgetsTheRest() throws Exception {
+        for (boolean binary : new boolean[] {true, false}) {
+            KVConnection connection = new KVConnection(SERVER_HOST, SERVER_PORT, binary);
+            List<KVMessage> requests = new ArrayList<KVMessage>();
+            for (String key : new String[] {"slow", "a", "b"}) {
+                KVMessage request = new KVMessage("getreq");
+                request.setKey(key);
+                requests.add(request);
+            }
+            try {
+                connection.pipeline(requests, (int) SLOW_GET_MS / 5);
+                fail("Slow reply did not time out");
+            } catch (KVException e) {
+                // Expected
+            }
+            // Nothing is left waiting for the replies after the slow one
+            assertEquals(0, connection.getOutstanding());
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testReceiveIsNotHeldUpByAnotherThread() throws Exception {
+        final KVConnection connection = new KVConnection(SERVER_HOST, SERVER_PORT, true);
+        KVMessage slow = new KVMessage("getreq");
+        slow.setKey("slow");
+        long slowId = connection.send(slow);
+        KVMessage after = new KVMessage("getreq");
+        after.setKey("a");
+        final long afterId = connection.send(after);
+
+        // Waits, with no timeout, for a reply that comes after the slow one
+        final CompletableFuture<String> waiting = new CompletableFuture<String>();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waiting.complete(connection.receive(afterId, 0).getValue());
+                } catch (KVException e) {
+                    waiting.completeExceptionally(e);
+                }
+            }
+        }.start();
+        Thread.sleep(SLOW_GET_MS / 10);
+
+        // Gives up on its own timeout, not whenever the other thread is done
+        long start = System.currentTimeMillis();
+        try {
+            connection.receive(slowId, (int) SLOW_GET_MS / 5);
+            fail("Slow reply did not time out");
+        } catch (KVException e) {
+            // Expected
+        }
+        assertTrue(System.currentTimeMillis() - start < SLOW_GET_MS / 2);
+        assertEquals("value of a", waiting.get());
+        connection.close();
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void testXMLUsesConnectionPerRequest() throws Exception {
+        KVConnection connection = new KVConnection(SERVER_HOST, SERVER_PORT, false);
+        KVMessage request = new KVMessage("getreq");
+        request.setKey("a");
+        assertEquals("value of a", connection.call(request, 5000).getValue());
+        assertEquals("value of a", connection.call(request, 5000).getValue());
+        connection.close();
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void testAsyncRequestsShareConnections() throws Exception {
+        KVClient client = new KVClient(SERVER_HOST, SERVER_PORT, true, 2, 32, 5000);
+        List<CompletableFuture<String>> gets = new ArrayList<CompletableFuture<String>>();
+        gets.add(client.getAsync("slow"));
+        for (int i = 0; i < 20; i++) {
+            gets.add(client.getAsync("key" + i));
+        }
+        // Requests take turns over the connections, so those on the other
+        // one aren't held up behind the slow one
+        for (int i = 1; i < gets.size(); i += 2) {
+            assertEquals("value of key" + (i - 1), gets.get(i).get(SLOW_GET_MS / 2, TimeUnit.MILLISECONDS));
+        }
+        assertEquals("value of slow", gets.get(0).get());
+        for (int i = 2; i < gets.size(); i += 2) {
+            assertEquals("value of key" + (i - 1), gets.get(i).get());
+        }
+        // The blocking calls go the same way
+        assertEquals("value of a", client.get("a"));
+        client.close();
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        KVClient client = new KVClient(SERVER_HOST, SERVER_PORT, true, 1, 1, (int) SLOW_GET_MS / 5);
+        CompletableFuture<String> slow = client.getAsync("slow");
+        try {
+            slow.get();
+            fail("Slow reply did not time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KVException);
+        }
+        // Its late reply goes nowhere, and the connection carries on
+        Thread.sleep(SLOW_GET_MS);
+        assertEquals("value of a", client.getAsync("a").get());
+        client.close();
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void testAsyncFailsWhenTooManyInFlight() throws Exception {
+        KVClient client = new KVClient(SERVER_HOST, SERVER_PORT, true, 1, 1, 5000);
+        CompletableFuture<String> slow = client.getAsync("slow");
+        // No room for another, so it fails without waiting for the slow one
+        CompletableFuture<String> refused = client.getAsync("a");
+        assertTrue(refused.isCompletedExceptionally());
+        try {
+            refused.get();
+            fail("Request past maxInFlight was sent");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KVException);
+        }
+        assertFalse(slow.isDone());
+        // A blocking call waits for room instead
+        assertEquals("value of a", client.get("a"));
+        assertTrue(slow.isDone());
+        assertEquals("value of slow", slow.get());
+        client.close();
+    }
+
+    @Test
+    public void testAsyncCallbackCanSendAgain() throws Exception {
+        final KVClient client = new KVClient(SERVER_HOST, SERVER_PORT, true, 1, 1, 5000);
+        // The callback runs on the connection's reader thread, which must
+        // neither wait for room nor find the finished request still counted
+        CompletableFuture<String> chained = client.getAsync("slow").thenCompose(
+                new Function<String, CompletionStage<String>>() {
+            @Override
+            public CompletionStage<String> apply(String value) {
+                return client.getAsync("a");
+            }
+        });
+        assertEquals("value of a", chained.get(5, TimeUnit.SECONDS));
+        client.close();
+    }
+
+    @Test
+    public void testXMLAsyncWaitsForReply() throws Exception {
+        KVClient client = new KVClient(SERVER_HOST, SERVER_PORT);
+        CompletableFuture<String> reply = client.getAsync("slow");
+        assertTrue(reply.isDone());
+        assertEquals("value of slow", reply.get());
+    }
+}
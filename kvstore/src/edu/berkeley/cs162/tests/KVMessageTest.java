@@ -2,15 +2,20 @@ package edu.berkeley.cs162.tests;
 
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.matchers.JUnitMatchers.containsString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -132,4 +137,97 @@ public final class KVMessageTest {
             // Fall through, all is well
         }
     }
+
+    private static KVMessage sendAndReceive(KVMessage msg, boolean binary)
+            throws IOException, KVException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Socket sender = mock(Socket.class);
+        when(sender.getOutputStream()).thenReturn(output);
+        msg.sendMessage(sender, binary);
+
+        Socket receiver = mock(Socket.class);
+        when(receiver.getInputStream()).thenReturn(new ByteArrayInputStream(output.toByteArray()));
+        return new KVMessage(receiver);
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException, KVException {
+        KVMessage msg = new KVMessage("putreq");
+        msg.setKey("caf\u00e9");
+        msg.setValue("<Value>&");
+        msg.setTpcOpId("42");
+
+        KVMessage received = sendAndReceive(msg, true);
+        assertTrue(received.isBinary());
+        assertEquals("putreq", received.getMsgType());
+        assertEquals("caf\u00e9", received.getKey());
+        assertEquals("<Value>&", received.getValue());
+        assertEquals("42", received.getTpcOpId());
+        assertNull(received.getMessage());
+
+        // Op ids that aren't plain numbers still come back as they were sent
+        KVMessage abort = new KVMessage("abort", "no reason");
+        abort.setTpcOpId("007");
+        received = sendAndReceive(abort, true);
+        assertEquals("007", received.getTpcOpId());
+        assertEquals("no reason", received.getMessage());
+    }
+
+    @Test
+    public void testBatchRoundTrip() throws IOException, KVException {
+        KVMessage put = new KVMessage("putreq");
+        put.setKey("key1");
+        put.setValue("value1");
+        KVMessage del = new KVMessage("delreq");
+        del.setKey("key2");
+        KVMessage batch = new KVMessage("batchreq");
+        batch.setBatch(Arrays.asList(put, del));
+        batch.setTpcOpId("7");
+
+        for (boolean binary : new boolean[] { true, false }) {
+            KVMessage received = sendAndReceive(batch, binary);
+            assertEquals("batchreq", received.getMsgType());
+            assertEquals("7", received.getTpcOpId());
+            assertEquals(2, received.getBatch().size());
+            assertEquals("putreq", received.getBatch().get(0).getMsgType());
+            assertEquals("key1", received.getBatch().get(0).getKey());
+            assertEquals("value1", received.getBatch().get(0).getValue());
+            assertEquals("delreq", received.getBatch().get(1).getMsgType());
+            assertEquals("key2", received.getBatch().get(1).getKey());
+        }
+
+        // Only puts and dels can be batched
+        try {
+            batch.setBatch(Arrays.asList(new KVMessage("getreq")));
+            fail("Failed to throw exception for a batched getreq");
+        } catch(KVException e) {
+            // Fall through, all is well
+        }
+    }
+
+    @Test
+    public void testXMLStillSniffed() throws IOException, KVException {
+        KVMessage msg = new KVMessage("getreq");
+        msg.setKey("testkey");
+        KVMessage received = sendAndReceive(msg, false);
+        assertFalse(received.isBinary());
+        assertEquals("testkey", received.getKey());
+    }
+
+    @Test
+    public void testTruncatedBinaryFrame() throws IOException, KVException {
+        KVMessage msg = new KVMessage("getreq");
+        msg.setKey("testkey");
+        byte[] frame = msg.toBinary();
+        Socket client = mock(Socket.class);
+        when(client.getInputStream()).thenReturn(
+                new ByteArrayInputStream(Arrays.copyOf(frame, frame.length - 1)));
+
+        try {
+            new KVMessage(client);
+            fail("Failed to throw exception for a truncated binary frame");
+        } catch(KVException e) {
+            // Fall through, all is well
+        }
+    }
 }
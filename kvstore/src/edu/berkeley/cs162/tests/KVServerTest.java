@@ -1,6 +1,7 @@
 package edu.berkeley.cs162.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -108,6 +109,41 @@ public final class KVServerTest {
         assertEquals(TEST_VALUE, cache.get(TEST_KEY));
     }
 
+    @Test
+    public void testCommitsApplyInOpIdOrder() throws KVException {
+        assertTrue(server.putIfNewer(TEST_KEY, "seven", "7"));
+        // Commits for earlier ops that arrive late change nothing
+        assertFalse(server.putIfNewer(TEST_KEY, "five", "5"));
+        assertFalse(server.delIfNewer(TEST_KEY, "6"));
+        assertEquals("seven", server.get(TEST_KEY));
+
+        assertTrue(server.delIfNewer(TEST_KEY, "8"));
+        assertFalse(server.putIfNewer(TEST_KEY, "seven again", "7"));
+        try {
+            server.get(TEST_KEY);
+            fail("Older put brought back a deleted key");
+        } catch (KVException e) {
+            // Expected
+        }
+        assertTrue(server.putIfNewer(TEST_KEY, "nine", "9"));
+        assertEquals("nine", server.get(TEST_KEY));
+    }
+
+    @Test
+    public void testAppliedOpsArePruned() throws KVException {
+        server.putIfNewer(TEST_KEY, TEST_VALUE, "7");
+        server.putIfNewer("gone", TEST_VALUE, "8");
+        server.delIfNewer("gone", "9");
+        assertEquals(2, server.getAppliedOpCount());
+
+        // Still remembered within the TTL, forgotten after it
+        server.pruneAppliedOps(System.currentTimeMillis());
+        assertEquals(2, server.getAppliedOpCount());
+        server.pruneAppliedOps(System.currentTimeMillis() + KVServer.APPLIED_OP_TTL_MS + 1000);
+        assertEquals(0, server.getAppliedOpCount());
+        assertEquals(TEST_VALUE, server.get(TEST_KEY));
+    }
+
     @Test
     public void testHasKey() throws KVException {
         server.put(TEST_KEY, TEST_VALUE);
@@ -119,4 +155,34 @@ public final class KVServerTest {
             // Fall through
         }
     }
+
+    @Test
+    public void testParallelPutsAcrossSets() throws InterruptedException, KVException {
+        // Every store access takes about a second, so eight puts to
+        // different sets only finish quickly if they run side by side.
+        final KVServer parallel = new KVServer(new KVStore(), new KVCache(16, 4));
+        Thread[] writers = new Thread[8];
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < writers.length; i++) {
+            final String key = "k" + i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        parallel.put(key, "v");
+                    } catch (KVException e) {
+                        // Checked below
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for(Thread writer : writers) {
+            writer.join();
+        }
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        for(int i = 0; i < writers.length; i++) {
+            assertEquals("v", parallel.get("k" + i));
+        }
+    }
 }
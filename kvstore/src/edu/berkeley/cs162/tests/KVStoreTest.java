@@ -5,14 +5,24 @@ import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 import edu.berkeley.cs162.KVException;
 import edu.berkeley.cs162.KVStore;
+import edu.berkeley.cs162.ValueArena;
 
 /**
  * @author malienalguy
@@ -66,4 +76,119 @@ public final class KVStoreTest {
         assertEquals("19", store.get("Hamel"));
 
     }
+
+    @Test
+    public void testOffHeapValues() throws KVException, IOException {
+        ValueArena arena = new ValueArena();
+        KVStore offHeap = new KVStore(arena);
+        offHeap.put("key", "value");
+        offHeap.put("key", "newvalue");
+        assertEquals("newvalue", offHeap.get("key"));
+        assertEquals("newvalue".length(), arena.getUsedBytes());
+
+        File dumpFile = tempFolder.newFile("offHeapDump.xml");
+        offHeap.dumpToFile(dumpFile.getAbsolutePath());
+        offHeap.del("key");
+        assertEquals(0, arena.getUsedBytes());
+
+        offHeap.restoreFromFile(dumpFile.getAbsolutePath());
+        assertEquals("newvalue", offHeap.get("key"));
+    }
+
+    @Test
+    public void testDumpRestoreMarkup() throws KVException, IOException {
+        File dumpFile = tempFolder.newFile("markupDump.xml");
+        String value = "<Value>&amp; caf\u00e9\r\n";
+        store.put("a&b", value);
+        store.put("empty", "");
+        store.dumpToFile(dumpFile.getAbsolutePath());
+
+        KVStore restored = new KVStore();
+        restored.restoreFromFile(dumpFile.getAbsolutePath());
+        assertEquals(value, restored.get("a&b"));
+        assertEquals("", restored.get("empty"));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws KVException, IOException {
+        File snapshot = tempFolder.newFile("store.snapshot");
+        // Big enough that the values land in separate blocks
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 40 * 1024) {
+            big.append("caf\u00e9 ");
+        }
+        store.put("big1", big.toString());
+        store.put("big2", big.toString() + "2");
+        store.put("empty", "");
+        store.dumpToSnapshot(snapshot.getAbsolutePath());
+
+        KVStore restored = new KVStore();
+        restored.restoreFromSnapshot(snapshot.getAbsolutePath());
+        assertEquals(big.toString(), restored.get("big1"));
+        assertEquals(big.toString() + "2", restored.get("big2"));
+        assertEquals("", restored.get("empty"));
+    }
+
+    @Test
+    public void testDamagedSnapshotIsRejected() throws KVException, IOException {
+        File snapshot = tempFolder.newFile("damaged.snapshot");
+        store.put("Maliena", "20");
+        store.dumpToSnapshot(snapshot.getAbsolutePath());
+
+        // Flip a bit of the value
+        RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+        file.seek(12 + 4 + "Maliena".length() + 4);
+        int b = file.read();
+        file.seek(12 + 4 + "Maliena".length() + 4);
+        file.write(b ^ 1);
+        file.close();
+
+        KVStore restored = new KVStore();
+        restored.put("Hamel", "19");
+        restored.restoreFromSnapshot(snapshot.getAbsolutePath());
+        assertEquals("19", restored.get("Hamel"));
+        try {
+            restored.get("Maliena");
+            fail("Restored from a damaged snapshot");
+        } catch (KVException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testToXMLMatchesTransformer() throws Exception {
+        String[] values = {
+            "",
+            "a&b<c>\"'\t\n\r",
+            "\u0001\u001f\u007f\u0085\u009f\u00a0\u00e9\u2028\ufffd",
+            "smile \ud83d\ude00 and \udbff\udfff",
+        };
+        for (String value : values) {
+            KVStore single = new KVStore();
+            single.put("k" + value, value);
+            assertEquals(transformerXML("k" + value, value), single.toXML());
+        }
+    }
+
+    /**
+     * The XML toXML() produced when it built a DOM and ran it through an
+     * identity Transformer.
+     */
+    private static String transformerXML(String key, String value) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element root = doc.createElement("KVStore");
+        doc.appendChild(root);
+        Element pair = doc.createElement("KVPair");
+        Element keyElem = doc.createElement("Key");
+        keyElem.appendChild(doc.createTextNode(key));
+        Element valueElem = doc.createElement("Value");
+        valueElem.appendChild(doc.createTextNode(value));
+        pair.appendChild(keyElem);
+        pair.appendChild(valueElem);
+        root.appendChild(pair);
+
+        StringWriter out = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+        return out.toString();
+    }
 }
@@ -0,0 +1,154 @@
+package edu.berkeley.cs162.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.LogStructuredStore;
+
+public final class LogStructuredStoreTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private String directory;
+    private LogStructuredStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = tempFolder.newFolder("store").getAbsolutePath();
+        store = new LogStructuredStore(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void testReopenFromHints() throws KVException, IOException {
+        store.put("Maliena", "20");
+        store.put("Hamel", "19");
+        store.del("Maliena");
+        store.close();
+
+        assertTrue(new File(directory, LogStructuredStore.HINT_FILE).isFile());
+        store = new LogStructuredStore(directory);
+        assertEquals("19", store.get("Hamel"));
+        try {
+            store.get("Maliena");
+            fail("Deleted key came back after reopening");
+        } catch (KVException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCorruptHintKeyLength() throws KVException, IOException {
+        store.put("Maliena", "20");
+        store.put("Hamel", "19");
+        store.close();
+
+        // The first key's length comes after the magic, data length and count
+        for (int keyLength : new int[] {-1, Integer.MAX_VALUE}) {
+            RandomAccessFile hints = new RandomAccessFile(new File(directory, LogStructuredStore.HINT_FILE), "rw");
+            try {
+                hints.seek(16);
+                hints.writeInt(keyLength);
+            } finally {
+                hints.close();
+            }
+            // Falls back to scanning the data file
+            store = new LogStructuredStore(directory);
+            assertEquals("20", store.get("Maliena"));
+            assertEquals("19", store.get("Hamel"));
+            store.close();
+        }
+        store = new LogStructuredStore(directory);
+    }
+
+    @Test
+    public void testCompaction() throws KVException, IOException {
+        store.put("Bryan", "24");
+        store.put("Bryan", "25");
+        store.put("EunSeon", "20");
+        store.del("EunSeon");
+        long before = store.getDataBytes();
+        assertTrue(store.getStaleBytes() > 0);
+
+        store.compact();
+        assertEquals(0, store.getStaleBytes());
+        assertTrue(store.getDataBytes() < before);
+        assertEquals("25", store.get("Bryan"));
+
+        // Writes after a compaction land in the new file
+        store.put("Lisa", "50");
+        store.close();
+        store = new LogStructuredStore(directory);
+        assertEquals("25", store.get("Bryan"));
+        assertEquals("50", store.get("Lisa"));
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws KVException, IOException {
+        store.put("Maliena", "21");
+        store.close();
+        // Simulate a crash halfway through the next append: no hint file,
+        // and a partial record at the end of the data file
+        assertTrue(new File(directory, LogStructuredStore.HINT_FILE).delete());
+        File dataFile = new File(directory, LogStructuredStore.DATA_FILE);
+        long goodLength = dataFile.length();
+        FileOutputStream out = new FileOutputStream(dataFile, true);
+        out.write(new byte[] { 1, 2, 3, 4, 0, 0, 0, 5, 0 });
+        out.close();
+
+        store = new LogStructuredStore(directory);
+        assertEquals(goodLength, store.getDataBytes());
+        assertEquals("21", store.get("Maliena"));
+        store.put("Hamel", "20");
+        assertEquals("20", store.get("Hamel"));
+    }
+
+    @Test
+    public void testCorruptRecordInTheMiddleIsNotDropped() throws KVException, IOException {
+        store.put("Maliena", "21");
+        store.put("Hamel", "20");
+        store.close();
+        assertTrue(new File(directory, LogStructuredStore.HINT_FILE).delete());
+        File dataFile = new File(directory, LogStructuredStore.DATA_FILE);
+        long length = dataFile.length();
+        // Flip a byte of the first record's value
+        RandomAccessFile file = new RandomAccessFile(dataFile, "rw");
+        file.seek(length / 2 - 1);
+        int b = file.read();
+        file.seek(length / 2 - 1);
+        file.write(b ^ 0xff);
+        file.close();
+
+        try {
+            store = new LogStructuredStore(directory);
+            fail("Opened a store with a corrupt record in the middle");
+        } catch (IOException e) {
+            // Expected
+        }
+        // The records after it are all still there, to be recovered by hand
+        assertEquals(length, dataFile.length());
+        file = new RandomAccessFile(dataFile, "rw");
+        file.seek(length / 2 - 1);
+        file.write(b);
+        file.close();
+        store = new LogStructuredStore(directory);
+        assertEquals("20", store.get("Hamel"));
+    }
+}
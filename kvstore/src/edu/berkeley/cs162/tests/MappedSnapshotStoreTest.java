@@ -0,0 +1,171 @@
+package edu.berkeley.cs162.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.KVStore;
+import edu.berkeley.cs162.MappedSnapshotStore;
+
+public final class MappedSnapshotStoreTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private String snapshotPath;
+    private MappedSnapshotStore store;
+
+    @Before
+    public void setUp() throws KVException, IOException {
+        KVStore source = new KVStore();
+        source.put("Maliena", "20");
+        source.put("Hamel", "19");
+        File snapshot = tempFolder.newFile("store.mapped");
+        snapshotPath = snapshot.getAbsolutePath();
+        MappedSnapshotStore.write(source, snapshotPath);
+        store = new MappedSnapshotStore(snapshotPath);
+    }
+
+    @Test
+    public void testOverlay() throws KVException {
+        assertEquals("20", store.get("Maliena"));
+
+        store.put("Maliena", "21");
+        store.del("Hamel");
+        assertEquals("21", store.get("Maliena"));
+        try {
+            store.get("Hamel");
+            fail("Deleted snapshot key is still visible");
+        } catch (KVException e) {
+            // Expected
+        }
+        assertEquals(2, store.getOverlaySize());
+
+        String xml = store.toXML();
+        assertThat(xml, containsString("<Key>Maliena</Key><Value>21</Value>"));
+        assertFalse(xml.contains("Hamel"));
+    }
+
+    @Test
+    public void testCheckpoint() throws KVException, IOException {
+        store.put("Bryan", "24");
+        store.del("Hamel");
+        store.checkpoint(snapshotPath);
+        assertEquals(0, store.getOverlaySize());
+
+        MappedSnapshotStore reopened = new MappedSnapshotStore(snapshotPath);
+        assertEquals("24", reopened.get("Bryan"));
+        assertEquals("20", reopened.get("Maliena"));
+        try {
+            reopened.get("Hamel");
+            fail("Deleted key made it into the checkpoint");
+        } catch (KVException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDelAgainWhileCheckpointing() throws KVException, IOException {
+        // Between listing and reading the keys to checkpoint, Hamel comes
+        // back and is deleted again. The new snapshot holds the value it
+        // read, so the second tombstone must stay in the overlay.
+        RacingStore racing = new RacingStore(snapshotPath);
+        racing.del("Hamel");
+        racing.racing = true;
+        racing.checkpoint(snapshotPath);
+
+        try {
+            racing.get("Hamel");
+            fail("Key deleted during a checkpoint came back");
+        } catch (KVException e) {
+            // Expected
+        }
+        assertEquals(1, racing.getOverlaySize());
+    }
+
+    @Test
+    public void testCheckpointsWhenOverlayFills() throws Exception {
+        MappedSnapshotStore small = new MappedSnapshotStore(snapshotPath, 2);
+        small.put("Bryan", "24");
+        small.del("Hamel");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (small.getOverlaySize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, small.getOverlaySize());
+        assertEquals("24", new MappedSnapshotStore(snapshotPath).get("Bryan"));
+    }
+
+    @Test
+    public void testCloseCheckpoints() throws KVException, IOException {
+        store.put("Bryan", "24");
+        store.close();
+
+        MappedSnapshotStore reopened = new MappedSnapshotStore(snapshotPath);
+        assertEquals("24", reopened.get("Bryan"));
+        assertEquals("19", reopened.get("Hamel"));
+    }
+
+    @Test
+    public void testStartFromEmptySnapshot() throws KVException, IOException {
+        // What a slave does the first time it is given a snapshot path
+        String freshPath = new File(tempFolder.getRoot(), "fresh.mapped").getAbsolutePath();
+        MappedSnapshotStore.write(new KVStore(), freshPath);
+        MappedSnapshotStore fresh = new MappedSnapshotStore(freshPath);
+        fresh.put("Bryan", "24");
+        fresh.close();
+
+        assertEquals("24", new MappedSnapshotStore(freshPath).get("Bryan"));
+    }
+
+    /**
+     * Puts and deletes Hamel again from inside the checkpoint's own reads.
+     */
+    private static final class RacingStore extends MappedSnapshotStore {
+        boolean racing = false;
+        private boolean delAfterRead = false;
+
+        RacingStore(String fileName) throws IOException {
+            super(fileName);
+        }
+
+        @Override
+        protected Iterable<String> keys() {
+            if (racing) {
+                racing = false;
+                try {
+                    put("Hamel", "19");
+                } catch (KVException e) {
+                    throw new IllegalStateException(e);
+                }
+                delAfterRead = true;
+            }
+            return super.keys();
+        }
+
+        @Override
+        protected String lookup(String key) {
+            String value = super.lookup(key);
+            if (delAfterRead && "Hamel".equals(key)) {
+                delAfterRead = false;
+                try {
+                    del("Hamel");
+                } catch (KVException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return value;
+        }
+    }
+}
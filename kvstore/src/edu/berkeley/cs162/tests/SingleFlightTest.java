@@ -0,0 +1,136 @@
+package edu.berkeley.cs162.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+import org.junit.Test;
+
+import edu.berkeley.cs162.KVCache;
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.KVMessage;
+import edu.berkeley.cs162.SingleFlight;
+
+public final class SingleFlightTest {
+
+    /**
+     * Counts its loads, each of which waits to be released.
+     */
+    private static final class BlockingLoader implements SingleFlight.Loader {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile String value = "value";
+
+        @Override
+        public String load(String key) throws KVException {
+            loads.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (value == null) {
+                throw new KVException(new KVMessage("resp", "Does not exist"));
+            }
+            return value;
+        }
+    }
+
+    private static FutureTask<String> startGet(final SingleFlight flights, final String key) {
+        FutureTask<String> get = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws KVException {
+                return flights.get(key);
+            }
+        });
+        new Thread(get).start();
+        return get;
+    }
+
+    @Test
+    public void testCoalescesConcurrentMisses() throws Exception {
+        KVCache cache = new KVCache(10, 10);
+        BlockingLoader loader = new BlockingLoader();
+        SingleFlight flights = new SingleFlight(cache, loader);
+
+        List<FutureTask<String>> gets = new ArrayList<FutureTask<String>>();
+        gets.add(startGet(flights, "key"));
+        loader.started.await();
+        for (int i = 0; i < 7; i++) {
+            gets.add(startGet(flights, "key"));
+        }
+        Thread.sleep(100);
+        loader.release.countDown();
+
+        for (FutureTask<String> get : gets) {
+            assertEquals("value", get.get());
+        }
+        assertEquals(1, loader.loads.get());
+        assertEquals("value", cache.get("key"));
+    }
+
+    @Test
+    public void testSharesErrors() throws Exception {
+        KVCache cache = new KVCache(10, 10);
+        BlockingLoader loader = new BlockingLoader();
+        loader.value = null;
+        SingleFlight flights = new SingleFlight(cache, loader);
+
+        List<FutureTask<String>> gets = new ArrayList<FutureTask<String>>();
+        gets.add(startGet(flights, "key"));
+        loader.started.await();
+        gets.add(startGet(flights, "key"));
+        Thread.sleep(100);
+        loader.release.countDown();
+
+        for (FutureTask<String> get : gets) {
+            try {
+                get.get();
+                fail("Get of missing key did not fail.");
+            } catch (ExecutionException e) {
+                assertEquals("Does not exist",
+                        ((KVException) e.getCause()).getMsg().getMessage());
+            }
+        }
+        assertNull(cache.get("key"));
+
+        // A failed load isn't remembered
+        loader.value = "value";
+        assertEquals("value", flights.get("key"));
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void testWriteDuringLoadIsNotCached() throws Exception {
+        KVCache cache = new KVCache(10, 10);
+        BlockingLoader loader = new BlockingLoader();
+        loader.value = "old";
+        SingleFlight flights = new SingleFlight(cache, loader);
+
+        FutureTask<String> get = startGet(flights, "key");
+        loader.started.await();
+        // A write to the key finishes while the load is in flight
+        WriteLock setLock = cache.getWriteLock("key");
+        setLock.lock();
+        try {
+            flights.forget("key");
+        } finally {
+            setLock.unlock();
+        }
+        loader.release.countDown();
+
+        assertEquals("old", get.get());
+        assertNull(cache.get("key"));
+    }
+}
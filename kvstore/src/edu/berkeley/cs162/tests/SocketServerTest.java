@@ -2,6 +2,9 @@ package edu.berkeley.cs162.tests;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,9 +17,15 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import edu.berkeley.cs162.KVClient;
+import edu.berkeley.cs162.KVClientHandler;
+import edu.berkeley.cs162.KVMessage;
 import edu.berkeley.cs162.NetworkHandler;
 import edu.berkeley.cs162.SocketServer;
+import edu.berkeley.cs162.TPCMaster;
 
 /**
  * @author hkothari
@@ -28,6 +37,8 @@ public final class SocketServerTest {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8123;
     private static final long STOP_DELAY_MS = 2000;
+    private static final int SELECTOR_PORT = 8127;
+    private static final int IDLE_CLIENTS = 200;
 
     private ServerThread st;
     private TestHandler handler;
@@ -106,6 +117,101 @@ public final class SocketServerTest {
         assertEquals(10, handler.getRecieved());
     }
 
+    @Test
+    public void testSelectorModeDoesNotTieUpWorkers() throws Exception {
+        // A single worker, which idle and half-sent connections would
+        // otherwise hold on to
+        SocketServer server = startSelectorServer(1);
+        List<Socket> idle = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < IDLE_CLIENTS; i++) {
+                idle.add(new Socket(SERVER_HOST, server.getPort()));
+            }
+            Socket halfSent = new Socket(SERVER_HOST, server.getPort());
+            idle.add(halfSent);
+            KVMessage request = new KVMessage("getreq");
+            request.setKey("stalled");
+            byte[] frame = request.toBinary();
+            halfSent.getOutputStream().write(frame, 0, frame.length / 2);
+
+            KVClient binary = new KVClient(SERVER_HOST, server.getPort(), true);
+            assertEquals("value of a", binary.get("a"));
+            assertEquals("value of b", binary.get("b"));
+            binary.close();
+            KVClient xml = new KVClient(SERVER_HOST, server.getPort(), false);
+            assertEquals("value of c", xml.get("c"));
+
+            // The rest of the frame completes the stalled request
+            halfSent.getOutputStream().write(frame, frame.length / 2, frame.length - frame.length / 2);
+            assertEquals("value of stalled", new KVMessage(halfSent, 5000).getValue());
+        } finally {
+            for (Socket s : idle) {
+                s.close();
+            }
+            server.stop();
+            server.closeSocket();
+        }
+    }
+
+    @Test
+    public void testSelectorModeReadsLargeFrames() throws Exception {
+        SocketServer server = startSelectorServer(1);
+        try {
+            // Far past the first buffer a frame gets, so it has to grow
+            StringBuilder value = new StringBuilder();
+            while (value.length() < 200 * 1024) {
+                value.append("0123456789");
+            }
+            KVClient binary = new KVClient(SERVER_HOST, server.getPort(), true);
+            binary.put("large", value.toString());
+            assertEquals("value of a", binary.get("a"));
+            binary.close();
+        } finally {
+            server.stop();
+            server.closeSocket();
+        }
+    }
+
+    @Test
+    public void testSelectorModeAnswersMalformedRequests() throws Exception {
+        SocketServer server = startSelectorServer(1);
+        try {
+            Socket s = new Socket(SERVER_HOST, server.getPort());
+            s.getOutputStream().write(new byte[] {(byte) KVMessage.BINARY_MAGIC, 0x7f, 0, 0, 0});
+            assertEquals("Unknown Error: Received malformed binary message",
+                    new KVMessage(s, 5000).getMessage());
+            s.close();
+        } finally {
+            server.stop();
+            server.closeSocket();
+        }
+    }
+
+    private SocketServer startSelectorServer(int workers) throws Exception {
+        TPCMaster master = mock(TPCMaster.class);
+        when(master.handleGet(any(KVMessage.class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return "value of " + ((KVMessage) invocation.getArguments()[0]).getKey();
+            }
+        });
+        final SocketServer server = new SocketServer(SERVER_HOST, SELECTOR_PORT);
+        server.setSelectorMode(true);
+        server.addHandler(new KVClientHandler(workers, master));
+        server.connect();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.start();
+        return server;
+    }
+
     private class ServerThread extends Thread {
         public final SocketServer server = new SocketServer(SERVER_HOST, SERVER_PORT);
 
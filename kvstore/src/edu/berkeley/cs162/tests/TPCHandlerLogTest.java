@@ -7,6 +7,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Arrays;
 
 import static org.junit.matchers.JUnitMatchers.containsString;
 import org.junit.After;
@@ -14,7 +15,9 @@ import org.junit.Before;
 import org.junit.Rule;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.junit.Test;
@@ -107,6 +110,101 @@ public final class TPCHandlerLogTest {
         assertEquals("ready", log.getInterruptedTpcOperation().getMsgType());
     }
 
+    @Test
+    public void testInterleavedOperations() throws KVException, IOException {
+        // Two operations in flight at once, decided in the opposite order
+        KVMessage put1 = new KVMessage("putreq");
+        put1.setKey(TEST_KEY1);
+        put1.setValue(TEST_VALUE1);
+        put1.setTpcOpId("1");
+        assertThat(sendMessageToHandler(put1, handler), containsString("ready"));
+
+        KVMessage put2 = new KVMessage("putreq");
+        put2.setKey(TEST_KEY2);
+        put2.setValue(TEST_VALUE2);
+        put2.setTpcOpId("2");
+        assertThat(sendMessageToHandler(put2, handler), containsString("ready"));
+
+        KVMessage commit2 = new KVMessage("commit");
+        commit2.setTpcOpId("2");
+        assertThat(sendMessageToHandler(commit2, handler), containsString("ack"));
+
+        // Only the second operation has been applied
+        assertEquals(TEST_VALUE2, server.get(TEST_KEY2));
+        try {
+            server.hasKey(TEST_KEY1);
+            fail("Value was stored before commit message");
+        } catch (KVException e) {
+            // Expected
+        }
+
+        // A rebuilt server agrees, with the first operation still interrupted
+        log.rebuildKeyServer();
+        assertEquals(TEST_VALUE2, newServer.get(TEST_KEY2));
+        try {
+            newServer.hasKey(TEST_KEY1);
+            fail("newServer has first test key and it shouldn't");
+        } catch (KVException e) {
+            // Expected
+        }
+        assertTrue(log.hasInterruptedTpcOperation());
+
+        // Committing it after the restart picks it up from the log
+        TPCMasterHandler restarted = new TPCMasterHandler(newServer);
+        restarted.setTPCLog(log);
+        KVMessage commit1 = new KVMessage("commit");
+        commit1.setTpcOpId("1");
+        assertThat(sendMessageToHandler(commit1, restarted), containsString("ack"));
+        assertEquals(TEST_VALUE1, newServer.get(TEST_KEY1));
+        assertFalse(log.hasInterruptedTpcOperation());
+
+        // A resent decision is just acknowledged
+        assertThat(sendMessageToHandler(commit1, restarted), containsString("ack"));
+    }
+
+
+    @Test
+    public void testBatchRebuild() throws KVException, IOException {
+        KVMessage put1 = new KVMessage("putreq");
+        put1.setKey(TEST_KEY1);
+        put1.setValue(TEST_VALUE1);
+        KVMessage put2 = new KVMessage("putreq");
+        put2.setKey(TEST_KEY2);
+        put2.setValue(TEST_VALUE2);
+        KVMessage batch = new KVMessage("batchreq");
+        batch.setBatch(Arrays.asList(put1, put2));
+        batch.setTpcOpId("1");
+        assertThat(sendMessageToHandler(batch, handler), containsString("ready"));
+
+        KVMessage commit = new KVMessage("commit");
+        commit.setTpcOpId("1");
+        assertThat(sendMessageToHandler(commit, handler), containsString("ack"));
+        assertEquals(TEST_VALUE1, server.get(TEST_KEY1));
+        assertEquals(TEST_VALUE2, server.get(TEST_KEY2));
+
+        // The batch is logged as one entry
+        assertEquals(3, log.getEntries().size());
+
+        // A del in the batch of a key that isn't there aborts all of it
+        KVMessage del = new KVMessage("delreq");
+        del.setKey("missing");
+        KVMessage put3 = new KVMessage("putreq");
+        put3.setKey(TEST_KEY1);
+        put3.setValue(TEST_VALUE2);
+        KVMessage badBatch = new KVMessage("batchreq");
+        badBatch.setBatch(Arrays.asList(put3, del));
+        badBatch.setTpcOpId("2");
+        assertThat(sendMessageToHandler(badBatch, handler), containsString("abort"));
+        KVMessage abort = new KVMessage("abort");
+        abort.setTpcOpId("2");
+        assertThat(sendMessageToHandler(abort, handler), containsString("ack"));
+        assertEquals(TEST_VALUE1, server.get(TEST_KEY1));
+
+        log.rebuildKeyServer();
+        assertEquals(TEST_VALUE1, newServer.get(TEST_KEY1));
+        assertEquals(TEST_VALUE2, newServer.get(TEST_KEY2));
+        assertFalse(log.hasInterruptedTpcOperation());
+    }
 
     /**
      * Sends the message to the handler and returns the result from the socket.
@@ -0,0 +1,177 @@
+package edu.berkeley.cs162.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.KVMessage;
+import edu.berkeley.cs162.TPCMaster;
+
+/**
+ * Runs 2PC rounds against stub slaves that answer after a delay, or not at
+ * all, to see which requests the master sends them and when.
+ */
+public final class TPCMasterTest {
+    private static final int REGISTRATION_PORT = 9090;
+    private static final long DELAY_MS = 500;
+
+    private TPCMaster master;
+    private StubSlave first;
+    private StubSlave second;
+
+    @Before
+    public void setUp() throws Exception {
+        master = new TPCMaster(2);
+        // The stubs only speak XML, a request per connection
+        master.setBinaryProtocol(false);
+        master.run();
+        first = new StubSlave(1);
+        second = new StubSlave(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        first.close();
+        second.close();
+        master.stop();
+        // Wait for the registration server to actually stop
+        Thread.sleep(1000);
+    }
+
+    @Test(timeout = 20000)
+    public void testReplicasAreContactedInParallel() throws Exception {
+        first.delayMs = DELAY_MS;
+        second.delayMs = DELAY_MS;
+
+        long start = System.currentTimeMillis();
+        master.performTPCOperation(putreq("parallel", "value"), true);
+        long elapsed = System.currentTimeMillis() - start;
+
+        // One slow round trip per phase, not one per replica
+        assertTrue("Round took " + elapsed + "ms", elapsed < 3 * DELAY_MS);
+        assertEquals(2, first.received.size());
+        assertEquals(2, second.received.size());
+        for (int i = 0; i < 2; i++) {
+            // Neither waited for the other to answer before being asked
+            long apart = Math.abs(first.receivedAt.get(i) - second.receivedAt.get(i));
+            assertTrue("Requests were " + apart + "ms apart", apart < DELAY_MS / 2);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testDecisionOnlyResentToUnacked() throws Exception {
+        second.dropCommits.set(1);
+
+        master.performTPCOperation(putreq("resent", "value"), true);
+
+        assertEquals(1, count(first.received, "commit"));
+        assertEquals(2, count(second.received, "commit"));
+    }
+
+    private static KVMessage putreq(String key, String value) throws KVException {
+        KVMessage request = new KVMessage("putreq");
+        request.setKey(key);
+        request.setValue(value);
+        return request;
+    }
+
+    private static int count(List<String> types, String type) {
+        int n = 0;
+        for (String t : types) {
+            if (type.equals(t)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Votes ready to every prepare and acks every decision, after delayMs,
+     * except for the next dropCommits commits, whose connections it closes
+     * without answering.
+     */
+    private static final class StubSlave implements Runnable {
+        final List<String> received = new CopyOnWriteArrayList<String>();
+        final List<Long> receivedAt = new CopyOnWriteArrayList<Long>();
+        final AtomicInteger dropCommits = new AtomicInteger();
+        volatile long delayMs = 0;
+        private final ServerSocket server;
+
+        StubSlave(long slaveId) throws IOException, KVException {
+            server = new ServerSocket(0);
+            Thread acceptor = new Thread(this, "StubSlave " + slaveId);
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            String host = InetAddress.getLocalHost().getHostAddress();
+            Socket registration = new Socket(host, REGISTRATION_PORT);
+            try {
+                new KVMessage("register", slaveId + "@" + host + ":" + server.getLocalPort())
+                        .sendMessage(registration);
+                new KVMessage(registration);
+            } finally {
+                registration.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket client = server.accept();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            answer(client);
+                        }
+                    }.start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        private void answer(Socket client) {
+            try {
+                KVMessage request = new KVMessage(client);
+                received.add(request.getMsgType());
+                receivedAt.add(System.currentTimeMillis());
+                if ("commit".equals(request.getMsgType())
+                        && dropCommits.getAndDecrement() > 0) {
+                    return;
+                }
+                Thread.sleep(delayMs);
+                KVMessage reply = new KVMessage("putreq".equals(request.getMsgType())
+                        || "delreq".equals(request.getMsgType()) ? "ready" : "ack");
+                reply.setTpcOpId(request.getTpcOpId());
+                reply.sendMessage(client);
+            } catch (KVException e) {
+                // The master gave up on it
+            } catch (InterruptedException e) {
+                // Closing
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // Nothing more to do with it
+                }
+            }
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package edu.berkeley.cs162.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.berkeley.cs162.KVMessage;
 import edu.berkeley.cs162.ThreadPool;
+import edu.berkeley.cs162.ThreadPool.RejectionPolicy;
 
 /**
  * @author hkothari
@@ -15,10 +21,14 @@ import edu.berkeley.cs162.ThreadPool;
 public final class ThreadPoolTest {
 
     private final AtomicInteger count = new AtomicInteger(0);
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final AtomicInteger maxRunning = new AtomicInteger(0);
 
     @Before
     public void setUp() {
         count.set(0);
+        running.set(0);
+        maxRunning.set(0);
     }
 
     @Test
@@ -43,9 +53,120 @@ public final class ThreadPoolTest {
         assertEquals(100, count.get());
     }
 
+    @Test
+    public void testPerTaskPool() throws InterruptedException {
+        ThreadPool pool = ThreadPool.perTask(20);
+        for(int i = 0; i < 100; i++) {
+            pool.addToQueue(new TestJob());
+        }
+        // This should not take more than 3 seconds
+        Thread.sleep(3000);
+        assertEquals(100, count.get());
+        assertTrue(maxRunning.get() <= 20);
+    }
+
+    @Test
+    public void testWorkStealingPool() throws InterruptedException {
+        final ThreadPool pool = ThreadPool.workStealing(4);
+        for(int i = 0; i < 10; i++) {
+            // Each fans out to jobs on its own worker's deque
+            pool.addToQueue(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < 10; j++) {
+                        try {
+                            pool.addToQueue(new TestJob());
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        // This should not take more than 3 seconds
+        Thread.sleep(3000);
+        assertEquals(100, count.get());
+        assertEquals(0, pool.getQueueDepth());
+        assertEquals(110, pool.getDequeuedCount());
+    }
+
+    @Test
+    public void testRejectWhenFull() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1, 1, RejectionPolicy.REJECT);
+        CountDownLatch release = new CountDownLatch(1);
+        pool.addToQueue(new BlockedJob(release));
+        // Wait for the worker to take it, so the queue is empty
+        Thread.sleep(500);
+        RejectableTestJob queued = new RejectableTestJob();
+        RejectableTestJob turnedAway = new RejectableTestJob();
+        pool.addToQueue(queued);
+        pool.addToQueue(turnedAway);
+        assertEquals(1, pool.getQueueDepth());
+        assertEquals(1, pool.getRejectedCount());
+        assertEquals("Server Error: Server busy", turnedAway.reason.get().getMessage());
+
+        release.countDown();
+        assertTrue(queued.ran.await(3, TimeUnit.SECONDS));
+        assertTrue(pool.getMaxQueueWaitNanos() > 0);
+    }
+
+    @Test
+    public void testDropOldestWhenFull() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1, 1, RejectionPolicy.DROP_OLDEST);
+        CountDownLatch release = new CountDownLatch(1);
+        pool.addToQueue(new BlockedJob(release));
+        Thread.sleep(500);
+        RejectableTestJob dropped = new RejectableTestJob();
+        RejectableTestJob newest = new RejectableTestJob();
+        pool.addToQueue(dropped);
+        pool.addToQueue(newest);
+        assertTrue(dropped.reason.get() != null);
+
+        release.countDown();
+        assertTrue(newest.ran.await(3, TimeUnit.SECONDS));
+        assertEquals(1, dropped.ran.getCount());
+    }
+
+    private class BlockedJob implements Runnable {
+        private final CountDownLatch release;
+
+        BlockedJob(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // Finish early
+            }
+        }
+    }
+
+    private class RejectableTestJob implements ThreadPool.RejectableJob {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<KVMessage> reason = new AtomicReference<KVMessage>();
+
+        @Override
+        public void run() {
+            ran.countDown();
+        }
+
+        @Override
+        public void reject(KVMessage reason) {
+            this.reason.set(reason);
+        }
+    }
+
     private class TestJob implements Runnable {
         @Override
         public void run() {
+            int now = running.incrementAndGet();
+            int max = maxRunning.get();
+            while(now > max && !maxRunning.compareAndSet(max, now)) {
+                max = maxRunning.get();
+            }
             try {
                 // We sleep just to take some time to ensure the
                 // jobs get distributed
@@ -53,6 +174,7 @@ public final class ThreadPoolTest {
             } catch (InterruptedException e) {
                 // If this fails it's not a big deal
             }
+            running.decrementAndGet();
             count.incrementAndGet();
         }
     }
@@ -0,0 +1,100 @@
+package edu.berkeley.cs162.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.cs162.ValueArena;
+
+public final class ValueArenaTest {
+
+    private ValueArena arena;
+
+    @Before
+    public void setUp() {
+        // Small segments so the tests span several of them
+        arena = new ValueArena(1024);
+    }
+
+    @Test
+    public void testStoreLoad() {
+        long ascii = arena.store("value");
+        long unicode = arena.store("v\u00e4l\u00fc\u20ac");
+        StringBuilder big = new StringBuilder();
+        for(int i = 0; i < 500; i++) {
+            big.append("0123456789");
+        }
+        // Bigger than a segment, so it gets one of its own
+        long oversized = arena.store(big.toString());
+
+        assertEquals("value", arena.load(ascii));
+        assertEquals("v\u00e4l\u00fc\u20ac", arena.load(unicode));
+        assertEquals(big.toString(), arena.load(oversized));
+    }
+
+    @Test
+    public void testFreeAndReuse() {
+        long first = arena.store("first");
+        long allocated = arena.getAllocatedBytes();
+        assertTrue(arena.free(first));
+
+        // Freed handles are detected, even once their slot is reused
+        long second = arena.store("second");
+        assertEquals(null, arena.load(first));
+        assertFalse(arena.free(first));
+        assertEquals("second", arena.load(second));
+
+        // The freed block was reused rather than a new segment allocated
+        assertEquals(allocated, arena.getAllocatedBytes());
+    }
+
+    @Test
+    public void testDefragment() {
+        // 64 byte blocks, 16 per segment
+        List<Long> handles = new ArrayList<Long>();
+        for(int i = 0; i < 64; i++) {
+            handles.add(arena.store("value" + i));
+        }
+        assertEquals(4 * 1024, arena.getAllocatedBytes());
+
+        // Leave one value in every other block of each segment
+        for(int i = 0; i < 64; i += 2) {
+            arena.free(handles.get(i));
+        }
+        assertEquals(2, arena.defragment());
+        assertEquals(2 * 1024, arena.getAllocatedBytes());
+
+        // Handles survive being moved
+        for(int i = 1; i < 64; i += 2) {
+            assertEquals("value" + i, arena.load(handles.get(i)));
+        }
+    }
+
+    @Test
+    public void testDefragmentsOnFree() {
+        List<Long> handles = new ArrayList<Long>();
+        for(int i = 0; i < 64; i++) {
+            handles.add(arena.store("value" + i));
+        }
+        // Half free isn't enough to bother
+        for(int i = 0; i < 64; i += 2) {
+            arena.free(handles.get(i));
+        }
+        assertEquals(4 * 1024, arena.getAllocatedBytes());
+
+        // Three quarters is, and the frees compact the arena themselves
+        for(int i = 1; i < 64; i += 4) {
+            arena.free(handles.get(i));
+        }
+        assertEquals(1024, arena.getAllocatedBytes());
+        for(int i = 3; i < 64; i += 4) {
+            assertEquals("value" + i, arena.load(handles.get(i)));
+        }
+    }
+}